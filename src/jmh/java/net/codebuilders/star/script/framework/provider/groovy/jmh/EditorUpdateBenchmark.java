@@ -0,0 +1,86 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy.jmh;
+
+import net.codebuilders.star.script.framework.provider.groovy.PlainSourceView;
+import net.codebuilders.star.script.framework.provider.groovy.ScriptSourceModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.swing.SwingUtilities;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshing the editor view of a large script from its model, as done
+ * when the editor is opened or a script is run. The view is updated on
+ * the event dispatch thread like in the office, without showing a window.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class EditorUpdateBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int lines;
+
+    private StubScriptMetaData metaData;
+    private PlainSourceView view;
+
+    private final Runnable update = new Runnable() {
+        public void run() {
+            view.setModified(false);
+            view.update();
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void createView() throws Exception {
+        metaData = StubScriptMetaData.create("Update", Sources.generateLines(lines));
+        final ScriptSourceModel model = new ScriptSourceModel(metaData.getSourceURL());
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                view = new PlainSourceView(model);
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteScript() {
+        metaData.delete();
+    }
+
+    @Benchmark
+    public void update() throws Exception {
+        SwingUtilities.invokeAndWait(update);
+    }
+}
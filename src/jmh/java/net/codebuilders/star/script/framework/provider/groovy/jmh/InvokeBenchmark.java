@@ -0,0 +1,108 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy.jmh;
+
+import net.codebuilders.star.script.framework.provider.groovy.CompiledScriptCache;
+import net.codebuilders.star.script.framework.provider.groovy.GroovyScript;
+import net.codebuilders.star.script.framework.provider.groovy.ParcelClassLoaderPool;
+import net.codebuilders.star.script.framework.provider.groovy.SourceCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Invocation of a script through {@link GroovyScript#invoke}.
+ * <p>
+ * The cold benchmark empties every provider cache before each call so it
+ * measures class loader creation, reading and compiling the source. The
+ * warm benchmark measures repeated calls of an unchanged script.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class InvokeBenchmark {
+
+    static final String SCRIPT = ""
+            + "def words = ['alpha', 'beta', 'gamma', 'delta']\n"
+            + "def total = words.collect { it.length() }.sum()\n"
+            + "def text = ''\n"
+            + "ARGUMENTS.each { text += it }\n"
+            + "return \"$total ${text.length()} ${XSCRIPTCONTEXT != null}\"\n";
+
+    private StubScriptMetaData metaData;
+    private GroovyScript script;
+    private final Object[] params = new Object[]{"one", 2, 3.0};
+
+    @Setup(Level.Trial)
+    public void createScript() throws Exception {
+        metaData = StubScriptMetaData.create("Invoke", SCRIPT);
+        script = new GroovyScript(new StubScriptContext(), metaData);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteScript() {
+        metaData.delete();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public Object warmInvoke() throws Exception {
+        return invoke(script);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 10)
+    @Measurement(iterations = 20)
+    public Object coldInvoke(ColdState cold) throws Exception {
+        return invoke(script);
+    }
+
+    Object invoke(GroovyScript s) throws Exception {
+        return s.invoke(params, new short[1][], new Object[1][]);
+    }
+
+    /**
+     * Empties the provider caches before every call.
+     */
+    @State(Scope.Thread)
+    public static class ColdState {
+
+        @Setup(Level.Invocation)
+        public void clearCaches() {
+            ParcelClassLoaderPool.getPool().clear();
+            CompiledScriptCache.getCache().clear();
+            SourceCache.getCache().clear();
+        }
+    }
+}
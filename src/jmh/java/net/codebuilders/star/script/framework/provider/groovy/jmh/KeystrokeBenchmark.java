@@ -0,0 +1,142 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy.jmh;
+
+import net.codebuilders.star.script.framework.provider.groovy.HighlightingSourceView;
+import net.codebuilders.star.script.framework.provider.groovy.PlainSourceView;
+import net.codebuilders.star.script.framework.provider.groovy.ScriptSourceModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Typing into the middle of a large script: one operation inserts a
+ * character, paints the visible part of the editor, deletes the character
+ * again and paints once more. The time should not depend on the number
+ * of lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class KeystrokeBenchmark {
+
+    // the size of the visible part of the editor
+    private static final int WIDTH = 800;
+    private static final int HEIGHT = 600;
+
+    @Param({"1000", "10000", "100000"})
+    public int lines;
+
+    @Param({"plain", "highlighting"})
+    public String view;
+
+    private StubScriptMetaData metaData;
+    private JTextArea textArea;
+    private BufferedImage image;
+    private Rectangle visible;
+    private int offset;
+
+    private final Runnable keystroke = new Runnable() {
+        public void run() {
+            try {
+                Document doc = textArea.getDocument();
+                doc.insertString(offset, "x", null);
+                paint();
+                doc.remove(offset, 1);
+                paint();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void createView() throws Exception {
+        metaData = StubScriptMetaData.create("Keystroke", Sources.generateLines(lines));
+        final ScriptSourceModel model = new ScriptSourceModel(metaData.getSourceURL());
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run() {
+                PlainSourceView sourceView = view.equals("plain")
+                        ? new PlainSourceView(model) : new HighlightingSourceView(model);
+                textArea = sourceView.getTextArea();
+                textArea.setSize(textArea.getPreferredSize());
+                try {
+                    // inside the string of the middle group of lines
+                    offset = textArea.getLineStartOffset(lines / 2 / 5 * 5 + 2) + 20;
+                    Rectangle caret = caretBounds(textArea, offset);
+                    visible = new Rectangle(0, Math.max(0, caret.y - HEIGHT / 2), WIDTH, HEIGHT);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+            }
+        });
+    }
+
+    // modelToView is deprecated since Java 9, modelToView2D does not
+    // exist on the Java 8 the provider is built for
+    @SuppressWarnings("deprecation")
+    private static Rectangle caretBounds(JTextArea textArea, int offset)
+            throws BadLocationException {
+        return textArea.modelToView(offset);
+    }
+
+    private void paint() {
+        Graphics2D g = image.createGraphics();
+        try {
+            g.translate(0, -visible.y);
+            g.setClip(visible);
+            textArea.paint(g);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteScript() {
+        metaData.delete();
+    }
+
+    @Benchmark
+    public void keystroke() throws Exception {
+        SwingUtilities.invokeAndWait(keystroke);
+    }
+}
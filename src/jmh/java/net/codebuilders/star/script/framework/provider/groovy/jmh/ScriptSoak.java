@@ -0,0 +1,179 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy.jmh;
+
+import net.codebuilders.star.script.framework.provider.groovy.CompiledScript;
+import net.codebuilders.star.script.framework.provider.groovy.CompiledScriptCache;
+import net.codebuilders.star.script.framework.provider.groovy.GroovyScript;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs many invocations the way a long office session does and fails if
+ * script classes are not unloaded.
+ * <p>
+ * Hot scripts are called most of the time and are edited now and then,
+ * cold scripts are called rarely and keep being evicted from the
+ * compiled script cache. Every tenth of the run the loaded classes and
+ * the Metaspace are measured after a garbage collection. The run fails
+ * with exit code 1 if the last measurements are above the first ones
+ * taken after warming up by more than the tolerance.
+ * <pre>
+ * ./gradlew soak -Psoak="100000"
+ * </pre>
+ * The arguments are the number of invocations, 100000 by default, and
+ * the tolerance in percent, 10 by default.
+ */
+public class ScriptSoak {
+
+    private static final int HOT_SCRIPTS = 24;
+    private static final int COLD_SCRIPTS = 24;
+    private static final int COLD_EVERY = 20;
+    private static final int EDIT_EVERY = 50;
+    private static final int CHECKPOINTS = 10;
+
+    private final File directory;
+    private final List<GroovyScript> hot = new ArrayList<GroovyScript>();
+    private final List<GroovyScript> cold = new ArrayList<GroovyScript>();
+    private final List<StubScriptMetaData> hotMetaData = new ArrayList<StubScriptMetaData>();
+    private int edits = 0;
+
+    ScriptSoak(File directory) throws Exception {
+        this.directory = directory;
+        for (int i = 0; i < HOT_SCRIPTS; i++) {
+            StubScriptMetaData metaData = write("Hot" + i, source(i, 0));
+            hotMetaData.add(metaData);
+            hot.add(new GroovyScript(new StubScriptContext(), metaData));
+        }
+        for (int i = 0; i < COLD_SCRIPTS; i++) {
+            cold.add(new GroovyScript(new StubScriptContext(), write("Cold" + i, source(i, 0))));
+        }
+    }
+
+    // every version has a closure and a class, like real macros
+    private static String source(int script, int version) {
+        return "class Row" + version + " { int n; int twice() { n * 2 } }\n"
+                + "def rows = (1..20).collect { new Row" + version + "(n: it) }\n"
+                + "def total = rows.sum { it.twice() }\n"
+                + "return \"" + script + "/" + version + " $total ${ARGUMENTS.length}\"\n";
+    }
+
+    private StubScriptMetaData write(String name, String source) throws Exception {
+        Files.write(new File(directory, name + ".groovy").toPath(),
+                source.getBytes(StandardCharsets.UTF_8));
+        return new StubScriptMetaData(directory, name);
+    }
+
+    void invoke(int i) throws Exception {
+        if (i % EDIT_EVERY == EDIT_EVERY - 1) {
+            int script = (i / EDIT_EVERY) % HOT_SCRIPTS;
+            File file = hotMetaData.get(script).getFile();
+            long modified = file.lastModified();
+            Files.write(file.toPath(), source(script, ++edits).getBytes(StandardCharsets.UTF_8));
+            // file times may be too coarse to tell two edits apart
+            file.setLastModified(Math.max(modified + 1000, System.currentTimeMillis()));
+        }
+
+        GroovyScript script = i % COLD_EVERY == 0
+                ? cold.get((i / COLD_EVERY) % COLD_SCRIPTS)
+                : hot.get(i % HOT_SCRIPTS);
+        script.invoke(new Object[]{i}, new short[1][], new Object[1][]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int invocations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        double tolerance = args.length > 1 ? Double.parseDouble(args[1]) / 100 : 0.10;
+        if (System.getProperty(CompiledScriptCache.MAX_ENTRIES_PROPERTY) == null) {
+            // fewer entries than scripts so the cold scripts keep being evicted
+            System.setProperty(CompiledScriptCache.MAX_ENTRIES_PROPERTY, "32");
+        }
+
+        File directory = Files.createTempDirectory("groovy-soak").toFile();
+        try {
+            ScriptSoak soak = new ScriptSoak(directory);
+            List<long[]> measured = new ArrayList<long[]>();
+            int step = Math.max(1, invocations / CHECKPOINTS);
+            long start = System.nanoTime();
+            for (int i = 0; i < invocations; i++) {
+                soak.invoke(i);
+                if ((i + 1) % step == 0) {
+                    long[] m = measure();
+                    measured.add(m);
+                    System.out.println(String.format(Locale.ROOT,
+                            "%7d invocations %6d s: %6d classes loaded, %6.1f MB Metaspace, "
+                                    + "%d script classes defined, %d released, %s",
+                            i + 1, (System.nanoTime() - start) / 1000000000L, m[0], m[1] / 1048576.0,
+                            CompiledScript.getClassesDefined(), CompiledScript.getClassesReleased(),
+                            CompiledScriptCache.getCache()));
+                }
+            }
+
+            if (measured.size() < 4) {
+                System.out.println("Too few invocations to tell");
+                return;
+            }
+            // the first checkpoints include warming up
+            long[] baseline = measured.get(1);
+            long[] last = measured.get(measured.size() - 1);
+            for (int i = measured.size() - 3; i < measured.size(); i++) {
+                last = new long[]{Math.min(last[0], measured.get(i)[0]), Math.min(last[1], measured.get(i)[1])};
+            }
+            boolean classesGrew = last[0] > baseline[0] * (1 + tolerance);
+            boolean metaspaceGrew = last[1] > baseline[1] * (1 + tolerance);
+            if (classesGrew || metaspaceGrew) {
+                System.out.println(String.format(Locale.ROOT,
+                        "FAILED: loaded classes %d -> %d, Metaspace %.1f -> %.1f MB",
+                        baseline[0], last[0], baseline[1] / 1048576.0, last[1] / 1048576.0));
+                System.exit(1);
+            }
+            System.out.println("OK: loaded classes and Metaspace stayed within "
+                    + Math.round(tolerance * 100) + "%");
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    // loaded classes and Metaspace bytes after collecting what can be unloaded
+    private static long[] measure() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        long metaspace = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals("Metaspace")) {
+                metaspace = pool.getUsage().getUsed();
+            }
+        }
+        return new long[]{ManagementFactory.getClassLoadingMXBean().getLoadedClassCount(), metaspace};
+    }
+}
@@ -0,0 +1,73 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy.jmh;
+
+import net.codebuilders.star.script.framework.provider.groovy.ScriptSourceModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a script source into the editor model at various file sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SourceLoadBenchmark {
+
+    /**
+     * Approximate source size in bytes.
+     */
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private StubScriptMetaData metaData;
+    private ScriptSourceModel model;
+
+    @Setup(Level.Trial)
+    public void createScript() throws Exception {
+        metaData = StubScriptMetaData.create("Load", Sources.generate(size));
+        model = new ScriptSourceModel(metaData.getSourceURL());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteScript() {
+        metaData.delete();
+    }
+
+    @Benchmark
+    public String load() {
+        return model.getText();
+    }
+}
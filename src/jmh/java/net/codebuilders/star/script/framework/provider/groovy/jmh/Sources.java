@@ -0,0 +1,67 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy.jmh;
+
+/**
+ * Generates Groovy sources of a given size for the benchmarks.
+ */
+public final class Sources {
+
+    // each group of lines only uses the variables it declares, %1$d is the group number
+    private static final String[] LINES = {
+            "// generated benchmark source, group %1$d",
+            "def value%1$d = [1, 2, 3].collect { it * %1$d }",
+            "String text%1$d = \"group ${value%1$d.size()} of %1$d\" // non ascii: \u00e4\u00f6\u00fc",
+            "if (value%1$d.sum() > 10) { println text%1$d } else { println 'small' }",
+            "",
+    };
+
+    private Sources() {
+    }
+
+    /**
+     * Returns a valid script of at least the given number of characters.
+     *
+     * @param size The minimum length
+     * @return The script source
+     */
+    public static String generate(int size) {
+        StringBuilder buf = new StringBuilder(size + 128);
+        int line = 0;
+        while (buf.length() < size) {
+            buf.append(String.format(LINES[line % LINES.length], line / LINES.length)).append('\n');
+            line++;
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Returns a valid script of the given number of lines.
+     *
+     * @param lines The number of lines
+     * @return The script source
+     */
+    public static String generateLines(int lines) {
+        StringBuilder buf = new StringBuilder(lines * 48);
+        for (int line = 0; line < lines; line++) {
+            buf.append(String.format(LINES[line % LINES.length], line / LINES.length)).append('\n');
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,48 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy.jmh;
+
+import com.sun.star.document.XScriptInvocationContext;
+import com.sun.star.frame.XDesktop;
+import com.sun.star.frame.XModel;
+import com.sun.star.script.provider.XScriptContext;
+import com.sun.star.uno.XComponentContext;
+
+/**
+ * Script context without an office behind it. Scripts see a non null
+ * XSCRIPTCONTEXT, every getter returns null.
+ */
+public class StubScriptContext implements XScriptContext {
+
+    public XModel getDocument() {
+        return null;
+    }
+
+    public XScriptInvocationContext getInvocationContext() {
+        return null;
+    }
+
+    public XDesktop getDesktop() {
+        return null;
+    }
+
+    public XComponentContext getComponentContext() {
+        return null;
+    }
+}
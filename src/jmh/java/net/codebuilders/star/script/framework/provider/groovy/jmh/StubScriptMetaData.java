@@ -0,0 +1,110 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy.jmh;
+
+import com.sun.star.script.framework.container.ScriptEntry;
+import com.sun.star.script.framework.container.ScriptMetaData;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Metadata of a script stored in a plain directory, standing in for a
+ * parcel of an installed office.
+ */
+public class StubScriptMetaData extends ScriptMetaData {
+
+    private final File directory;
+    private final File file;
+    private String source;
+
+    /**
+     * @param directory The directory acting as parcel
+     * @param name      The script file name without .groovy
+     */
+    public StubScriptMetaData(File directory, String name) {
+        super(null, new ScriptEntry("Groovy", name + ".groovy", "", "user"), null);
+        this.directory = directory;
+        this.file = new File(directory, name + ".groovy");
+    }
+
+    /**
+     * Writes a script to a new temporary parcel directory.
+     *
+     * @param name   The script file name without .groovy
+     * @param source The script source
+     * @return The metadata of the script
+     * @throws IOException If the script cannot be written
+     */
+    public static StubScriptMetaData create(String name, String source) throws IOException {
+        Path directory = Files.createTempDirectory("groovy-jmh");
+        Files.write(directory.resolve(name + ".groovy"), source.getBytes(StandardCharsets.UTF_8));
+        return new StubScriptMetaData(directory.toFile(), name);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getParcelLocation() {
+        return directory.toURI().toString();
+    }
+
+    public URL getSourceURL() throws MalformedURLException {
+        return file.toURI().toURL();
+    }
+
+    public URL[] getClassPath() throws MalformedURLException {
+        return new URL[]{directory.toURI().toURL()};
+    }
+
+    public void loadSource() {
+        try {
+            source = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            source = null;
+        }
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public boolean hasSource() {
+        return source != null;
+    }
+
+    /**
+     * Deletes the parcel directory and its files.
+     */
+    public void delete() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,64 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.document.XScriptInvocationContext;
+import com.sun.star.frame.XDesktop;
+import com.sun.star.frame.XModel;
+import com.sun.star.script.provider.XScriptContext;
+import com.sun.star.uno.XComponentContext;
+
+/**
+ * The XSCRIPTCONTEXT of an asynchronous run. It hands out the same
+ * document, desktop and component context as the caller's context, plus
+ * the {@link ScriptTask} of the run.
+ */
+public class AsyncScriptContext implements XScriptContext {
+
+    private final XScriptContext context;
+    private final ScriptTask task;
+
+    public AsyncScriptContext(XScriptContext context, ScriptTask task) {
+        this.context = context;
+        this.task = task;
+    }
+
+    /**
+     * Returns the task of the running script.
+     */
+    public ScriptTask getTask() {
+        return task;
+    }
+
+    public XModel getDocument() {
+        return context.getDocument();
+    }
+
+    public XScriptInvocationContext getInvocationContext() {
+        return context.getInvocationContext();
+    }
+
+    public XDesktop getDesktop() {
+        return context.getDesktop();
+    }
+
+    public XComponentContext getComponentContext() {
+        return context.getComponentContext();
+    }
+}
@@ -0,0 +1,118 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+/**
+ * What happened to one document of a batch run.
+ */
+public class BatchResult {
+
+    public enum Status {
+        /** The script ran and the document was stored if it changed. */
+        OK,
+        LOAD_FAILED,
+        SCRIPT_FAILED,
+        STORE_FAILED
+    }
+
+    private final String url;
+    private Status status = Status.OK;
+    private String message = "";
+    private boolean stored = false;
+    private long loadMillis;
+    private long runMillis;
+    private long storeMillis;
+
+    BatchResult(String url) {
+        this.url = url;
+    }
+
+    void fail(Status status, Throwable cause) {
+        this.status = status;
+        this.message = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+    }
+
+    void setStored(boolean stored) {
+        this.stored = stored;
+    }
+
+    void setLoadMillis(long loadMillis) {
+        this.loadMillis = loadMillis;
+    }
+
+    void setRunMillis(long runMillis) {
+        this.runMillis = runMillis;
+    }
+
+    void setStoreMillis(long storeMillis) {
+        this.storeMillis = storeMillis;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the error message if the document failed, otherwise "".
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns true if the document was modified by the script and stored.
+     */
+    public boolean isStored() {
+        return stored;
+    }
+
+    public long getLoadMillis() {
+        return loadMillis;
+    }
+
+    public long getRunMillis() {
+        return runMillis;
+    }
+
+    /**
+     * Returns the time taken to store and close the document.
+     */
+    public long getStoreMillis() {
+        return storeMillis;
+    }
+
+    /**
+     * Returns the result as a row for UNO callers: url, status, stored,
+     * load, run and store milliseconds and message.
+     */
+    public Object[] toArray() {
+        return new Object[]{url, status.name(), stored,
+                (int) loadMillis, (int) runMillis, (int) storeMillis, message};
+    }
+
+    public String toString() {
+        return url + " " + status + " load=" + loadMillis + "ms run=" + runMillis
+                + "ms store=" + storeMillis + "ms" + (stored ? " stored" : "")
+                + (message.length() > 0 ? " " + message : "");
+    }
+}
@@ -0,0 +1,332 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.beans.PropertyValue;
+import com.sun.star.frame.XComponentLoader;
+import com.sun.star.frame.XDesktop;
+import com.sun.star.frame.XModel;
+import com.sun.star.frame.XStorable;
+import com.sun.star.lang.XComponent;
+import com.sun.star.uno.UnoRuntime;
+import com.sun.star.uno.XComponentContext;
+import com.sun.star.util.XCloseable;
+import com.sun.star.util.XModifiable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs one compiled script over many documents.
+ * <p>
+ * Documents go through three stages connected by bounded queues: a
+ * loader thread opens them hidden, the calling thread runs the script
+ * with the document as XSCRIPTCONTEXT.getDocument() and the document URL
+ * as ARGUMENTS[0], and a store thread stores documents the script has
+ * modified and closes them. Loading the next document and storing the
+ * previous one overlap with running the script. How many documents may
+ * wait between two stages is set with the system property
+ * {@code net.codebuilders.groovy.batch.queue}.
+ */
+public class BatchRunner {
+
+    public static final String QUEUE_PROPERTY = "net.codebuilders.groovy.batch.queue";
+
+    private static final int DEFAULT_QUEUE = 2;
+
+    private final XComponentContext context;
+    private final int queueSize;
+    private XDesktop desktop;
+    private XComponentLoader componentLoader;
+
+    public BatchRunner(XComponentContext context) {
+        this(context, Integer.getInteger(QUEUE_PROPERTY, DEFAULT_QUEUE));
+    }
+
+    public BatchRunner(XComponentContext context, int queueSize) {
+        this.context = context;
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    /**
+     * Runs a script for every document.
+     *
+     * @param script       The compiled script
+     * @param documentUrls The documents as URLs or system paths
+     * @return One result per document, in the order of the URLs
+     */
+    public List<BatchResult> run(final GroovyScript.PreparedScript script,
+                                 final String[] documentUrls) {
+
+        final BatchResult[] results = new BatchResult[documentUrls.length];
+        for (int i = 0; i < documentUrls.length; i++) {
+            results[i] = new BatchResult(documentUrls[i]);
+        }
+
+        final BlockingQueue<Item> loaded = new ArrayBlockingQueue<Item>(queueSize);
+        final BlockingQueue<Item> executed = new ArrayBlockingQueue<Item>(queueSize);
+        // set before the threads are interrupted, a document call may swallow the interrupt
+        final AtomicBoolean aborted = new AtomicBoolean();
+
+        Thread loader = new Thread(new Runnable() {
+            public void run() {
+                Item item = null;
+                try {
+                    for (BatchResult result : results) {
+                        if (aborted.get()) {
+                            break;
+                        }
+                        item = new Item(result);
+                        long start = System.currentTimeMillis();
+                        try {
+                            item.document = load(toUrl(result.getUrl()));
+                        } catch (Exception e) {
+                            result.fail(BatchResult.Status.LOAD_FAILED, e);
+                        }
+                        result.setLoadMillis(System.currentTimeMillis() - start);
+                        loaded.put(item);
+                        item = null;
+                    }
+                } catch (InterruptedException ie) {
+                    // the batch was aborted, the document that did not make it into the queue is closed
+                    closeQuietly(item);
+                } finally {
+                    if (!aborted.get()) {
+                        putEnd(loaded);
+                    }
+                }
+            }
+        }, "Groovy batch loader");
+
+        Thread storer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Item item;
+                    while (!aborted.get() && (item = executed.take()) != Item.END) {
+                        finish(item);
+                    }
+                } catch (InterruptedException ie) {
+                    // the batch was aborted
+                }
+            }
+        }, "Groovy batch store");
+
+        loader.setDaemon(true);
+        storer.setDaemon(true);
+        loader.start();
+        storer.start();
+
+        Item item = null;
+        try {
+            while ((item = loaded.take()) != Item.END) {
+                if (item.document != null) {
+                    execute(script, item);
+                }
+                executed.put(item);
+                item = null;
+            }
+            executed.put(Item.END);
+            storer.join();
+        } catch (InterruptedException ie) {
+            aborted.set(true);
+            abort(item, loader, storer, loaded, executed);
+            Thread.currentThread().interrupt();
+        }
+
+        return new ArrayList<BatchResult>(Arrays.asList(results));
+    }
+
+    // stops both threads and closes every document still open, without storing it
+    private void abort(Item current, Thread loader, Thread storer,
+                       BlockingQueue<Item> loaded, BlockingQueue<Item> executed) {
+        List<Item> left = new ArrayList<Item>();
+        if (current != null) {
+            left.add(current);
+        }
+
+        loader.interrupt();
+        // a document being loaded is finished first, it may still be put into the queue
+        while (loader.isAlive()) {
+            loaded.drainTo(left);
+            joinUninterruptibly(loader, 10);
+        }
+        loaded.drainTo(left);
+
+        storer.interrupt();
+        // the storer finishes a document it has taken, END wakes it if it waits for the next one
+        executed.drainTo(left);
+        executed.offer(Item.END);
+        while (storer.isAlive()) {
+            joinUninterruptibly(storer, 0);
+        }
+
+        for (Item item : left) {
+            closeQuietly(item);
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread, long millis) {
+        try {
+            thread.join(millis);
+        } catch (InterruptedException ie) {
+            // the caller restores the interrupt
+        }
+    }
+
+    private void closeQuietly(Item item) {
+        if (item == null || item == Item.END || item.document == null) {
+            return;
+        }
+        try {
+            close(item.document);
+        } catch (Exception e) {
+            System.err.println("Failed to close " + item.result.getUrl() + ": " + e);
+        }
+        item.document = null;
+    }
+
+    private void execute(GroovyScript.PreparedScript script, Item item) {
+        long start = System.currentTimeMillis();
+        try {
+            script.run(new DocumentScriptContext(item.document, getDesktop(), context),
+                    new Object[]{item.result.getUrl()});
+        } catch (Throwable t) {
+            item.result.fail(BatchResult.Status.SCRIPT_FAILED, t);
+            System.err.println("Batch script failed for " + item.result.getUrl() + ": " + t);
+        }
+        item.result.setRunMillis(System.currentTimeMillis() - start);
+    }
+
+    // stores the document if the script succeeded and changed it, always closes it
+    private void finish(Item item) {
+        if (item.document == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            if (item.result.getStatus() == BatchResult.Status.OK && isModified(item.document)) {
+                store(item.document);
+                item.result.setStored(true);
+            }
+        } catch (Exception e) {
+            item.result.fail(BatchResult.Status.STORE_FAILED, e);
+        } finally {
+            try {
+                close(item.document);
+            } catch (Exception e) {
+                System.err.println("Failed to close " + item.result.getUrl() + ": " + e);
+            }
+        }
+        item.result.setStoreMillis(System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Opens a document hidden.
+     *
+     * @param url The document URL
+     * @return The document model
+     * @throws Exception If the document cannot be loaded
+     */
+    protected XModel load(String url) throws Exception {
+        PropertyValue hidden = new PropertyValue();
+        hidden.Name = "Hidden";
+        hidden.Value = Boolean.TRUE;
+
+        XComponent component = getComponentLoader().loadComponentFromURL(
+                url, "_blank", 0, new PropertyValue[]{hidden});
+        XModel model = UnoRuntime.queryInterface(XModel.class, component);
+        if (model == null) {
+            throw new IllegalArgumentException("Not a document: " + url);
+        }
+        return model;
+    }
+
+    protected boolean isModified(XModel document) {
+        XModifiable modifiable = UnoRuntime.queryInterface(XModifiable.class, document);
+        return modifiable != null && modifiable.isModified();
+    }
+
+    protected void store(XModel document) throws Exception {
+        UnoRuntime.queryInterface(XStorable.class, document).store();
+    }
+
+    protected void close(XModel document) throws Exception {
+        XCloseable closeable = UnoRuntime.queryInterface(XCloseable.class, document);
+        if (closeable != null) {
+            closeable.close(true);
+        } else {
+            UnoRuntime.queryInterface(XComponent.class, document).dispose();
+        }
+    }
+
+    private synchronized XComponentLoader getComponentLoader() throws Exception {
+        if (componentLoader == null) {
+            componentLoader = UnoRuntime.queryInterface(XComponentLoader.class, createDesktop());
+        }
+        return componentLoader;
+    }
+
+    synchronized XDesktop getDesktop() {
+        if (desktop == null && context != null) {
+            try {
+                desktop = UnoRuntime.queryInterface(XDesktop.class, createDesktop());
+            } catch (Exception e) {
+                System.err.println("No desktop for batch scripts: " + e);
+            }
+        }
+        return desktop;
+    }
+
+    private Object createDesktop() throws Exception {
+        return context.getServiceManager().createInstanceWithContext(
+                "com.sun.star.frame.Desktop", context);
+    }
+
+    // system paths are accepted as well as URLs, a drive letter is no URL scheme
+    static String toUrl(String document) {
+        if (document.matches("[a-zA-Z][a-zA-Z0-9+.-]+:.*")) {
+            return document;
+        }
+        return new File(document).toURI().toString();
+    }
+
+    private static void putEnd(BlockingQueue<Item> queue) {
+        try {
+            queue.put(Item.END);
+        } catch (InterruptedException ie) {
+            queue.offer(Item.END);
+        }
+    }
+
+    private static class Item {
+        static final Item END = new Item(null);
+
+        final BatchResult result;
+        XModel document;
+
+        Item(BatchResult result) {
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.script.framework.provider.PathUtils;
+import com.sun.star.uno.XComponentContext;
+import groovy.lang.GroovySystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Optional on-disk cache of compiled script classes so the first run of
+ * a script after an office restart does not pay the compile cost.
+ * <p>
+ * Every script version is stored in one file named after a hash of the
+ * script URL, the source hash and the Groovy version. The source hash
+ * given by the {@link CompiledScriptCache} includes a stamp of the parcel
+ * class path, so classes compiled against other jars are not reused. A file that fails
+ * its checksum or does not match the script it was looked up for is
+ * deleted and the script is compiled as usual. The directory is kept
+ * below a size cap by deleting the least recently used files.
+ * <p>
+ * The cache is off unless the system property
+ * {@value #ENABLED_PROPERTY} is true. It lives in groovy/classcache of
+ * the user profile unless {@value #DIRECTORY_PROPERTY} names another
+ * directory.
+ */
+public class BytecodeCache {
+
+    public static final String ENABLED_PROPERTY = "net.codebuilders.groovy.diskcache";
+    public static final String DIRECTORY_PROPERTY = "net.codebuilders.groovy.diskcache.dir";
+    public static final String MAX_SIZE_PROPERTY = "net.codebuilders.groovy.diskcache.maxSize";
+
+    private static final long DEFAULT_MAX_SIZE = 32L * 1024 * 1024;
+
+    private static final int MAGIC = 0x47524f4f;
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".gcc";
+
+    private static final String USER_CACHE_URL =
+            "vnd.sun.star.expand:${$OOO_BASE_DIR/program/" + PathUtils.BOOTSTRAP_NAME
+                    + "::UserInstallation}/user/groovy/classcache";
+
+    // global BytecodeCache returned for getCache() calls
+    private static volatile BytecodeCache theBytecodeCache;
+    private static volatile boolean initialised = false;
+
+    private final File directory;
+    private final long maxSize;
+
+    private long loads = 0;
+    private long stores = 0;
+    private long rejected = 0;
+
+    /**
+     * Returns the global BytecodeCache instance.
+     *
+     * @param context The component context used to locate the user
+     *                profile, may be null
+     * @return The cache or null if it is disabled or has no usable directory
+     */
+    public static BytecodeCache getCache(XComponentContext context) {
+        if (!initialised) {
+            synchronized (BytecodeCache.class) {
+                if (!initialised) {
+                    theBytecodeCache = createCache(context);
+                    initialised = true;
+                }
+            }
+        }
+        return theBytecodeCache;
+    }
+
+    /**
+     * Returns the global BytecodeCache instance without creating it.
+     *
+     * @return The cache or null if it is disabled or not used yet
+     */
+    static synchronized BytecodeCache getCreatedCache() {
+        return theBytecodeCache;
+    }
+
+    private static BytecodeCache createCache(XComponentContext context) {
+        if (!Boolean.getBoolean(ENABLED_PROPERTY)) {
+            return null;
+        }
+
+        String dir = System.getProperty(DIRECTORY_PROPERTY);
+        File directory = dir != null
+                ? new File(dir)
+                : ParcelPaths.toFile(USER_CACHE_URL, context);
+
+        if (directory == null) {
+            System.err.println("Groovy class cache disabled, no user profile directory");
+            return null;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("Groovy class cache disabled, cannot create " + directory);
+            return null;
+        }
+        return new BytecodeCache(directory, Long.getLong(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE));
+    }
+
+    public BytecodeCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Loads the stored classes of a script.
+     *
+     * @param key        The source URL of the script
+     * @param sourceHash The hash of the current script source
+     * @param parent     The parcel class loader the script runs in
+     * @return The compiled script or null if nothing usable was stored
+     */
+    public CompiledScript load(String key, String sourceHash, ClassLoader parent) {
+        File file = fileFor(key, sourceHash);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            if (file.length() > maxSize) {
+                throw new IOException("entry larger than the cache");
+            }
+            byte[] data = Files.readAllBytes(file.toPath());
+            CompiledScript script = read(data, key, sourceHash, parent);
+
+            // the modification time orders the files for eviction
+            file.setLastModified(System.currentTimeMillis());
+            synchronized (this) {
+                loads++;
+            }
+            return script;
+        } catch (Exception e) {
+            // corrupt, truncated or stale entry, compile the script instead
+            System.err.println("Discarding cached classes for " + key + ": " + e.getMessage());
+            synchronized (this) {
+                rejected++;
+            }
+            file.delete();
+            return null;
+        } catch (LinkageError le) {
+            System.err.println("Discarding cached classes for " + key + ": " + le);
+            synchronized (this) {
+                rejected++;
+            }
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the classes of a compiled script.
+     *
+     * @param key        The source URL of the script
+     * @param sourceHash The hash of the source the script was compiled from
+     * @param script     The compiled script
+     */
+    public void store(String key, String sourceHash, CompiledScript script) {
+        File file = fileFor(key, sourceHash);
+        File tmp = null;
+
+        try {
+            byte[] data = write(key, sourceHash, script);
+            if (data.length > maxSize) {
+                return;
+            }
+
+            // write to a temporary file first so readers never see half an entry
+            tmp = File.createTempFile("groovy", ".tmp", directory);
+            Files.write(tmp.toPath(), data);
+            try {
+                Files.move(tmp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException atomicNotSupported) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            synchronized (this) {
+                stores++;
+            }
+            trim();
+        } catch (IOException ioe) {
+            System.err.println("Failed to store cached classes for " + key + ": " + ioe.getMessage());
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public synchronized long getLoads() {
+        return loads;
+    }
+
+    public synchronized long getStores() {
+        return stores;
+    }
+
+    /**
+     * Returns the number of cache files deleted because they were
+     * corrupt or written by another Groovy version.
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public synchronized String toString() {
+        return "BytecodeCache[" + directory + ", loads=" + loads + ", stores=" + stores
+                + ", rejected=" + rejected + "]";
+    }
+
+    private File fileFor(String key, String sourceHash) {
+        String name = CompiledScriptCache.hash(
+                key + "\n" + sourceHash + "\n" + GroovySystem.getVersion());
+        return new File(directory, name + SUFFIX);
+    }
+
+    // deletes the least recently used entries until the directory fits the cap
+    private synchronized void trim() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+
+        long size = 0;
+        for (File f : files) {
+            size += f.length();
+        }
+        if (size <= maxSize) {
+            return;
+        }
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length && size > maxSize; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    private static byte[] write(String key, String sourceHash, CompiledScript script)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(GroovySystem.getVersion());
+        out.writeUTF(key);
+        out.writeUTF(sourceHash);
+        out.writeUTF(script.getMainClassName());
+
+        Map<String, byte[]> classes = script.getClasses();
+        out.writeInt(classes.size());
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().length);
+            out.write(entry.getValue());
+        }
+        out.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.close();
+
+        return bytes.toByteArray();
+    }
+
+    private static CompiledScript read(byte[] data, String key, String sourceHash,
+                                       ClassLoader parent)
+            throws IOException, ClassNotFoundException {
+        if (data.length < 8) {
+            throw new IOException("truncated entry");
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 8);
+        long expected = new DataInputStream(
+                new ByteArrayInputStream(data, data.length - 8, 8)).readLong();
+        if (crc.getValue() != expected) {
+            throw new IOException("checksum mismatch");
+        }
+
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(data, 0, data.length - 8));
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("unknown format");
+        }
+        if (!GroovySystem.getVersion().equals(in.readUTF())
+                || !key.equals(in.readUTF())
+                || !sourceHash.equals(in.readUTF())) {
+            throw new IOException("entry belongs to another script");
+        }
+
+        String mainClassName = in.readUTF();
+        int count = in.readInt();
+        if (count <= 0) {
+            throw new IOException("entry has no classes");
+        }
+
+        Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            int length = in.readInt();
+            if (length < 0 || length > in.available()) {
+                throw new IOException("truncated class " + name);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            classes.put(name, bytes);
+        }
+
+        return new CompiledScript(mainClassName, classes, parent);
+    }
+}
@@ -0,0 +1,430 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.table.XCellRange;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The contents of a cell range read by {@link CalcRanges} in one piece.
+ * <p>
+ * Numbers are kept in a {@code double[]} and texts in a {@code String[]},
+ * both in row order, so reading and changing cells makes no calls to the
+ * office. Rows and columns are views on the same arrays:
+ * <pre>
+ * def data = CALC.read("Sheet1", "A1:D1000")
+ * for (row in data) {
+ *     row[3] = row.getDouble(1) * row.getDouble(2)
+ * }
+ * double[] totals = data.column(3).toDoubleArray()
+ * CALC.write(data)
+ * </pre>
+ * Read with formulas every cell holds the formula or the text of its
+ * constant, numbers set are written as constants.
+ * <p>
+ * Only the cells set since the data was read or last written are written
+ * back, the formulas of the other cells are kept.
+ */
+public class CalcRangeData implements Iterable<CalcRangeData.Line> {
+
+    private final XCellRange range;
+    private final int rows;
+    private final int columns;
+    private final boolean formulas;
+
+    // a cell is a number if its text is null, otherwise its number is NaN
+    private final double[] numbers;
+    private final String[] texts;
+
+    // the cells set by the script, and the cells read as values that hold formulas
+    private final BitSet changed = new BitSet();
+    private final BitSet formulaCells = new BitSet();
+
+    CalcRangeData(XCellRange range, int rows, int columns, boolean formulas) {
+        this.range = range;
+        this.rows = rows;
+        this.columns = columns;
+        this.formulas = formulas;
+        this.numbers = new double[rows * columns];
+        this.texts = new String[rows * columns];
+        Arrays.fill(numbers, Double.NaN);
+        Arrays.fill(texts, "");
+    }
+
+    /**
+     * Returns the range the data was read from and is written back to.
+     */
+    public XCellRange getRange() {
+        return range;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Returns true if the cells hold formulas rather than values.
+     */
+    public boolean isFormulas() {
+        return formulas;
+    }
+
+    public double getDouble(int row, int column) {
+        return numbers[index(row, column)];
+    }
+
+    /**
+     * Returns the text of a cell, or null if it holds a number.
+     */
+    public String getString(int row, int column) {
+        return texts[index(row, column)];
+    }
+
+    /**
+     * Returns the number of a cell as a Double, or its text.
+     */
+    public Object getValue(int row, int column) {
+        int i = index(row, column);
+        return texts[i] == null ? (Object) numbers[i] : texts[i];
+    }
+
+    public boolean isNumber(int row, int column) {
+        return texts[index(row, column)] == null;
+    }
+
+    /**
+     * Returns true if the cell was set since the data was read or last written.
+     */
+    public boolean isChanged(int row, int column) {
+        return changed.get(index(row, column));
+    }
+
+    public boolean isEmpty(int row, int column) {
+        String text = texts[index(row, column)];
+        return text != null && text.length() == 0;
+    }
+
+    public void set(int row, int column, double value) {
+        int i = index(row, column);
+        numbers[i] = value;
+        texts[i] = null;
+        changed.set(i);
+    }
+
+    /**
+     * Sets the text of a cell, with formulas the formula, null empties it.
+     */
+    public void set(int row, int column, String value) {
+        int i = index(row, column);
+        numbers[i] = Double.NaN;
+        texts[i] = value == null ? "" : value;
+        changed.set(i);
+    }
+
+    /**
+     * Sets a number or, for any other value, its text.
+     */
+    public void set(int row, int column, Object value) {
+        if (value instanceof Number) {
+            set(row, column, ((Number) value).doubleValue());
+        } else {
+            set(row, column, value == null ? null : value.toString());
+        }
+    }
+
+    /**
+     * Returns a view of a row.
+     */
+    public Line row(int row) {
+        if (row < 0 || row >= rows) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + rows);
+        }
+        return new Line(row * columns, 1, columns);
+    }
+
+    /**
+     * Returns a view of a column.
+     */
+    public Line column(int column) {
+        if (column < 0 || column >= columns) {
+            throw new IndexOutOfBoundsException("Column " + column + " of " + columns);
+        }
+        return new Line(column, columns, rows);
+    }
+
+    // data[row] in Groovy
+    public Line getAt(int row) {
+        return row(row);
+    }
+
+    public Iterator<Line> iterator() {
+        return new Iterator<Line>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < rows;
+            }
+
+            public Line next() {
+                if (next >= rows) {
+                    throw new NoSuchElementException();
+                }
+                return row(next++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private int index(int row, int column) {
+        if (row < 0 || row >= rows || column < 0 || column >= columns) {
+            throw new IndexOutOfBoundsException("Cell " + row + "," + column
+                    + " of " + rows + "x" + columns);
+        }
+        return row * columns + column;
+    }
+
+    // the cells of a block as the office takes them
+    Object[][] toDataArray(int row, int rowCount, int column, int columnCount) {
+        Object[][] data = new Object[rowCount][columnCount];
+        for (int r = 0; r < rowCount; r++) {
+            int i = (row + r) * columns + column;
+            for (int c = 0; c < columnCount; c++, i++) {
+                data[r][c] = texts[i] == null ? (Object) numbers[i] : texts[i];
+            }
+        }
+        return data;
+    }
+
+    String[][] toFormulaArray(int row, int rowCount, int column, int columnCount) {
+        String[][] data = new String[rowCount][columnCount];
+        for (int r = 0; r < rowCount; r++) {
+            int i = (row + r) * columns + column;
+            for (int c = 0; c < columnCount; c++, i++) {
+                data[r][c] = texts[i] == null ? Double.toString(numbers[i]) : texts[i];
+            }
+        }
+        return data;
+    }
+
+    // the first and last changed column of a row, -1 if none changed
+    int firstChanged(int row) {
+        int i = changed.nextSetBit(row * columns);
+        return i < 0 || i >= (row + 1) * columns ? -1 : i - row * columns;
+    }
+
+    int lastChanged(int row) {
+        int i = changed.previousSetBit((row + 1) * columns - 1);
+        return i < row * columns ? -1 : i - row * columns;
+    }
+
+    boolean isChanged(int row, int column, int columnCount) {
+        int i = changed.nextSetBit(row * columns + column);
+        return i >= 0 && i < row * columns + column + columnCount;
+    }
+
+    // a formula read as its value is kept unless the script set the cell
+    boolean isKept(int row, int column) {
+        int i = row * columns + column;
+        return formulaCells.get(i) && !changed.get(i);
+    }
+
+    boolean hasKept(int row, int rowCount, int column, int columnCount) {
+        for (int r = row; r < row + rowCount; r++) {
+            int i = formulaCells.nextSetBit(r * columns + column);
+            while (i >= 0 && i < r * columns + column + columnCount) {
+                if (!changed.get(i)) {
+                    return true;
+                }
+                i = formulaCells.nextSetBit(i + 1);
+            }
+        }
+        return false;
+    }
+
+    void markFormulas(int row, int rowCount, int column, int columnCount) {
+        for (int r = Math.max(0, row); r < Math.min(rows, row + rowCount); r++) {
+            int from = Math.max(0, column);
+            int to = Math.min(columns, column + columnCount);
+            if (from < to) {
+                formulaCells.set(r * columns + from, r * columns + to);
+            }
+        }
+    }
+
+    // after writing the changed cells hold what the script set
+    void clearChanges() {
+        formulaCells.andNot(changed);
+        changed.clear();
+    }
+
+    void fromDataArray(int first, Object[][] data) {
+        for (int r = 0; r < data.length; r++) {
+            int i = (first + r) * columns;
+            for (int c = 0; c < columns; c++, i++) {
+                Object value = data[r][c];
+                if (value instanceof Number) {
+                    numbers[i] = ((Number) value).doubleValue();
+                    texts[i] = null;
+                } else {
+                    texts[i] = value == null ? "" : value.toString();
+                }
+            }
+        }
+    }
+
+    void fromFormulaArray(int first, String[][] data) {
+        for (int r = 0; r < data.length; r++) {
+            System.arraycopy(data[r], 0, texts, (first + r) * columns, columns);
+        }
+    }
+
+    // whole numbers without the fraction, like Calc shows them
+    private static String numberText(double number) {
+        if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+            return Long.toString((long) number);
+        }
+        return Double.toString(number);
+    }
+
+    public String toString() {
+        return "CalcRangeData[" + rows + "x" + columns + (formulas ? ", formulas]" : "]");
+    }
+
+    /**
+     * A row or a column of the data. Changes are made to the data.
+     */
+    public class Line {
+
+        private final int start;
+        private final int step;
+        private final int size;
+
+        Line(int start, int step, int size) {
+            this.start = start;
+            this.step = step;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public double getDouble(int i) {
+            return numbers[index(i)];
+        }
+
+        public String getString(int i) {
+            return texts[index(i)];
+        }
+
+        public Object getValue(int i) {
+            int j = index(i);
+            return texts[j] == null ? (Object) numbers[j] : texts[j];
+        }
+
+        public boolean isNumber(int i) {
+            return texts[index(i)] == null;
+        }
+
+        public void set(int i, double value) {
+            int j = index(i);
+            numbers[j] = value;
+            texts[j] = null;
+            changed.set(j);
+        }
+
+        public void set(int i, String value) {
+            int j = index(i);
+            numbers[j] = Double.NaN;
+            texts[j] = value == null ? "" : value;
+            changed.set(j);
+        }
+
+        public void set(int i, Object value) {
+            if (value instanceof Number) {
+                set(i, ((Number) value).doubleValue());
+            } else {
+                set(i, value == null ? null : value.toString());
+            }
+        }
+
+        // line[i] and line[i] = value in Groovy
+        public Object getAt(int i) {
+            return getValue(i);
+        }
+
+        public void putAt(int i, Object value) {
+            set(i, value);
+        }
+
+        /**
+         * Returns a copy of the numbers, NaN for cells without one.
+         */
+        public double[] toDoubleArray() {
+            double[] copy = new double[size];
+            for (int i = 0, j = start; i < size; i++, j += step) {
+                copy[i] = numbers[j];
+            }
+            return copy;
+        }
+
+        /**
+         * Returns a copy of the texts, numbers as text, e.g. as keys.
+         */
+        public String[] toStringArray() {
+            String[] copy = new String[size];
+            for (int i = 0, j = start; i < size; i++, j += step) {
+                copy[i] = texts[j] != null ? texts[j] : numberText(numbers[j]);
+            }
+            return copy;
+        }
+
+        /**
+         * Sets the cells to numbers.
+         */
+        public void setAll(double[] values) {
+            if (values.length != size) {
+                throw new IllegalArgumentException(values.length + " values for " + size + " cells");
+            }
+            for (int i = 0, j = start; i < size; i++, j += step) {
+                numbers[j] = values[i];
+                texts[j] = null;
+                changed.set(j);
+            }
+        }
+
+        private int index(int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("Cell " + i + " of " + size);
+            }
+            return start + i * step;
+        }
+    }
+}
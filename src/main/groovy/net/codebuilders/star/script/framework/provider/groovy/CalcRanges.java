@@ -0,0 +1,350 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.beans.XPropertySet;
+import com.sun.star.container.XIndexAccess;
+import com.sun.star.frame.XModel;
+import com.sun.star.lang.IndexOutOfBoundsException;
+import com.sun.star.script.provider.XScriptContext;
+import com.sun.star.sheet.CellFlags;
+import com.sun.star.sheet.XCellRangeAddressable;
+import com.sun.star.sheet.XCellRangeData;
+import com.sun.star.sheet.XCellRangeFormula;
+import com.sun.star.sheet.XCellRangeReferrer;
+import com.sun.star.sheet.XCellRangesQuery;
+import com.sun.star.sheet.XNamedRanges;
+import com.sun.star.sheet.XSheetCellCursor;
+import com.sun.star.sheet.XSpreadsheet;
+import com.sun.star.sheet.XSpreadsheetDocument;
+import com.sun.star.sheet.XUsedAreaCursor;
+import com.sun.star.table.CellRangeAddress;
+import com.sun.star.table.XCellRange;
+import com.sun.star.uno.UnoRuntime;
+import groovy.lang.Binding;
+
+/**
+ * Moves whole cell ranges of a Calc document between the office and the
+ * script, bound as {@code CALC} next to XSCRIPTCONTEXT.
+ * <p>
+ * Every {@code getCellByPosition} and {@code setValue} is a call into the
+ * office, and a slow one over a remote connection. {@link #read} gets the
+ * contents of a range with {@code XCellRangeData} and {@link #write} puts
+ * them back the same way, {@link #readFormulas} uses
+ * {@code XCellRangeFormula}. A macro looping over every cell makes one
+ * call each way, and writes back only the cells it changed:
+ * <pre>
+ * def data = CALC.read(CALC.usedRange("Sheet1"))
+ * for (row in data) {
+ *     if (row.isNumber(0)) row[0] = row.getDouble(0) * 1.19
+ * }
+ * CALC.write(data)
+ * </pre>
+ * Large ranges are moved in blocks of at most
+ * {@code net.codebuilders.groovy.calc.chunk} cells, 65536 by default, so
+ * a single call does not have to carry the whole range.
+ * <p>
+ * A range read as values knows which of its cells hold formulas. Writing
+ * it back leaves those formulas alone unless the script set the cell.
+ */
+public class CalcRanges {
+
+    public static final String CHUNK_PROPERTY = "net.codebuilders.groovy.calc.chunk";
+
+    public static final String BINDING_NAME = "CALC";
+
+    private static final int DEFAULT_CHUNK = 65536;
+
+    private final XScriptContext context;
+    private final int chunk;
+
+    public CalcRanges(XScriptContext context) {
+        this(context, Integer.getInteger(CHUNK_PROPERTY, DEFAULT_CHUNK));
+    }
+
+    public CalcRanges(XScriptContext context, int chunk) {
+        this.context = context;
+        this.chunk = Math.max(1, chunk);
+    }
+
+    /**
+     * Puts the helper of a run into its Binding, the document is only
+     * looked at when the script uses it.
+     *
+     * @param binding The Binding of the run
+     * @param context The XSCRIPTCONTEXT of the run
+     */
+    public static void bind(Binding binding, XScriptContext context) {
+        binding.setProperty(BINDING_NAME, new CalcRanges(context));
+    }
+
+    /**
+     * Returns a sheet of the document by name.
+     *
+     * @throws IllegalArgumentException If there is no such sheet
+     */
+    public XSpreadsheet sheet(String name) {
+        try {
+            return UnoRuntime.queryInterface(XSpreadsheet.class, getDocument().getSheets().getByName(name));
+        } catch (com.sun.star.container.NoSuchElementException nse) {
+            throw new IllegalArgumentException("The document has no sheet " + name);
+        } catch (com.sun.star.lang.WrappedTargetException wte) {
+            throw new IllegalStateException("Failed to get sheet " + name + ": " + wte.getMessage());
+        }
+    }
+
+    /**
+     * Returns a sheet of the document by position, the first is 0.
+     *
+     * @throws IllegalArgumentException If there is no such sheet
+     */
+    public XSpreadsheet sheet(int index) {
+        XIndexAccess sheets = UnoRuntime.queryInterface(XIndexAccess.class, getDocument().getSheets());
+        try {
+            return UnoRuntime.queryInterface(XSpreadsheet.class, sheets.getByIndex(index));
+        } catch (IndexOutOfBoundsException ioobe) {
+            throw new IllegalArgumentException("The document has no sheet " + index);
+        } catch (com.sun.star.lang.WrappedTargetException wte) {
+            throw new IllegalStateException("Failed to get sheet " + index + ": " + wte.getMessage());
+        }
+    }
+
+    /**
+     * Returns a range of a sheet by address, e.g. {@code "A1:D100"}.
+     */
+    public XCellRange range(String sheet, String address) {
+        return sheet(sheet).getCellRangeByName(address);
+    }
+
+    /**
+     * Returns the cells a named range of the document refers to.
+     *
+     * @throws IllegalArgumentException If there is no such named range or
+     *                                  it does not refer to cells
+     */
+    public XCellRange namedRange(String name) {
+        XPropertySet properties = UnoRuntime.queryInterface(XPropertySet.class, getDocument());
+        XCellRangeReferrer referrer;
+        try {
+            XNamedRanges ranges = UnoRuntime.queryInterface(XNamedRanges.class,
+                    properties.getPropertyValue("NamedRanges"));
+            referrer = UnoRuntime.queryInterface(XCellRangeReferrer.class, ranges.getByName(name));
+        } catch (com.sun.star.container.NoSuchElementException nse) {
+            throw new IllegalArgumentException("The document has no named range " + name);
+        } catch (com.sun.star.beans.UnknownPropertyException upe) {
+            throw new IllegalStateException("The document has no named ranges");
+        } catch (com.sun.star.lang.WrappedTargetException wte) {
+            throw new IllegalStateException("Failed to get named range " + name + ": " + wte.getMessage());
+        }
+        XCellRange cells = referrer == null ? null : referrer.getReferredCells();
+        if (cells == null) {
+            throw new IllegalArgumentException("Named range " + name + " does not refer to cells");
+        }
+        return cells;
+    }
+
+    /**
+     * Returns the range from A1 to the last cell with content of a sheet.
+     */
+    public XCellRange usedRange(String sheet) {
+        return usedRange(sheet(sheet));
+    }
+
+    public XCellRange usedRange(XSpreadsheet sheet) {
+        ScriptParallel.checkCaller(BINDING_NAME);
+        XSheetCellCursor cursor = sheet.createCursor();
+        XUsedAreaCursor used = UnoRuntime.queryInterface(XUsedAreaCursor.class, cursor);
+        used.gotoEndOfUsedArea(false);
+        CellRangeAddress end = UnoRuntime.queryInterface(XCellRangeAddressable.class, cursor)
+                .getRangeAddress();
+        try {
+            return sheet.getCellRangeByPosition(0, 0, end.EndColumn, end.EndRow);
+        } catch (IndexOutOfBoundsException ioobe) {
+            throw new IllegalStateException("Failed to get the used range: " + ioobe.getMessage());
+        }
+    }
+
+    /**
+     * Reads the values of a range of a sheet, e.g. {@code "A1:D100"}.
+     */
+    public CalcRangeData read(String sheet, String address) {
+        return read(range(sheet, address));
+    }
+
+    /**
+     * Reads the values of a range, numbers and texts.
+     */
+    public CalcRangeData read(XCellRange range) {
+        ScriptParallel.checkCaller(BINDING_NAME);
+        CellRangeAddress address = address(range);
+        CalcRangeData data = create(range, address, false);
+        int step = rowsPerChunk(data);
+        for (int first = 0; first < data.getRows(); first += step) {
+            int count = Math.min(step, data.getRows() - first);
+            XCellRangeData cells = UnoRuntime.queryInterface(XCellRangeData.class,
+                    block(data, first, count, 0, data.getColumns()));
+            data.fromDataArray(first, cells.getDataArray());
+        }
+
+        // one more call finds the formulas a write must not replace by their values
+        XCellRangesQuery query = UnoRuntime.queryInterface(XCellRangesQuery.class, range);
+        if (query != null) {
+            for (CellRangeAddress formulas : query.queryContentCells((short) CellFlags.FORMULA)
+                    .getRangeAddresses()) {
+                data.markFormulas(formulas.StartRow - address.StartRow,
+                        formulas.EndRow - formulas.StartRow + 1,
+                        formulas.StartColumn - address.StartColumn,
+                        formulas.EndColumn - formulas.StartColumn + 1);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Reads the formulas of a range of a sheet, e.g. {@code "A1:D100"}.
+     */
+    public CalcRangeData readFormulas(String sheet, String address) {
+        return readFormulas(range(sheet, address));
+    }
+
+    /**
+     * Reads the formulas of a range, cells without a formula hold the
+     * text of their constant.
+     */
+    public CalcRangeData readFormulas(XCellRange range) {
+        ScriptParallel.checkCaller(BINDING_NAME);
+        CalcRangeData data = create(range, address(range), true);
+        int step = rowsPerChunk(data);
+        for (int first = 0; first < data.getRows(); first += step) {
+            int count = Math.min(step, data.getRows() - first);
+            XCellRangeFormula cells = UnoRuntime.queryInterface(XCellRangeFormula.class,
+                    block(data, first, count, 0, data.getColumns()));
+            data.fromFormulaArray(first, cells.getFormulaArray());
+        }
+        return data;
+    }
+
+    /**
+     * Writes the cells changed since the data was read or last written
+     * back to the range it was read from. Consecutive changed rows are
+     * written as one block spanning their changed columns, as long as the
+     * block fits in a chunk and holds no formula to keep.
+     */
+    public void write(CalcRangeData data) {
+        ScriptParallel.checkCaller(BINDING_NAME);
+        int row = 0;
+        while (row < data.getRows()) {
+            int column = data.firstChanged(row);
+            if (column < 0) {
+                row++;
+                continue;
+            }
+            int last = data.lastChanged(row);
+            if (data.hasKept(row, 1, column, last - column + 1)) {
+                writeAround(data, row, column, last - column + 1);
+                row++;
+                continue;
+            }
+
+            int start = row;
+            for (row++; row < data.getRows(); row++) {
+                int nextColumn = data.firstChanged(row);
+                if (nextColumn < 0) {
+                    break;
+                }
+                int from = Math.min(column, nextColumn);
+                int to = Math.max(last, data.lastChanged(row));
+                if ((row - start + 1) * (to - from + 1) > chunk
+                        || data.hasKept(start, row - start + 1, from, to - from + 1)) {
+                    break;
+                }
+                column = from;
+                last = to;
+            }
+            write(data, start, row - start, column, last - column + 1);
+        }
+        data.clearChanges();
+    }
+
+    // a row is written in pieces between the formulas to keep
+    private void writeAround(CalcRangeData data, int row, int column, int columnCount) {
+        int c = column;
+        while (c < column + columnCount) {
+            while (c < column + columnCount && data.isKept(row, c)) {
+                c++;
+            }
+            int from = c;
+            while (c < column + columnCount && !data.isKept(row, c)) {
+                c++;
+            }
+            if (c > from && data.isChanged(row, from, c - from)) {
+                write(data, row, 1, from, c - from);
+            }
+        }
+    }
+
+    private void write(CalcRangeData data, int row, int rowCount, int column, int columnCount) {
+        XCellRange block = block(data, row, rowCount, column, columnCount);
+        if (data.isFormulas()) {
+            UnoRuntime.queryInterface(XCellRangeFormula.class, block)
+                    .setFormulaArray(data.toFormulaArray(row, rowCount, column, columnCount));
+        } else {
+            UnoRuntime.queryInterface(XCellRangeData.class, block)
+                    .setDataArray(data.toDataArray(row, rowCount, column, columnCount));
+        }
+    }
+
+    private XSpreadsheetDocument getDocument() {
+        ScriptParallel.checkCaller(BINDING_NAME);
+        XModel document = context == null ? null : context.getDocument();
+        XSpreadsheetDocument calc = UnoRuntime.queryInterface(XSpreadsheetDocument.class, document);
+        if (calc == null) {
+            throw new IllegalStateException("The script does not run for a spreadsheet");
+        }
+        return calc;
+    }
+
+    private static CellRangeAddress address(XCellRange range) {
+        return UnoRuntime.queryInterface(XCellRangeAddressable.class, range).getRangeAddress();
+    }
+
+    private static CalcRangeData create(XCellRange range, CellRangeAddress address, boolean formulas) {
+        return new CalcRangeData(range, address.EndRow - address.StartRow + 1,
+                address.EndColumn - address.StartColumn + 1, formulas);
+    }
+
+    private int rowsPerChunk(CalcRangeData data) {
+        return Math.max(1, chunk / Math.max(1, data.getColumns()));
+    }
+
+    // the whole range if the block covers it, saving the call for the sub range
+    private static XCellRange block(CalcRangeData data, int row, int rowCount,
+                                    int column, int columnCount) {
+        if (row == 0 && rowCount == data.getRows() && column == 0 && columnCount == data.getColumns()) {
+            return data.getRange();
+        }
+        try {
+            return data.getRange().getCellRangeByPosition(column, row,
+                    column + columnCount - 1, row + rowCount - 1);
+        } catch (IndexOutOfBoundsException ioobe) {
+            throw new IllegalStateException("Failed to get rows " + row + " to "
+                    + (row + rowCount - 1) + ": " + ioobe.getMessage());
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.transform.CompileStatic;
+import groovy.transform.ThreadInterrupt;
+import groovy.transform.TypeChecked;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.ErrorCollector;
+import org.codehaus.groovy.control.MultipleCompilationErrorsException;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.control.SourceUnit;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.codehaus.groovy.control.messages.ExceptionMessage;
+import org.codehaus.groovy.control.messages.SyntaxErrorMessage;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.codehaus.groovy.syntax.SyntaxException;
+import org.codehaus.groovy.tools.GroovyClass;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bytecode of a compiled Groovy script together with the classes
+ * defined from it.
+ * <p>
+ * A script compiles to its main class plus one class for each closure
+ * or class declared in it. All of them are defined in a class loader of
+ * their own below the parcel's GroovyClassLoader, so a recompiled script
+ * never clashes with an older version and is unloaded with its entry.
+ * <p>
+ * Groovy keeps the metaclass of every class that ran. {@link #release()}
+ * drops them once the script is no longer cached, otherwise they hold on
+ * to the metaclass registry entries of classes that are never used
+ * again.
+ */
+public class CompiledScript {
+
+    // classes defined by all ScriptClassLoaders so far
+    private static final AtomicLong classesDefined = new AtomicLong();
+    private static final AtomicLong classesReleased = new AtomicLong();
+
+    private final String mainClassName;
+    private final Map<String, byte[]> classes;
+    private final Class<?> scriptClass;
+    private final ScriptClassLoader loader;
+    private List<String> diagnostics = Collections.emptyList();
+
+    /**
+     * Defines previously compiled classes of a script.
+     *
+     * @param mainClassName The name of the class to run
+     * @param classes       The bytecode of all classes of the script
+     * @param parent        The parcel class loader the script runs in
+     * @throws ClassNotFoundException If the main class is not part of the classes
+     */
+    public CompiledScript(String mainClassName, Map<String, byte[]> classes,
+                          ClassLoader parent) throws ClassNotFoundException {
+        this.mainClassName = mainClassName;
+        this.classes = Collections.unmodifiableMap(new LinkedHashMap<String, byte[]>(classes));
+        this.loader = new ScriptClassLoader(parent, this.classes);
+        this.scriptClass = loader.loadClass(mainClassName);
+    }
+
+    /**
+     * Compiles a Groovy script dynamically.
+     *
+     * @param source    The script source
+     * @param className The class name to compile the script as
+     * @param loader    The parcel class loader used to resolve classes
+     * @return The compiled script
+     * @throws CompilationFailedException If the script has errors
+     */
+    public static CompiledScript compile(String source, String className,
+                                         GroovyClassLoader loader)
+            throws CompilationFailedException {
+        return compile(source, className, loader, newConfiguration());
+    }
+
+    /**
+     * Compiles a Groovy script in the compile mode of its options.
+     * <p>
+     * A script that fails to type check in static or typechecked mode is
+     * compiled dynamically instead. The lines that failed are reported
+     * and available from {@link #getDiagnostics()}, a failing run of the
+     * script reports them with its error.
+     *
+     * @param source    The script source
+     * @param className The class name to compile the script as
+     * @param loader    The parcel class loader used to resolve classes
+     * @param options   The options of the script
+     * @return The compiled script
+     * @throws CompilationFailedException If the script has errors
+     */
+    public static CompiledScript compile(String source, String className,
+                                         GroovyClassLoader loader, ScriptOptions options)
+            throws CompilationFailedException {
+
+        String mode = options.getCompileMode();
+        if (mode.equals(ScriptOptions.COMPILE_DYNAMIC)) {
+            return compile(source, className, loader);
+        }
+
+        CompilerConfiguration config = newConfiguration();
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("extensions",
+                Collections.singletonList(ScriptBindingExtension.class.getName()));
+        config.addCompilationCustomizers(new ASTTransformationCustomizer(params,
+                mode.equals(ScriptOptions.COMPILE_STATIC) ? CompileStatic.class : TypeChecked.class));
+
+        try {
+            return compile(source, className, loader, config);
+        } catch (CompilationFailedException typeCheckFailed) {
+            // a syntax error fails again here and is reported as usual
+            CompiledScript script = compile(source, className, loader);
+
+            List<String> diagnostics = describe(typeCheckFailed);
+            StringBuilder buf = new StringBuilder();
+            buf.append("Compiling ").append(className).append(" with compile = ")
+                    .append(mode).append(" failed, running it dynamically instead:");
+            for (String line : diagnostics) {
+                buf.append("\n    ").append(line);
+            }
+            System.err.println(buf);
+
+            script.diagnostics = diagnostics;
+            return script;
+        }
+    }
+
+    /**
+     * Compiles a Groovy script dynamically and reports every finished
+     * compile phase. The callback may stop the compilation by throwing.
+     *
+     * @param source    The script source
+     * @param className The class name to compile the script as
+     * @param loader    The parcel class loader used to resolve classes
+     * @param progress  Called after each phase
+     * @return The compiled script
+     * @throws CompilationFailedException If the script has errors
+     */
+    static CompiledScript compile(String source, String className, GroovyClassLoader loader,
+                                  CompilationUnit.ProgressCallback progress)
+            throws CompilationFailedException {
+        return compile(source, className, loader, newConfiguration(), progress);
+    }
+
+    private static CompiledScript compile(String source, String className,
+                                          GroovyClassLoader loader, CompilerConfiguration config)
+            throws CompilationFailedException {
+        return compile(source, className, loader, config, null);
+    }
+
+    // loops, closures and methods check the interrupt flag so ScriptLimits can stop the script
+    private static CompilerConfiguration newConfiguration() {
+        CompilerConfiguration config = new CompilerConfiguration();
+        config.addCompilationCustomizers(new ASTTransformationCustomizer(ThreadInterrupt.class));
+        return config;
+    }
+
+    private static CompiledScript compile(String source, String className,
+                                          GroovyClassLoader loader, CompilerConfiguration config,
+                                          CompilationUnit.ProgressCallback progress)
+            throws CompilationFailedException {
+
+        CompilationUnit unit = new CompilationUnit(config, null, loader);
+        if (progress != null) {
+            unit.setProgressCallback(progress);
+        }
+        SourceUnit sourceUnit = unit.addSource(className + ".groovy", source);
+        unit.compile(Phases.CLASS_GENERATION);
+
+        Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+        for (GroovyClass groovyClass : unit.getClasses()) {
+            classes.put(groovyClass.getName(), groovyClass.getBytes());
+        }
+
+        // a source without statements runs its first class like GroovyShell does
+        String mainClassName = sourceUnit.getAST().getMainClassName();
+        if (mainClassName == null) {
+            mainClassName = unit.getFirstClassNode().getName();
+        }
+
+        try {
+            return new CompiledScript(mainClassName, classes, loader);
+        } catch (ClassNotFoundException cnf) {
+            throw new IllegalStateException(
+                    "Compiled script has no class " + mainClassName, cnf);
+        }
+    }
+
+    public String getMainClassName() {
+        return mainClassName;
+    }
+
+    /**
+     * Returns the bytecode of every class of the script keyed by class name.
+     */
+    public Map<String, byte[]> getClasses() {
+        return classes;
+    }
+
+    /**
+     * Returns why the script was compiled dynamically although its
+     * options asked for static compilation or type checking, one
+     * entry per failed line.
+     */
+    public List<String> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Returns the class to create script instances from.
+     */
+    public Class<?> getScriptClass() {
+        return scriptClass;
+    }
+
+    /**
+     * Returns true if the script was compiled against a parcel loader.
+     */
+    boolean isCompiledFor(ClassLoader parcelLoader) {
+        return loader.getParent() == parcelLoader;
+    }
+
+    /**
+     * Returns the number of script classes defined since startup.
+     */
+    public static long getClassesDefined() {
+        return classesDefined.get();
+    }
+
+    /**
+     * Returns the number of script classes released since startup.
+     */
+    public static long getClassesReleased() {
+        return classesReleased.get();
+    }
+
+    /**
+     * Drops what Groovy keeps for the classes of this script. Called when
+     * the script is no longer cached, a run still in progress goes on and
+     * a later run creates the metaclasses again.
+     */
+    public void release() {
+        for (Class<?> c : loader.release()) {
+            release(c);
+        }
+    }
+
+    /**
+     * Drops the metaclass and class info Groovy keeps for a script class.
+     *
+     * @param c A class compiled from a script
+     */
+    public static void release(Class<?> c) {
+        InvokerHelper.removeClass(c);
+        classesReleased.incrementAndGet();
+    }
+
+    /**
+     * Returns the compiler errors of a failed compilation as
+     * "line n: message" strings.
+     *
+     * @param e The failed compilation
+     * @return One entry per error
+     */
+    public static List<String> describe(CompilationFailedException e) {
+        List<String> lines = new ArrayList<String>();
+        if (e instanceof MultipleCompilationErrorsException) {
+            ErrorCollector collector = ((MultipleCompilationErrorsException) e).getErrorCollector();
+            for (Object error : collector.getErrors()) {
+                if (error instanceof SyntaxErrorMessage) {
+                    SyntaxException cause = ((SyntaxErrorMessage) error).getCause();
+                    lines.add("line " + cause.getLine() + ": " + cause.getOriginalMessage());
+                } else if (error instanceof ExceptionMessage) {
+                    lines.add(((ExceptionMessage) error).getCause().toString());
+                }
+            }
+        }
+        if (lines.isEmpty()) {
+            lines.add(e.getMessage());
+        }
+        return lines;
+    }
+
+    private static class ScriptClassLoader extends ClassLoader {
+
+        private final Map<String, byte[]> classes;
+        private List<Class<?>> defined = new ArrayList<Class<?>>();
+
+        ScriptClassLoader(ClassLoader parent, Map<String, byte[]> classes) {
+            super(parent);
+            this.classes = classes;
+        }
+
+        protected Class<?> loadClass(String name, boolean resolve)
+                throws ClassNotFoundException {
+            // classes of the script itself are never taken from the parent
+            if (!classes.containsKey(name)) {
+                return super.loadClass(name, resolve);
+            }
+
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    c = findClass(name);
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            }
+        }
+
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classes.get(name);
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            Class<?> c = defineClass(name, bytes, 0, bytes.length);
+            classesDefined.incrementAndGet();
+            synchronized (this) {
+                if (defined != null) {
+                    defined.add(c);
+                }
+            }
+            return c;
+        }
+
+        // returns the classes defined so far, once
+        synchronized List<Class<?>> release() {
+            List<Class<?>> released = defined == null ? Collections.<Class<?>>emptyList() : defined;
+            defined = null;
+            return released;
+        }
+    }
+}
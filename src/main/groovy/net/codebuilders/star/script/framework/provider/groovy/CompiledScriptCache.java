@@ -0,0 +1,448 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.uno.XComponentContext;
+import groovy.lang.GroovyClassLoader;
+import org.codehaus.groovy.control.CompilationFailedException;
+
+import java.lang.management.MemoryPoolMXBean;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Provider wide cache of compiled Groovy scripts.
+ * <p>
+ * Entries are keyed by the source URL of the script and are only
+ * returned while the hash of the source they were compiled from still
+ * matches. The cache is bounded and evicts the least recently used
+ * entry once it is full.
+ * <p>
+ * The classes of a script are released when its entry is evicted,
+ * removed or replaced, see {@link CompiledScript#release()}. When the
+ * system property {@code net.codebuilders.groovy.cache.metaspace} sets a
+ * budget, e.g. 256m, and the JVM uses more Metaspace than that, the least
+ * recently used quarter of the scripts is evicted as well. It happens
+ * again only after a full garbage collection had the chance to unload
+ * them.
+ */
+public class CompiledScriptCache {
+
+    // system property to change the number of compiled scripts kept
+    public static final String MAX_ENTRIES_PROPERTY = "net.codebuilders.groovy.cache.size";
+
+    // system property for the Metaspace use in bytes above which scripts are evicted
+    public static final String METASPACE_BUDGET_PROPERTY = "net.codebuilders.groovy.cache.metaspace";
+
+    private static final int DEFAULT_MAX_ENTRIES = 64;
+
+    // global CompiledScriptCache returned for getCache() calls
+    private static volatile CompiledScriptCache theCompiledScriptCache;
+
+    private final int maxEntries;
+    private final long metaspaceBudget;
+    private final Map<String, CacheEntry> entries;
+
+    // the compilation running per key, other threads wait for it
+    private final ConcurrentHashMap<String, FutureTask<CompiledScript>> compiling =
+            new ConcurrentHashMap<String, FutureTask<CompiledScript>>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long budgetEvictions = 0;
+    private long collectionsAtTrim = -1;
+
+    /**
+     * Returns the global CompiledScriptCache instance.
+     */
+    public static CompiledScriptCache getCache() {
+        if (theCompiledScriptCache == null) {
+            synchronized (CompiledScriptCache.class) {
+                if (theCompiledScriptCache == null) {
+                    theCompiledScriptCache = new CompiledScriptCache(
+                            Integer.getInteger(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES),
+                            ScriptLimits.parse(METASPACE_BUDGET_PROPERTY,
+                                    System.getProperty(METASPACE_BUDGET_PROPERTY)));
+                }
+            }
+        }
+        return theCompiledScriptCache;
+    }
+
+    public CompiledScriptCache(int maxEntries) {
+        this(maxEntries, 0);
+    }
+
+    /**
+     * @param maxEntries      The number of scripts kept
+     * @param metaspaceBudget The Metaspace use in bytes above which
+     *                        scripts are evicted, 0 for none
+     */
+    public CompiledScriptCache(int maxEntries, long metaspaceBudget) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.metaspaceBudget = metaspaceBudget;
+        // access ordered so the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                if (size() > CompiledScriptCache.this.maxEntries) {
+                    evictions++;
+                    eldest.getValue().script.release();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the compiled script.
+     *
+     * @param key        The source URL of the script
+     * @param sourceHash The hash of the current script source
+     * @return The compiled script if one was cached for the same
+     * source, otherwise null.
+     */
+    public synchronized CompiledScript get(String key, String sourceHash) {
+        CacheEntry entry = entries.get(key);
+        if (entry != null && entry.sourceHash.equals(sourceHash)) {
+            hits++;
+            return entry.script;
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Get the compiled script, loading it from the {@link BytecodeCache}
+     * or compiling it when the cache has no entry for this source. Only
+     * one thread compiles a script at a time, the others wait and use its
+     * result.
+     *
+     * @param key            The source URL of the script
+     * @param parcelLocation The location of the parcel the script belongs to
+     * @param source         The current script source
+     * @param sourceHash     The hash of the source as returned by {@link #hash(String)}
+     * @param options        The options of the script
+     * @param loader         The pooled class loader of the parcel
+     * @param context        The component context, may be null
+     * @return The compiled script
+     * @throws CompilationFailedException If the script has errors
+     */
+    public CompiledScript getOrCompile(final String key, final String parcelLocation,
+                                       final String source, String sourceHash, final ScriptOptions options,
+                                       final GroovyClassLoader loader, final XComponentContext context)
+            throws CompilationFailedException {
+
+        // the same source compiled statically is a different entry
+        final String compileHash = sourceHash + "/" + options.getCompileKey();
+
+        while (true) {
+            // a script of a parcel with another class path than before gets another loader
+            CompiledScript compiled = get(key, compileHash);
+            if (compiled != null && compiled.isCompiledFor(loader)) {
+                return compiled;
+            }
+
+            FutureTask<CompiledScript> task = new FutureTask<CompiledScript>(new Callable<CompiledScript>() {
+                public CompiledScript call() {
+                    return loadOrCompile(key, parcelLocation, source, compileHash, options,
+                            loader, context);
+                }
+            });
+            FutureTask<CompiledScript> running = compiling.putIfAbsent(key, task);
+            if (running == null) {
+                try {
+                    task.run();
+                } finally {
+                    compiling.remove(key, task);
+                }
+                return result(task);
+            }
+
+            // the script is compiled by another thread, its result may be
+            // for another source or loader so the cache is asked again
+            awaitUninterruptibly(running);
+        }
+    }
+
+    private CompiledScript loadOrCompile(String key, String parcelLocation,
+                                         String source, String sourceHash, ScriptOptions options,
+                                         GroovyClassLoader loader, XComponentContext context) {
+        CompiledScript compiled = null;
+        ScriptLibrary library = loader instanceof ScriptLibrary ? (ScriptLibrary) loader : null;
+
+        // after a restart the classes may still be on disk, if the jars they were compiled against are
+        BytecodeCache diskCache = BytecodeCache.getCache(context);
+        String diskHash = library == null ? sourceHash
+                : sourceHash + "/" + Long.toHexString(library.getClassPathStamp());
+        if (diskCache != null) {
+            compiled = diskCache.load(key, diskHash, loader);
+        }
+
+        if (compiled == null) {
+            boolean usesLibrary = false;
+            if (library != null) {
+                library.beginUnit(key);
+            }
+            try {
+                compiled = CompiledScript.compile(source, className(key), loader, options);
+            } finally {
+                if (library != null) {
+                    usesLibrary = library.endUnit(key);
+                }
+            }
+            // library scripts are compiled per process, a script using them is not stored
+            if (diskCache != null && !usesLibrary) {
+                diskCache.store(key, diskHash, compiled);
+            }
+        }
+
+        put(key, parcelLocation, sourceHash, compiled);
+        return compiled;
+    }
+
+    private static CompiledScript result(FutureTask<CompiledScript> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            // the task has run on this thread, get does not block
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static void awaitUninterruptibly(FutureTask<CompiledScript> task) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                task.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                // the thread compiling reports its own failure
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stores a compiled script replacing any version compiled from
+     * an older source.
+     *
+     * @param key            The source URL of the script
+     * @param parcelLocation The location of the parcel the script belongs to
+     * @param sourceHash     The hash of the source the script was compiled from
+     * @param script         The compiled script
+     */
+    public synchronized void put(String key, String parcelLocation, String sourceHash,
+                                 CompiledScript script) {
+        CacheEntry replaced = entries.put(key, new CacheEntry(parcelLocation, sourceHash, script));
+        if (replaced != null && replaced.script != script) {
+            replaced.script.release();
+        }
+        if (metaspaceBudget > 0) {
+            trimToBudget();
+        }
+    }
+
+    /**
+     * Removes a compiled script.
+     *
+     * @param key The source URL of the script
+     */
+    public synchronized void remove(String key) {
+        CacheEntry removed = entries.remove(key);
+        if (removed != null) {
+            removed.script.release();
+        }
+    }
+
+    /**
+     * Removes the compiled scripts of a parcel.
+     *
+     * @param parcelLocation The location of the parcel
+     */
+    public synchronized void removeAll(String parcelLocation) {
+        Iterator<CacheEntry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            CacheEntry entry = it.next();
+            if (parcelLocation.equals(entry.parcelLocation)) {
+                it.remove();
+                entry.script.release();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        List<CacheEntry> removed = new ArrayList<CacheEntry>(entries.values());
+        entries.clear();
+        for (CacheEntry entry : removed) {
+            entry.script.release();
+        }
+    }
+
+    // evicts the least recently used quarter, the newest entry is kept
+    private void trimToBudget() {
+        MemoryPoolMXBean metaspace = ScriptMetrics.metaspace();
+        if (metaspace == null || metaspace.getUsage().getUsed() <= metaspaceBudget) {
+            return;
+        }
+        // until a full collection ran the evicted classes are still counted
+        long collections = ScriptMetrics.fullCollectionCount();
+        if (collections == collectionsAtTrim) {
+            return;
+        }
+        collectionsAtTrim = collections;
+
+        int count = Math.max(1, entries.size() / 4);
+        Iterator<CacheEntry> it = entries.values().iterator();
+        while (count-- > 0 && entries.size() > 1) {
+            CacheEntry entry = it.next();
+            it.remove();
+            entry.script.release();
+            evictions++;
+            budgetEvictions++;
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Returns the evictions because the Metaspace budget was exceeded,
+     * they are included in {@link #getEvictions()}.
+     */
+    public synchronized long getBudgetEvictions() {
+        return budgetEvictions;
+    }
+
+    public long getMetaspaceBudget() {
+        return metaspaceBudget;
+    }
+
+    public synchronized String toString() {
+        return "CompiledScriptCache[size=" + entries.size() + "/" + maxEntries
+                + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + "]";
+    }
+
+    /**
+     * Returns a hex encoded SHA-256 hash of the script source.
+     *
+     * @param source The script source
+     * @return The hash used to detect changed sources
+     */
+    public static String hash(String source) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] digest = md.digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder buf = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                buf.append(Character.forDigit((b >> 4) & 0xf, 16));
+                buf.append(Character.forDigit(b & 0xf, 16));
+            }
+            return buf.toString();
+        } catch (NoSuchAlgorithmException nsa) {
+            // every JRE has to provide SHA-256, fall back to the string hash anyway
+            return source.length() + ":" + source.hashCode();
+        }
+    }
+
+    /**
+     * Returns a valid class name for the script at the given location
+     * so stack traces point at the script file.
+     *
+     * @param location The source URL or path of the script
+     * @return The class name to compile the script as
+     */
+    public static String className(String location) {
+        String name = location;
+        int slash = name.lastIndexOf('/');
+        if (slash != -1) {
+            name = name.substring(slash + 1);
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+
+        StringBuilder buf = new StringBuilder(name.length() + 1);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            buf.append(Character.isJavaIdentifierPart(c) && c != '$' ? c : '_');
+        }
+        if (buf.length() == 0 || !Character.isJavaIdentifierStart(buf.charAt(0))) {
+            buf.insert(0, '_');
+        }
+        return buf.toString();
+    }
+
+    private static class CacheEntry {
+        private final String parcelLocation;
+        private final String sourceHash;
+        private final CompiledScript script;
+
+        CacheEntry(String parcelLocation, String sourceHash, CompiledScript script) {
+            this.parcelLocation = parcelLocation;
+            this.sourceHash = sourceHash;
+            this.script = script;
+        }
+    }
+}
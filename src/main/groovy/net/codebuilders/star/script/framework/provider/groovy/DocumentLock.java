@@ -0,0 +1,163 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.document.XActionLockable;
+import com.sun.star.document.XUndoManager;
+import com.sun.star.document.XUndoManagerSupplier;
+import com.sun.star.frame.XModel;
+import com.sun.star.sheet.XCalculatable;
+import com.sun.star.uno.UnoRuntime;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Runs a script that changes its document with the document locked.
+ * <p>
+ * Every change made to a document shown in a window is painted and laid
+ * out at once, which makes scripts writing thousands of cells or
+ * paragraphs many times slower. With the option
+ * <pre>
+ * //# lock = true
+ * </pre>
+ * the controllers of the document are locked while the script runs, and
+ * for a spreadsheet the document is action locked and automatic
+ * calculation is suspended as well. All changes of the run are one undo
+ * action named after the script. Whatever was locked or suspended is
+ * restored when the run ends, also when it fails or is stopped.
+ * <p>
+ * Runs may be nested, an inner run leaves calculation to the outer one.
+ */
+public class DocumentLock {
+
+    private final XModel document;
+    private final String title;
+
+    private XUndoManager undoManager;
+    private boolean controllersLocked = false;
+    private XActionLockable actionLockable;
+    private XCalculatable calculatable;
+
+    private DocumentLock(XModel document, String title) {
+        this.document = document;
+        this.title = title;
+    }
+
+    /**
+     * Wraps a run of a script so it runs with its document locked if its
+     * options ask for it.
+     *
+     * @param options  The options of the script
+     * @param document The document the script runs for, may be null
+     * @param name     The name or URL of the script, names the undo action
+     * @param work     The run of the script
+     * @return The run to call instead, the given one if nothing is locked
+     */
+    public static <T> Callable<T> wrap(ScriptOptions options, final XModel document,
+                                       String name, final Callable<T> work) {
+        if (document == null || !options.getBoolean(ScriptOptions.LOCK, false)) {
+            return work;
+        }
+        final String title = "Groovy " + name.substring(name.lastIndexOf('/') + 1);
+        return new Callable<T>() {
+            public T call() throws Exception {
+                DocumentLock lock = new DocumentLock(document, title);
+                try {
+                    lock.lock();
+                    return work.call();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        };
+    }
+
+    // only the steps done here are undone by unlock()
+    private void lock() {
+        XUndoManagerSupplier undoSupplier =
+                UnoRuntime.queryInterface(XUndoManagerSupplier.class, document);
+        if (undoSupplier != null) {
+            undoManager = undoSupplier.getUndoManager();
+            undoManager.enterUndoContext(title);
+        }
+
+        document.lockControllers();
+        controllersLocked = true;
+
+        XActionLockable lockable = UnoRuntime.queryInterface(XActionLockable.class, document);
+        if (lockable != null) {
+            lockable.addActionLock();
+            actionLockable = lockable;
+        }
+
+        XCalculatable calc = UnoRuntime.queryInterface(XCalculatable.class, document);
+        if (calc != null && calc.isAutomaticCalculationEnabled()) {
+            calc.enableAutomaticCalculation(false);
+            calculatable = calc;
+        }
+    }
+
+    private void unlock() {
+        // a script stopped by its limits is interrupted, which must not stop the calls restoring the document
+        boolean interrupted = Thread.interrupted();
+        try {
+            restore();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void restore() {
+        if (calculatable != null) {
+            try {
+                calculatable.enableAutomaticCalculation(true);
+                // the formulas changed by the run are recalculated once
+                calculatable.calculate();
+            } catch (RuntimeException e) {
+                System.err.println("Failed to resume automatic calculation: " + e);
+            }
+        }
+        if (actionLockable != null) {
+            try {
+                actionLockable.removeActionLock();
+            } catch (RuntimeException e) {
+                System.err.println("Failed to remove the action lock: " + e);
+            }
+        }
+        if (controllersLocked) {
+            try {
+                document.unlockControllers();
+            } catch (RuntimeException e) {
+                System.err.println("Failed to unlock the controllers: " + e);
+            }
+        }
+        if (undoManager != null) {
+            try {
+                undoManager.leaveUndoContext();
+            } catch (com.sun.star.util.InvalidStateException e) {
+                // the script left the context itself
+                System.err.println("Failed to leave the undo context: " + e.getMessage());
+            } catch (RuntimeException e) {
+                System.err.println("Failed to leave the undo context: " + e);
+            }
+        }
+    }
+}
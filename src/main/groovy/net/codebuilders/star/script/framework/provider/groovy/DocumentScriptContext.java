@@ -0,0 +1,60 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.document.XScriptInvocationContext;
+import com.sun.star.frame.XDesktop;
+import com.sun.star.frame.XModel;
+import com.sun.star.script.provider.XScriptContext;
+import com.sun.star.uno.UnoRuntime;
+import com.sun.star.uno.XComponentContext;
+
+/**
+ * The XSCRIPTCONTEXT of a script run for a document other than the one
+ * it was invoked from, like the documents of a batch run.
+ */
+public class DocumentScriptContext implements XScriptContext {
+
+    private final XModel document;
+    private final XDesktop desktop;
+    private final XComponentContext context;
+
+    public DocumentScriptContext(XModel document, XDesktop desktop, XComponentContext context) {
+        this.document = document;
+        this.desktop = desktop;
+        this.context = context;
+    }
+
+    public XModel getDocument() {
+        return document;
+    }
+
+    public XScriptInvocationContext getInvocationContext() {
+        return document == null ? null
+                : UnoRuntime.queryInterface(XScriptInvocationContext.class, document);
+    }
+
+    public XDesktop getDesktop() {
+        return desktop;
+    }
+
+    public XComponentContext getComponentContext() {
+        return context;
+    }
+}
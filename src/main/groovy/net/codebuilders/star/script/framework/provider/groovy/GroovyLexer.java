@@ -0,0 +1,211 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Splits Groovy source lines into tokens for highlighting.
+ * <p>
+ * The lexer works one line at a time. The only thing carried from one
+ * line to the next is the state returned by {@link #scan}, whether the
+ * line ends inside a block comment or a triple quoted string. That lets
+ * the editor lex a changed line again without lexing the lines before it.
+ * Slashy strings are not recognized since telling them from a division
+ * needs more than the current line.
+ */
+public final class GroovyLexer {
+
+    // states between lines
+    public static final int NORMAL = 0;
+    public static final int BLOCK_COMMENT = 1;
+    public static final int TRIPLE_SINGLE = 2;
+    public static final int TRIPLE_DOUBLE = 3;
+
+    // token types
+    public static final int PLAIN = 0;
+    public static final int KEYWORD = 1;
+    public static final int COMMENT = 2;
+    public static final int STRING = 3;
+    public static final int NUMBER = 4;
+    public static final int ANNOTATION = 5;
+
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+            "abstract", "as", "assert", "boolean", "break", "byte", "case", "catch",
+            "char", "class", "continue", "def", "default", "do", "double", "else",
+            "enum", "extends", "false", "final", "finally", "float", "for", "if",
+            "implements", "import", "in", "instanceof", "int", "interface", "long",
+            "native", "new", "null", "package", "private", "protected", "public",
+            "return", "short", "static", "super", "switch", "synchronized", "this",
+            "throw", "throws", "trait", "transient", "true", "try", "var", "void",
+            "volatile", "while"));
+
+    public interface Tokens {
+        /**
+         * Called for every token of a line in order, the tokens cover the
+         * whole line.
+         *
+         * @param start The index of the first character
+         * @param end   The index after the last character
+         * @param type  The token type
+         */
+        void token(int start, int end, int type);
+    }
+
+    private GroovyLexer() {
+    }
+
+    /**
+     * Lexes one line.
+     *
+     * @param text   The characters
+     * @param start  The index where the line starts
+     * @param end    The index where the line ends, without the line break
+     * @param state  The state at the start of the line
+     * @param tokens Receives the tokens, may be null to only get the state
+     * @return The state at the end of the line
+     */
+    public static int scan(char[] text, int start, int end, int state, Tokens tokens) {
+        int i = start;
+        while (i < end) {
+            int tokenStart = i;
+            int type;
+
+            if (state != NORMAL) {
+                int close = state == BLOCK_COMMENT ? endOfComment(text, i, end)
+                        : endOfString(text, i, end, state == TRIPLE_SINGLE ? '\'' : '"', true);
+                type = state == BLOCK_COMMENT ? COMMENT : STRING;
+                if (close < 0) {
+                    i = end;
+                } else {
+                    i = close;
+                    state = NORMAL;
+                }
+            } else {
+                char c = text[i];
+                char next = i + 1 < end ? text[i + 1] : 0;
+
+                if (c == '/' && next == '/') {
+                    i = end;
+                    type = COMMENT;
+                } else if (c == '/' && next == '*') {
+                    int close = endOfComment(text, i + 2, end);
+                    if (close < 0) {
+                        i = end;
+                        state = BLOCK_COMMENT;
+                    } else {
+                        i = close;
+                    }
+                    type = COMMENT;
+                } else if (c == '\'' || c == '"') {
+                    boolean triple = next == c && i + 2 < end && text[i + 2] == c;
+                    int close = endOfString(text, i + (triple ? 3 : 1), end, c, triple);
+                    if (close < 0) {
+                        i = end;
+                        if (triple) {
+                            state = c == '\'' ? TRIPLE_SINGLE : TRIPLE_DOUBLE;
+                        }
+                    } else {
+                        i = close;
+                    }
+                    type = STRING;
+                } else if (c >= '0' && c <= '9') {
+                    i = endOfNumber(text, i, end);
+                    type = NUMBER;
+                } else if (c == '@' && i + 1 < end && Character.isJavaIdentifierStart(next)) {
+                    i = endOfIdentifier(text, i + 1, end);
+                    type = ANNOTATION;
+                } else if (Character.isJavaIdentifierStart(c)) {
+                    i = endOfIdentifier(text, i, end);
+                    type = KEYWORDS.contains(new String(text, tokenStart, i - tokenStart))
+                            ? KEYWORD : PLAIN;
+                } else {
+                    // operators and white space up to the next token
+                    i++;
+                    while (i < end && !startsToken(text[i])) {
+                        i++;
+                    }
+                    type = PLAIN;
+                }
+            }
+
+            if (tokens != null) {
+                tokens.token(tokenStart, i, type);
+            }
+        }
+        return state;
+    }
+
+    private static boolean startsToken(char c) {
+        return c == '/' || c == '\'' || c == '"' || c == '@'
+                || Character.isJavaIdentifierStart(c) || (c >= '0' && c <= '9');
+    }
+
+    // returns the index after */ or -1 if the comment goes on
+    private static int endOfComment(char[] text, int i, int end) {
+        for (; i + 1 < end; i++) {
+            if (text[i] == '*' && text[i + 1] == '/') {
+                return i + 2;
+            }
+        }
+        return -1;
+    }
+
+    // returns the index after the closing quote or -1 if the string goes on
+    private static int endOfString(char[] text, int i, int end, char quote, boolean triple) {
+        while (i < end) {
+            char c = text[i];
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote && (!triple
+                    || (i + 2 < end && text[i + 1] == quote && text[i + 2] == quote))) {
+                return i + (triple ? 3 : 1);
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    // a dot belongs to the number only if a digit follows, 1..2 is a range
+    private static int endOfNumber(char[] text, int i, int end) {
+        i++;
+        while (i < end) {
+            char c = text[i];
+            if (Character.isLetterOrDigit(c) || c == '_') {
+                i++;
+            } else if (c == '.' && i + 1 < end && text[i + 1] >= '0' && text[i + 1] <= '9') {
+                i += 2;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static int endOfIdentifier(char[] text, int i, int end) {
+        i++;
+        while (i < end && Character.isJavaIdentifierPart(text[i])) {
+            i++;
+        }
+        return i;
+    }
+}
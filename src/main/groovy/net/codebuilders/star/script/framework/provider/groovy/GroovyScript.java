@@ -18,9 +18,9 @@
 
 package net.codebuilders.star.script.framework.provider.groovy;
 
+import com.sun.star.frame.XModel;
 import com.sun.star.reflection.InvocationTargetException;
 import com.sun.star.script.framework.container.ScriptMetaData;
-import com.sun.star.script.framework.provider.ClassLoaderFactory;
 import com.sun.star.script.framework.provider.NoSuitableClassLoaderException;
 import com.sun.star.script.provider.ScriptFrameworkErrorException;
 import com.sun.star.script.provider.ScriptFrameworkErrorType;
@@ -29,9 +29,15 @@ import com.sun.star.script.provider.XScriptContext;
 import com.sun.star.uno.Any;
 import com.sun.star.uno.Type;
 import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
 import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 
 
 public class GroovyScript implements XScript {
@@ -72,19 +78,42 @@ public class GroovyScript implements XScript {
             throws ScriptFrameworkErrorException,
             InvocationTargetException {
 
+        // the first run after startup is part of the startup report
+        long startupNanos = ScriptStartup.beginInvocation();
+        long startupClasses = startupNanos < 0 ? -1 : ScriptStartup.loadedClasses();
+        try {
+            return invokeScript(aParams, aOutParamIndex, aOutParam);
+        } finally {
+            ScriptStartup.endInvocation(startupNanos, startupClasses);
+        }
+    }
+
+    private Object invokeScript(Object[] aParams, short[][] aOutParamIndex,
+                                Object[][] aOutParam)
+            throws ScriptFrameworkErrorException, InvocationTargetException {
+
         // Initialise the out parameters - not used at the moment
         aOutParamIndex[0] = new short[0];
         aOutParam[0] = new Object[0];
 
 
-        ClassLoader cl = null;
+        GroovyClassLoader cl = null;
         URL sourceUrl = null;
 
+        ScriptMetrics metrics = ScriptMetrics.getMetrics();
+        String metricsKey = scriptMetaData.getLanguageName();
+        long start = System.nanoTime();
+
         try {
-            cl = ClassLoaderFactory.getURLClassLoader(scriptMetaData);
             sourceUrl = scriptMetaData.getSourceURL();
+            metricsKey = sourceUrl.toExternalForm();
+            metrics.invoked(metricsKey);
+            cl = ParcelClassLoaderPool.getPool().getClassLoader(
+                    scriptMetaData, xScriptContext.getComponentContext());
+            metrics.record(metricsKey, ScriptMetrics.Phase.CLASS_LOADER, System.nanoTime() - start);
         } catch (java.net.MalformedURLException mfu) {
             System.err.println("Caught java.net.MalformedURLException");
+            metrics.failed(metricsKey);
             // Framework error
             throw new ScriptFrameworkErrorException(
                     mfu.getMessage(), null,
@@ -92,6 +121,7 @@ public class GroovyScript implements XScript {
                     ScriptFrameworkErrorType.MALFORMED_URL);
         } catch (NoSuitableClassLoaderException nsc) {
             System.err.println("Caught NoSuitableClassLoaderException");
+            metrics.failed(metricsKey);
 
             // Framework error
             throw new ScriptFrameworkErrorException(
@@ -99,18 +129,10 @@ public class GroovyScript implements XScript {
                     scriptMetaData.getLanguageName(), scriptMetaData.getLanguage(),
                     ScriptFrameworkErrorType.UNKNOWN);
         }
-        // Set class loader to be used for class files
-        // and jar files
-        Thread.currentThread().setContextClassLoader(cl);
-
-        Binding binding = new Binding();
-        GroovyShell shell = new GroovyShell(binding);
-
-        binding.setProperty("XSCRIPTCONTEXT", xScriptContext);
-        binding.setProperty("ARGUMENTS", aParams);
 
+        // why a script asking for static compilation runs dynamically, reported if it fails
+        List<String> diagnostics = Collections.emptyList();
         try {
-            String source = null;
             Object result = null;
 
             ScriptEditorForGroovy editor =
@@ -118,7 +140,9 @@ public class GroovyScript implements XScript {
                             sourceUrl);
 
             if (editor != null) {
+                start = System.nanoTime();
                 result = editor.execute();
+                metrics.record(metricsKey, ScriptMetrics.Phase.EXECUTE, System.nanoTime() - start);
 
                 if (result == null) {
 
@@ -128,26 +152,18 @@ public class GroovyScript implements XScript {
                 return result;
             }
 
-            scriptMetaData.loadSource();
-            source = scriptMetaData.getSource();
+            PreparedScript prepared = load(cl, sourceUrl, metricsKey);
+            CompiledScript compiled = prepared.compiled;
+            ScriptOptions options = prepared.options;
+            diagnostics = compiled.getDiagnostics();
 
-            if (source == null || source.length() == 0) {
-                System.err.println("Failed to read script. Script not found or empty");
-                throw new ScriptFrameworkErrorException(
-                        "Failed to read script. Script not found or empty", null,
-                        scriptMetaData.getLanguageName(), scriptMetaData.getLanguage(),
-                        ScriptFrameworkErrorType.NO_SUCH_SCRIPT);
+            // the caller only gets the task id, the script runs on the executor
+            if (options.getBoolean(ScriptOptions.ASYNC, false)) {
+                return submit(prepared, aParams, metricsKey).getId();
             }
 
-            try {
-                result = shell.evaluate(source);
-            } catch (CompilationFailedException e) {
-                System.err.println("Caught a CompilationFailedException");
-                throw new ScriptFrameworkErrorException(
-                        e.getMessage(), null,
-                        scriptMetaData.getLanguageName(), scriptMetaData.getLanguage(),
-                        ScriptFrameworkErrorType.UNKNOWN);
-            }
+            // every run gets a new script instance bound to this invocation
+            result = prepared.execute(xScriptContext, aParams);
 
 
             if (result == null) {
@@ -156,15 +172,148 @@ public class GroovyScript implements XScript {
             }
 
             return result;
+        } catch (ScriptFrameworkErrorException e) {
+            metrics.failed(metricsKey);
+            throw e;
+        } catch (ScriptLimits.LimitExceededException e) {
+            metrics.failed(metricsKey);
+            System.err.println(e.getMessage() + ": " + metricsKey);
+
+            throw new ScriptFrameworkErrorException(
+                    e.getMessage(), null,
+                    scriptMetaData.getLanguageName(), scriptMetaData.getLanguage(),
+                    ScriptFrameworkErrorType.UNKNOWN);
         } catch (Exception e) {
+            metrics.failed(metricsKey);
             // DEBUG
             System.out.println("Failed to read script. Unknown Error");
 
             throw new ScriptFrameworkErrorException(
-                    "Failed to read script. Unknown Error", null,
+                    withDiagnostics("Failed to read script. Unknown Error", diagnostics), null,
+                    scriptMetaData.getLanguageName(), scriptMetaData.getLanguage(),
+                    ScriptFrameworkErrorType.UNKNOWN);
+        }
+    }
+
+    private static String withDiagnostics(String message, List<String> diagnostics) {
+        if (diagnostics.isEmpty()) {
+            return message;
+        }
+        StringBuilder buf = new StringBuilder(message);
+        buf.append("\nThe script ran dynamically, it failed to type check:");
+        for (String line : diagnostics) {
+            buf.append("\n    ").append(line);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Reads and compiles the script once so it can be run for many
+     * documents, see {@link BatchRunner}.
+     *
+     * @return The compiled script with its class loader and options
+     * @throws ScriptFrameworkErrorException If the script cannot be read
+     *                                       or does not compile
+     */
+    public PreparedScript prepare() throws ScriptFrameworkErrorException {
+        try {
+            URL sourceUrl = scriptMetaData.getSourceURL();
+            GroovyClassLoader cl = ParcelClassLoaderPool.getPool().getClassLoader(
+                    scriptMetaData, xScriptContext.getComponentContext());
+            return load(cl, sourceUrl, sourceUrl.toExternalForm());
+        } catch (java.net.MalformedURLException mfu) {
+            throw new ScriptFrameworkErrorException(
+                    mfu.getMessage(), null,
+                    scriptMetaData.getLanguageName(), scriptMetaData.getLanguage(),
+                    ScriptFrameworkErrorType.MALFORMED_URL);
+        } catch (NoSuitableClassLoaderException nsc) {
+            throw new ScriptFrameworkErrorException(
+                    nsc.getMessage(), null,
+                    scriptMetaData.getLanguageName(), scriptMetaData.getLanguage(),
+                    ScriptFrameworkErrorType.UNKNOWN);
+        }
+    }
+
+    private PreparedScript load(GroovyClassLoader cl, URL sourceUrl, String metricsKey)
+            throws ScriptFrameworkErrorException, java.net.MalformedURLException {
+
+        ScriptMetrics metrics = ScriptMetrics.getMetrics();
+
+        // unchanged scripts are not read again
+        long start = System.nanoTime();
+        SourceCache.CachedSource cached = SourceCache.getCache().get(
+                scriptMetaData, xScriptContext.getComponentContext());
+        String source = cached.getText();
+        metrics.record(metricsKey, ScriptMetrics.Phase.SOURCE, System.nanoTime() - start);
+
+        if (source == null || source.length() == 0) {
+            System.err.println("Failed to read script. Script not found or empty");
+            throw new ScriptFrameworkErrorException(
+                    "Failed to read script. Script not found or empty", null,
+                    scriptMetaData.getLanguageName(), scriptMetaData.getLanguage(),
+                    ScriptFrameworkErrorType.NO_SUCH_SCRIPT);
+        }
+
+        ScriptOptions options = cached.getOptions(scriptMetaData.getLanguageProperties());
+
+        // only compile when the source has changed since the last run
+        CompiledScript compiled;
+        start = System.nanoTime();
+        try {
+            compiled = CompiledScriptCache.getCache().getOrCompile(
+                    sourceUrl.toExternalForm(), scriptMetaData.getParcelLocation(),
+                    source, cached.getHash(), options,
+                    cl, xScriptContext.getComponentContext());
+        } catch (CompilationFailedException e) {
+            System.err.println("Caught a CompilationFailedException");
+            throw new ScriptFrameworkErrorException(
+                    e.getMessage(), null,
+                    scriptMetaData.getLanguageName(), scriptMetaData.getLanguage(),
+                    ScriptFrameworkErrorType.UNKNOWN);
+        }
+        metrics.record(metricsKey, ScriptMetrics.Phase.COMPILE, System.nanoTime() - start);
+
+        return new PreparedScript(compiled, source, options, cl, metricsKey,
+                scriptMetaData.getParcelLocation());
+    }
+
+    private ScriptTask submit(final PreparedScript prepared, final Object[] aParams,
+                              final String metricsKey)
+            throws ScriptFrameworkErrorException {
+
+        ScriptOptions options = prepared.options;
+
+        final ScriptMetrics metrics = ScriptMetrics.getMetrics();
+        ScriptExecutor executor = ScriptExecutor.getExecutor();
+        int maxConcurrent = options.getInt(ScriptOptions.ASYNC_MAX_CONCURRENT,
+                executor.getDefaultMaxConcurrent());
+
+        ScriptTask task;
+        try {
+            boolean virtual = ScriptThreads.VIRTUAL.equals(ScriptThreads.getMode(options));
+            task = executor.submit(metricsKey, maxConcurrent, virtual, new ScriptExecutor.Work() {
+                public Object run(ScriptTask task) throws Exception {
+                    try {
+                        return prepared.execute(new AsyncScriptContext(xScriptContext, task), aParams);
+                    } catch (Exception e) {
+                        metrics.failed(metricsKey);
+                        throw e;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            System.err.println("Script rejected: " + ree.getMessage());
+            throw new ScriptFrameworkErrorException(
+                    ree.getMessage(), null,
                     scriptMetaData.getLanguageName(), scriptMetaData.getLanguage(),
                     ScriptFrameworkErrorType.UNKNOWN);
         }
+
+        String callback = options.get(ScriptOptions.ASYNC_CALLBACK, null);
+        if (callback != null) {
+            task.addListener(new ScriptCallback(callback, xScriptContext));
+        }
+        return task;
     }
 
     private void raiseEditor(int lineNum) {
@@ -184,6 +333,96 @@ public class GroovyScript implements XScript {
         }
     }
 
+    /**
+     * A compiled script with the class loader and options it runs with.
+     */
+    public static class PreparedScript {
+        private final CompiledScript compiled;
+        private final String source;
+        private final ScriptOptions options;
+        private final ClassLoader loader;
+        private final String metricsKey;
+        private final String parcel;
+
+        PreparedScript(CompiledScript compiled, String source, ScriptOptions options,
+                       ClassLoader loader, String metricsKey, String parcel) {
+            this.compiled = compiled;
+            this.source = source;
+            this.options = options;
+            this.loader = loader;
+            this.metricsKey = metricsKey;
+            this.parcel = parcel;
+        }
+
+        public ScriptOptions getOptions() {
+            return options;
+        }
+
+        /**
+         * Runs the script on the calling thread.
+         *
+         * @param context The XSCRIPTCONTEXT of this run
+         * @param args    The ARGUMENTS of this run
+         * @return The value returned by the script
+         * @throws Exception What the script threw
+         */
+        public Object run(XScriptContext context, Object[] args) throws Exception {
+            ScriptMetrics metrics = ScriptMetrics.getMetrics();
+            metrics.invoked(metricsKey);
+            try {
+                return execute(context, args);
+            } catch (Exception e) {
+                metrics.failed(metricsKey);
+                throw e;
+            }
+        }
+
+        // runs a new instance of the script on the calling thread, the parcel
+        // class loader is the context class loader of this run only
+        Object execute(XScriptContext context, Object[] args) throws Exception {
+            final Script script = InvokerHelper.createScript(
+                    compiled.getScriptClass(), prepareBinding(context, args));
+            long start = System.nanoTime();
+            Object result = ScriptThreads.withContextClassLoader(loader,
+                    wrap(context.getDocument(), new Callable<Object>() {
+                        public Object call() {
+                            return script.run();
+                        }
+                    }));
+            ScriptMetrics.getMetrics().record(metricsKey, ScriptMetrics.Phase.EXECUTE,
+                    System.nanoTime() - start);
+            return result;
+        }
 
+        /**
+         * Returns the Binding of one run.
+         *
+         * @param context The XSCRIPTCONTEXT of the run
+         * @param args    The ARGUMENTS of the run
+         */
+        Binding prepareBinding(XScriptContext context, Object[] args) {
+            Binding binding = new Binding();
+            binding.setProperty("XSCRIPTCONTEXT", context);
+            binding.setProperty("ARGUMENTS", args);
+            ScriptStateCache.bind(binding, context, parcel);
+            CalcRanges.bind(binding, context);
+            ScriptParallel.bind(binding);
+            return binding;
+        }
 
-}
\ No newline at end of file
+        /**
+         * Wraps one run in the limits, the profiler, the document scope of
+         * CACHE and the document lock, in that order from the outside.
+         *
+         * @param document The document the script runs for, may be null
+         * @param work     The run of the script
+         * @return The run to call instead
+         */
+        <T> Callable<T> wrap(XModel document, Callable<T> work) {
+            return ScriptLimits.get(options).wrap(metricsKey,
+                    ScriptProfiler.export(metricsKey, source,
+                            ScriptStateCache.wrap(document,
+                                    DocumentLock.wrap(options, document, metricsKey, work))));
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import javax.swing.JTextArea;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.plaf.basic.BasicTextAreaUI;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.PlainView;
+import javax.swing.text.Segment;
+import javax.swing.text.Utilities;
+import javax.swing.text.View;
+import javax.swing.text.ViewFactory;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Shape;
+
+/**
+ * A source view that highlights Groovy syntax.
+ * <p>
+ * The lexer state at the start of every line is kept up to date while
+ * the script is edited. An edit lexes the changed lines again and goes on
+ * with the following lines only while their start state changes, like
+ * after opening a block comment. Lines are lexed for painting only when
+ * they are visible, so typing costs the same for any length of script.
+ */
+public class HighlightingSourceView extends PlainSourceView {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Color[] COLORS = {
+            Color.black,                // PLAIN
+            new Color(0, 0, 160),       // KEYWORD
+            new Color(110, 110, 110),   // COMMENT
+            new Color(0, 128, 0),       // STRING
+            new Color(160, 0, 160),     // NUMBER
+            new Color(128, 96, 0),      // ANNOTATION
+    };
+
+    public HighlightingSourceView(ScriptSourceModel model) {
+        super(model);
+    }
+
+    protected JTextArea createTextArea() {
+        return new HighlightingTextArea();
+    }
+
+    static class HighlightingTextArea extends JTextArea {
+
+        private static final long serialVersionUID = 1L;
+
+        private LineStates lines;
+
+        HighlightingTextArea() {
+            lines = new LineStates();
+            getDocument().addDocumentListener(lines);
+            lines.reset();
+        }
+
+        public void updateUI() {
+            setUI(new BasicTextAreaUI() {
+                public View create(Element elem) {
+                    return new HighlightingView(elem);
+                }
+            });
+        }
+
+        public void setDocument(Document doc) {
+            // also called by the JTextArea constructor before lines is set
+            if (lines != null) {
+                getDocument().removeDocumentListener(lines);
+            }
+            super.setDocument(doc);
+            if (lines != null) {
+                doc.addDocumentListener(lines);
+                lines.reset();
+            }
+        }
+
+        int getLineState(int line) {
+            return lines.get(line);
+        }
+
+        /**
+         * The lexer state at the start of every line.
+         */
+        private class LineStates implements DocumentListener {
+
+            private final Segment segment = new Segment();
+            private int[] states = new int[64];
+            private int count = 0;
+
+            int get(int line) {
+                return line < count ? states[line] : GroovyLexer.NORMAL;
+            }
+
+            void reset() {
+                count = 0;
+                Element root = getDocument().getDefaultRootElement();
+                replace(0, 0, root.getElementCount());
+                lex(0, count - 1);
+            }
+
+            public void insertUpdate(DocumentEvent e) {
+                changed(e);
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                changed(e);
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+                // attributes only, the text did not change
+            }
+
+            private void changed(DocumentEvent e) {
+                Element root = getDocument().getDefaultRootElement();
+                DocumentEvent.ElementChange change = e.getChange(root);
+                int first;
+                int last;
+                if (change != null) {
+                    first = change.getIndex();
+                    int added = change.getChildrenAdded().length;
+                    replace(first, change.getChildrenRemoved().length, added);
+                    last = first + added - 1;
+                } else {
+                    first = root.getElementIndex(e.getOffset());
+                    last = first;
+                }
+
+                // the visible lines after the edit are painted with their new state
+                if (lex(first, Math.max(first, last)) > last) {
+                    repaint();
+                }
+            }
+
+            // replaces the states of removed lines with room for added lines
+            private void replace(int index, int removed, int added) {
+                int newCount = count - removed + added;
+                if (newCount > states.length) {
+                    int[] grown = new int[Math.max(newCount, states.length * 2)];
+                    System.arraycopy(states, 0, grown, 0, count);
+                    states = grown;
+                }
+                System.arraycopy(states, index + removed, states, index + added,
+                        count - index - removed);
+                count = newCount;
+            }
+
+            // lexes from the first line until the start state of a line after last is unchanged
+            private int lex(int first, int last) {
+                Document doc = getDocument();
+                Element root = doc.getDefaultRootElement();
+                if (first == 0 && count > 0) {
+                    states[0] = GroovyLexer.NORMAL;
+                }
+
+                int line = first;
+                for (; line < count; line++) {
+                    Element element = root.getElement(line);
+                    int start = element.getStartOffset();
+                    int end = Math.min(element.getEndOffset(), doc.getLength());
+                    int state = states[line];
+                    try {
+                        doc.getText(start, end - start, segment);
+                        state = GroovyLexer.scan(segment.array, segment.offset,
+                                segment.offset + segment.count, state, null);
+                    } catch (BadLocationException ble) {
+                        state = GroovyLexer.NORMAL;
+                    }
+
+                    if (line + 1 >= count || (line >= last && states[line + 1] == state)) {
+                        break;
+                    }
+                    states[line + 1] = state;
+                }
+                return line;
+            }
+        }
+    }
+
+    /**
+     * Paints the tokens of the visible lines in their colors.
+     */
+    // the int based PlainView and Utilities methods are deprecated since Java 9,
+    // their float replacements do not exist on the Java 8 the office may run on
+    @SuppressWarnings("deprecation")
+    static class HighlightingView extends PlainView implements GroovyLexer.Tokens {
+
+        private final Segment line = new Segment();
+        private final Segment token = new Segment();
+
+        /* The width of the widest line. It only grows while editing, finding
+           the new widest line after the widest one got shorter means
+           measuring every line, which PlainView does on each keystroke in
+           the widest line */
+        private Font measuredFont;
+        private int width;
+
+        // the line being painted
+        private Graphics graphics;
+        private int x;
+        private int y;
+        private int paintFrom;
+        private int lineOffset;
+
+        HighlightingView(Element elem) {
+            super(elem);
+        }
+
+        protected int drawUnselectedText(Graphics g, int x, int y, int p0, int p1)
+                throws BadLocationException {
+
+            if (!(getContainer() instanceof HighlightingTextArea) || !getContainer().isEnabled()) {
+                return super.drawUnselectedText(g, x, y, p0, p1);
+            }
+            HighlightingTextArea textArea = (HighlightingTextArea) getContainer();
+
+            // p0 may be in the middle of a line after a selection, lex from its start
+            Document doc = getDocument();
+            int index = doc.getDefaultRootElement().getElementIndex(p0);
+            int lineStart = doc.getDefaultRootElement().getElement(index).getStartOffset();
+            doc.getText(lineStart, p1 - lineStart, line);
+
+            this.graphics = g;
+            this.x = x;
+            this.y = y;
+            this.paintFrom = line.offset + p0 - lineStart;
+            this.lineOffset = lineStart - line.offset;
+            GroovyLexer.scan(line.array, line.offset, line.offset + line.count,
+                    textArea.getLineState(index), this);
+            this.graphics = null;
+            return this.x;
+        }
+
+        public float getPreferredSpan(int axis) {
+            if (axis != View.X_AXIS) {
+                return super.getPreferredSpan(axis);
+            }
+            updateMetrics();
+            Font font = getContainer().getFont();
+            if (!font.equals(measuredFont)) {
+                measuredFont = font;
+                width = 0;
+                Element map = getElement();
+                for (int i = 0; i < map.getElementCount(); i++) {
+                    grow(map.getElement(i));
+                }
+            }
+            return width;
+        }
+
+        protected void updateDamage(DocumentEvent changes, Shape a, ViewFactory f) {
+            updateMetrics();
+            Component host = getContainer();
+            Element map = getElement();
+            DocumentEvent.ElementChange change = changes.getChange(map);
+            if (change != null) {
+                for (Element added : change.getChildrenAdded()) {
+                    grow(added);
+                }
+                preferenceChanged(null, true, true);
+                host.repaint();
+            } else {
+                int index = map.getElementIndex(changes.getOffset());
+                damageLineRange(index, index, a, host);
+                if (changes.getType() == DocumentEvent.EventType.INSERT
+                        && grow(map.getElement(index))) {
+                    preferenceChanged(null, true, false);
+                }
+            }
+        }
+
+        // returns true if the line is wider than all lines before
+        private boolean grow(Element element) {
+            int start = element.getStartOffset();
+            int end = Math.min(element.getEndOffset(), getDocument().getLength());
+            try {
+                getDocument().getText(start, end - start, token);
+            } catch (BadLocationException ble) {
+                return false;
+            }
+            int w = Utilities.getTabbedTextWidth(token, metrics, 0, this, start);
+            if (w > width) {
+                width = w;
+                return true;
+            }
+            return false;
+        }
+
+        public void token(int start, int end, int type) {
+            if (end <= paintFrom) {
+                return;
+            }
+            start = Math.max(start, paintFrom);
+            token.array = line.array;
+            token.offset = start;
+            token.count = end - start;
+            graphics.setColor(COLORS[type]);
+            x = Utilities.drawTabbedText(token, x, y, graphics, this, start + lineOffset);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.script.framework.container.ScriptMetaData;
+import com.sun.star.script.framework.provider.ClassLoaderFactory;
+import com.sun.star.script.framework.provider.NoSuitableClassLoaderException;
+import com.sun.star.uno.XComponentContext;
+import groovy.lang.GroovyClassLoader;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps one class loader hierarchy per parcel location and class path so
+ * parcel jars, helper classes and Groovy metaclasses stay loaded between
+ * invocations. Scripts of a parcel with different class paths get loaders
+ * of their own.
+ * <p>
+ * A pooled loader is replaced when a jar or class file on its class path
+ * is modified. Compiled scripts of the parcel are dropped from the
+ * {@link CompiledScriptCache} at the same time. The files are checked
+ * without holding the pool, so a slow parcel does not hold up the others.
+ * <p>
+ * The pooled loader is a {@link ScriptLibrary}, so scripts may use each
+ * other's classes. A modified library script only drops the scripts that
+ * depend on it.
+ * <p>
+ * Every document with scripts is a parcel of its own, so the pool keeps
+ * the loaders of the {@code net.codebuilders.groovy.loader.max} most
+ * recently used parcels, 32 by default. An evicted parcel's scripts are
+ * released with it and its classes can be unloaded.
+ */
+public class ParcelClassLoaderPool {
+
+    // system property for the minimum time in ms between checks of a parcel's files
+    public static final String CHECK_INTERVAL_PROPERTY = "net.codebuilders.groovy.loader.checkInterval";
+
+    // system property for the number of parcels whose loaders are kept
+    public static final String MAX_LOADERS_PROPERTY = "net.codebuilders.groovy.loader.max";
+
+    private static final long DEFAULT_CHECK_INTERVAL = 2000;
+    private static final int DEFAULT_MAX_LOADERS = 32;
+
+    // global ParcelClassLoaderPool returned for getPool() calls
+    private static volatile ParcelClassLoaderPool theParcelClassLoaderPool;
+
+    private final long checkInterval;
+    private final int maxLoaders;
+
+    // key is the parcel location and class path, access ordered so the eldest is the least recently used
+    private final Map<String, PooledLoader> loaders;
+
+    /**
+     * Returns the global ParcelClassLoaderPool instance.
+     */
+    public static ParcelClassLoaderPool getPool() {
+        if (theParcelClassLoaderPool == null) {
+            synchronized (ParcelClassLoaderPool.class) {
+                if (theParcelClassLoaderPool == null) {
+                    theParcelClassLoaderPool = new ParcelClassLoaderPool(
+                            Long.getLong(CHECK_INTERVAL_PROPERTY, DEFAULT_CHECK_INTERVAL),
+                            Integer.getInteger(MAX_LOADERS_PROPERTY, DEFAULT_MAX_LOADERS));
+                }
+            }
+        }
+        return theParcelClassLoaderPool;
+    }
+
+    public ParcelClassLoaderPool(long checkInterval) {
+        this(checkInterval, DEFAULT_MAX_LOADERS);
+    }
+
+    public ParcelClassLoaderPool(long checkInterval, int maxLoaders) {
+        this.checkInterval = checkInterval;
+        this.maxLoaders = Math.max(1, maxLoaders);
+        this.loaders = new LinkedHashMap<String, PooledLoader>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, PooledLoader> eldest) {
+                if (size() > ParcelClassLoaderPool.this.maxLoaders) {
+                    release(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the pooled class loader for the parcel of a script, creating
+     * it through the ClassLoaderFactory when there is none yet or the
+     * parcel has changed.
+     *
+     * @param scriptMetaData The metadata describing the script
+     * @param context        The component context used to locate the
+     *                       parcel files, may be null
+     * @return The GroovyClassLoader shared by all scripts of the parcel
+     * @throws MalformedURLException          If the class path of the parcel is invalid
+     * @throws NoSuitableClassLoaderException If no class loader could be created
+     */
+    public GroovyClassLoader getClassLoader(ScriptMetaData scriptMetaData,
+                                            XComponentContext context)
+            throws MalformedURLException, NoSuitableClassLoaderException {
+
+        String location = scriptMetaData.getParcelLocation();
+        URL[] classPath = scriptMetaData.getClassPath();
+        String key = location + '\n' + Arrays.toString(classPath);
+        long now = System.currentTimeMillis();
+
+        PooledLoader pooled;
+        boolean check;
+        synchronized (loaders) {
+            pooled = loaders.get(key);
+            // one caller checks the files, the others use the loader meanwhile
+            check = pooled != null && now - pooled.lastChecked >= checkInterval;
+            if (check) {
+                pooled.lastChecked = now;
+            }
+        }
+        if (pooled != null && !check) {
+            return pooled.groovyLoader;
+        }
+
+        if (pooled != null) {
+            if (stamp(classPath, context) == pooled.stamp) {
+                for (String script : pooled.groovyLoader.refresh()) {
+                    CompiledScriptCache.getCache().remove(script);
+                }
+                return pooled.groovyLoader;
+            }
+            boolean removed;
+            synchronized (loaders) {
+                removed = loaders.get(key) == pooled;
+                if (removed) {
+                    loaders.remove(key);
+                }
+            }
+            if (removed) {
+                release(pooled);
+            }
+        }
+
+        // parented by the provider's loader so scripts always see Groovy
+        ClassLoader parcelLoader = ClassLoaderFactory.getURLClassLoader(
+                ParcelClassLoaderPool.class.getClassLoader(), classPath);
+        long stamp = stamp(classPath, context);
+        PooledLoader created = new PooledLoader(location, stamp,
+                new ScriptLibrary(parcelLoader, ParcelPaths.toFile(location, context), stamp));
+        created.lastChecked = now;
+
+        synchronized (loaders) {
+            // another caller may have created one in the meantime, the unused one is dropped
+            PooledLoader current = loaders.get(key);
+            if (current != null) {
+                return current.groovyLoader;
+            }
+            loaders.put(key, created);
+        }
+        return created.groovyLoader;
+    }
+
+    /**
+     * Drops the pooled class loader of a parcel together with all
+     * scripts compiled against it.
+     *
+     * @param location The parcel location
+     */
+    public void invalidate(String location) {
+        List<PooledLoader> removed = new ArrayList<PooledLoader>();
+        synchronized (loaders) {
+            Iterator<PooledLoader> it = loaders.values().iterator();
+            while (it.hasNext()) {
+                PooledLoader pooled = it.next();
+                if (pooled.location.equals(location)) {
+                    it.remove();
+                    removed.add(pooled);
+                }
+            }
+        }
+        CompiledScriptCache.getCache().removeAll(location);
+        ScriptStateCache.releaseParcel(location);
+        for (PooledLoader pooled : removed) {
+            pooled.groovyLoader.release();
+        }
+    }
+
+    public void clear() {
+        List<PooledLoader> removed;
+        synchronized (loaders) {
+            removed = new ArrayList<PooledLoader>(loaders.values());
+            loaders.clear();
+        }
+        for (PooledLoader pooled : removed) {
+            pooled.groovyLoader.release();
+        }
+        CompiledScriptCache.getCache().clear();
+        ScriptStateCache.clearAll();
+    }
+
+    // drops everything compiled against the loader so it can be unloaded
+    private static void release(PooledLoader pooled) {
+        CompiledScriptCache.getCache().removeAll(pooled.location);
+        ScriptStateCache.releaseParcel(pooled.location);
+        pooled.groovyLoader.release();
+    }
+
+    public int size() {
+        synchronized (loaders) {
+            return loaders.size();
+        }
+    }
+
+    private static long stamp(URL[] classPath, XComponentContext context) {
+        long stamp = 0;
+        for (URL url : classPath) {
+            stamp = stamp(ParcelPaths.toFile(url, context), stamp);
+        }
+        return stamp;
+    }
+
+    // only jars and class files count, saving a script must not drop the loader
+    private static long stamp(File file, long stamp) {
+        if (file == null) {
+            return stamp;
+        }
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    stamp = stamp(child, stamp);
+                }
+            }
+        } else {
+            String name = file.getName();
+            if (name.endsWith(".jar") || name.endsWith(".class")) {
+                stamp = 31 * stamp + file.lastModified() + file.length();
+            }
+        }
+        return stamp;
+    }
+
+    private static class PooledLoader {
+        private final String location;
+        private final long stamp;
+        private final ScriptLibrary groovyLoader;
+        // guarded by the pool
+        private long lastChecked;
+
+        PooledLoader(String location, long stamp, ScriptLibrary groovyLoader) {
+            this.location = location;
+            this.stamp = stamp;
+            this.groovyLoader = groovyLoader;
+        }
+    }
+}
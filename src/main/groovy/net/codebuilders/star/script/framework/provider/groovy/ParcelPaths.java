@@ -0,0 +1,112 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.uno.UnoRuntime;
+import com.sun.star.uno.XComponentContext;
+import com.sun.star.util.XMacroExpander;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLDecoder;
+
+/**
+ * Maps the URLs used by the scripting framework for parcels and
+ * scripts to files in the local file system where that is possible.
+ */
+public class ParcelPaths {
+
+    private static final String EXPAND_PROTOCOL = "vnd.sun.star.expand:";
+    private static final String FILE_PROTOCOL = "file:";
+
+    private ParcelPaths() {
+    }
+
+    /**
+     * Returns the local file for a parcel or script URL.
+     *
+     * @param url     The URL as used by the scripting framework
+     * @param context The component context used to expand macros, may be null
+     * @return The local file or null if the URL is not backed by
+     * the local file system, e.g. a script stored in a document.
+     */
+    public static File toFile(URL url, XComponentContext context) {
+        if (url == null) {
+            return null;
+        }
+        return toFile(url.toExternalForm(), context);
+    }
+
+    /**
+     * Returns the local file for a parcel or script URL.
+     *
+     * @param url     The URL as used by the scripting framework
+     * @param context The component context used to expand macros, may be null
+     * @return The local file or null if the URL is not backed by
+     * the local file system, e.g. a script stored in a document.
+     */
+    public static File toFile(String url, XComponentContext context) {
+        if (url == null) {
+            return null;
+        }
+
+        if (url.startsWith(EXPAND_PROTOCOL)) {
+            url = expand(url, context);
+            if (url == null) {
+                return null;
+            }
+        }
+
+        if (!url.startsWith(FILE_PROTOCOL)) {
+            return null;
+        }
+
+        try {
+            return new File(new URI(url.replace(" ", "%20")));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static String expand(String url, XComponentContext context) {
+        if (context == null) {
+            return null;
+        }
+
+        try {
+            String macro = URLDecoder.decode(
+                    url.substring(EXPAND_PROTOCOL.length()).replace("+", "%2B"), "UTF-8");
+
+            XMacroExpander expander = UnoRuntime.queryInterface(
+                    XMacroExpander.class,
+                    context.getValueByName("/singletons/com.sun.star.util.theMacroExpander"));
+            if (expander == null) {
+                return null;
+            }
+            return expander.expandMacros(macro);
+        } catch (UnsupportedEncodingException uee) {
+            return null;
+        } catch (Exception e) {
+            // expansion can fail for a disposed or remote context
+            return null;
+        }
+    }
+}
@@ -27,6 +27,9 @@ import javax.swing.JScrollPane;
 import javax.swing.JComponent;
 import javax.swing.event.DocumentListener;
 import javax.swing.event.DocumentEvent;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 
 import java.awt.Graphics;
 import java.awt.Color;
@@ -35,15 +38,21 @@ import java.awt.FontMetrics;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.Dimension;
+import java.awt.event.MouseEvent;
+import java.util.Collections;
+import java.util.Map;
 
 public class PlainSourceView extends JScrollPane
-    implements ScriptSourceView, DocumentListener {
+    implements ScriptSourceView, DocumentListener, SourceChecker.Listener {
 
     private ScriptSourceModel model;
     private JTextArea ta;
     private GlyphGutter gg;
     private int linecount;
     private boolean isModified = false;
+    private SourceChecker checker;
+    private Map<Integer, String> errors = Collections.emptyMap();
+    private ScriptProfile profile;
 
     public PlainSourceView(ScriptSourceModel model) {
         this.model = model;
@@ -62,13 +71,14 @@ public class PlainSourceView extends JScrollPane
 
         if (isModified == false)
         {
-            int pos = ta.getCaretPosition();
-            ta.setText(model.getText());
+            /* Only the changed region is replaced so the JTextArea does
+               not lay out the whole script again, the caret moves with
+               the edit like it does when typing */
             try {
-                ta.setCaretPosition(pos);
+                applyText(model.getText());
             }
-            catch (IllegalArgumentException iae) {
-                // do nothing and allow JTextArea to set it's own position
+            catch (BadLocationException ble) {
+                ta.setText(model.getText());
             }
         }
 
@@ -88,6 +98,82 @@ public class PlainSourceView extends JScrollPane
         ta.getDocument().addDocumentListener(this);
     }
 
+    private void applyText(String text) throws BadLocationException {
+        Document doc = ta.getDocument();
+        String current = doc.getText(0, doc.getLength());
+        if (current.equals(text)) {
+            return;
+        }
+
+        int currentLength = current.length();
+        int length = text.length();
+        int max = Math.min(currentLength, length);
+
+        int prefix = 0;
+        while (prefix < max && current.charAt(prefix) == text.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && current.charAt(currentLength - 1 - suffix) == text.charAt(length - 1 - suffix)) {
+            suffix++;
+        }
+
+        int removed = currentLength - prefix - suffix;
+        String inserted = text.substring(prefix, length - suffix);
+        if (doc instanceof AbstractDocument) {
+            ((AbstractDocument) doc).replace(prefix, removed, inserted, null);
+        } else {
+            doc.remove(prefix, removed);
+            doc.insertString(prefix, inserted, null);
+        }
+
+        // the document listener is not attached while loading
+        if (linecount != ta.getLineCount()) {
+            gg.update();
+            linecount = ta.getLineCount();
+        }
+        if (checker != null) {
+            checker.schedule();
+        }
+    }
+
+    /**
+     * Checks the text in the background after every edit.
+     */
+    public void setChecker(SourceChecker checker) {
+        this.checker = checker;
+    }
+
+    public void checked(Map<Integer, String> errors) {
+        this.errors = errors;
+        gg.repaint();
+    }
+
+    /**
+     * Shows the time spent per line as a heat bar in the gutter.
+     *
+     * @param profile The profile of the last run, null to remove the bar
+     */
+    public void setProfile(ScriptProfile profile) {
+        this.profile = profile;
+        gg.repaint();
+    }
+
+    ScriptProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Returns the error message for a line found by the last check.
+     *
+     * @param line The line number, starting at 0
+     * @return The message or null if the line has no error
+     */
+    String getError(int line) {
+        return errors.get(line + 1);
+    }
+
     public boolean isModified() {
         return isModified;
     }
@@ -96,8 +182,15 @@ public class PlainSourceView extends JScrollPane
         isModified = value;
     }
 
+    /**
+     * Creates the text area the script is edited in.
+     */
+    protected JTextArea createTextArea() {
+        return new JTextArea();
+    }
+
     private void initUI() {
-        ta = new JTextArea();
+        ta = createTextArea();
         ta.setRows(15);
         ta.setColumns(40);
         ta.setLineWrap(false);
@@ -130,6 +223,15 @@ public class PlainSourceView extends JScrollPane
     public void doChanged(DocumentEvent e) {
         isModified = true;
 
+        // the lines of the profile no longer match the text
+        if (profile != null) {
+            setProfile(null);
+        }
+
+        if (checker != null) {
+            checker.schedule();
+        }
+
         if (linecount != ta.getLineCount()) {
             gg.update();
             linecount = ta.getLineCount();
@@ -154,30 +256,62 @@ class GlyphGutter extends JComponent {
     private PlainSourceView view;
     private final String DUMMY_STRING = "99";
 
+    // the width only changes with the font or the number of digits
+    private Font font;
+    private int digits = -1;
+    private int lineHeight;
+    private int width;
+
     GlyphGutter(PlainSourceView view) {
         this.view = view;
+        // registers the gutter for tool tips, the text comes from getToolTipText(MouseEvent)
+        setToolTipText("");
         update();
     }
 
+    public String getToolTipText(MouseEvent event) {
+        if (lineHeight == 0) {
+            return null;
+        }
+        int line = event.getY() / lineHeight;
+        String error = view.getError(line);
+        if (error != null) {
+            return error;
+        }
+        ScriptProfile profile = view.getProfile();
+        if (profile != null && profile.getHits(line + 1) > 0) {
+            long hits = profile.getHits(line + 1);
+            return String.format("%d samples, %.0f ms, %.1f%%", hits, profile.getMillis(line + 1),
+                    100.0 * hits / Math.max(1, profile.getSamples()));
+        }
+        return null;
+    }
+
     public void update() {
         JTextArea textArea = view.getTextArea();
-        Font font = textArea.getFont();
-        setFont(font);
-
-        FontMetrics metrics = getFontMetrics(font);
-        int h = metrics.getHeight();
+        Font textFont = textArea.getFont();
         int lineCount = textArea.getLineCount() + 1;
+        int lineDigits = Math.max(DUMMY_STRING.length(), Integer.toString(lineCount).length());
+
+        if (!textFont.equals(font) || lineDigits != digits) {
+            if (!textFont.equals(font)) {
+                setFont(textFont);
+                font = textFont;
+            }
+            FontMetrics metrics = getFontMetrics(textFont);
+            lineHeight = metrics.getHeight();
+            digits = lineDigits;
 
-        String dummy = Integer.toString(lineCount);
-        if (dummy.length() < 2) {
-            dummy = DUMMY_STRING;
+            char[] dummy = new char[lineDigits];
+            java.util.Arrays.fill(dummy, '9');
+            width = metrics.charsWidth(dummy, 0, dummy.length) + 16;
         }
 
-        Dimension d = new Dimension();
-        d.width = metrics.stringWidth(dummy) + 16;
-        d.height = lineCount * h + 100;
-        setPreferredSize(d);
-        setSize(d);
+        Dimension d = new Dimension(width, lineCount * lineHeight + 100);
+        if (!d.equals(getPreferredSize())) {
+            setPreferredSize(d);
+            setSize(d);
+        }
     }
 
     public void paintComponent(Graphics g) {
@@ -203,12 +337,32 @@ class GlyphGutter extends JComponent {
             endLine = lineCount;
         }
 
+        // the share of the samples of the hottest line fills the whole gutter
+        ScriptProfile profile = view.getProfile();
+        long maxHits = profile == null ? 0 : profile.getMaxHits();
+        if (maxHits > 0) {
+            for (int i = startLine; i < endLine; i++) {
+                long hits = profile.getHits(i + 1);
+                if (hits > 0) {
+                    float heat = (float) hits / maxHits;
+                    g.setColor(new Color(255, (int) (220 * (1 - heat)), 0, 160));
+                    g.fillRect(0, i * h, Math.max(2, (int) (width * heat)), h);
+                }
+            }
+        }
+
         for (int i = startLine; i < endLine; i++) {
             String text;
             text = Integer.toString(i + 1) + " ";
             int w = metrics.stringWidth(text);
             int y = i * h;
-            g.setColor(Color.blue);
+            if (view.getError(i) != null) {
+                // a line with a syntax error found by the background check
+                g.setColor(Color.red);
+                g.fillRect(0, y, 3, h);
+            } else {
+                g.setColor(Color.blue);
+            }
             g.drawString(text, 0, y + ascent);
             int x = width - ascent;
 
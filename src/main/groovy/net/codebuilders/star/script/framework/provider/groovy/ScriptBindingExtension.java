@@ -0,0 +1,74 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.script.provider.XScriptContext;
+import org.codehaus.groovy.ast.ClassHelper;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.ast.expr.VariableExpression;
+import org.codehaus.groovy.transform.sc.StaticCompilationVisitor;
+import org.codehaus.groovy.transform.stc.AbstractTypeCheckingExtension;
+import org.codehaus.groovy.transform.stc.StaticTypeCheckingVisitor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Type checking extension that declares the variables the provider puts
+ * into the Binding of every script, so scripts compiled with
+ * {@code compile = static} or {@code compile = typechecked} can use
+ * XSCRIPTCONTEXT, ARGUMENTS, CACHE, CALC and PARALLEL with their real
+ * types.
+ */
+public class ScriptBindingExtension extends AbstractTypeCheckingExtension {
+
+    private static final Map<String, Class<?>> BINDING_TYPES = new HashMap<String, Class<?>>();
+
+    static {
+        BINDING_TYPES.put("XSCRIPTCONTEXT", XScriptContext.class);
+        BINDING_TYPES.put("ARGUMENTS", Object[].class);
+        BINDING_TYPES.put(ScriptStateCache.BINDING_NAME, ScriptStateCache.class);
+        BINDING_TYPES.put(CalcRanges.BINDING_NAME, CalcRanges.class);
+        BINDING_TYPES.put(ScriptParallel.BINDING_NAME, ScriptParallel.class);
+    }
+
+    public ScriptBindingExtension(StaticTypeCheckingVisitor typeCheckingVisitor) {
+        super(typeCheckingVisitor);
+    }
+
+    public boolean handleUnresolvedVariableExpression(VariableExpression vexp) {
+        Class<?> type = BINDING_TYPES.get(vexp.getName());
+        if (type == null) {
+            return false;
+        }
+
+        ClassNode typeNode = ClassHelper.make(type);
+        if (isStaticCompilation()) {
+            // binding lookups stay dynamic, calls on the result are static
+            makeDynamic(vexp, typeNode);
+        } else {
+            storeType(vexp, typeNode);
+        }
+        return true;
+    }
+
+    private boolean isStaticCompilation() {
+        return typeCheckingVisitor instanceof StaticCompilationVisitor;
+    }
+}
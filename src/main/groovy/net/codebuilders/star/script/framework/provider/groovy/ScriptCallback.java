@@ -0,0 +1,84 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.script.provider.XScript;
+import com.sun.star.script.provider.XScriptContext;
+import com.sun.star.script.provider.XScriptProvider;
+import com.sun.star.script.provider.XScriptProviderFactory;
+import com.sun.star.uno.UnoRuntime;
+import com.sun.star.uno.XComponentContext;
+
+/**
+ * Invokes the script named by the {@code async.callback} option when an
+ * asynchronous run has finished, so macros in any language can react to
+ * it. The callback is called with the task id, the final state and the
+ * result or error text, e.g. for Basic
+ * <pre>
+ * //# async.callback = vnd.sun.star.script:Standard.Module1.Done?language=Basic&amp;location=application
+ *
+ * Sub Done(id As String, state As String, text As String)
+ * </pre>
+ */
+public class ScriptCallback implements ScriptTaskListener {
+
+    private static final String MSPF =
+            "/singletons/com.sun.star.script.provider.theMasterScriptProviderFactory";
+
+    private final String scriptUri;
+    private final XScriptContext context;
+
+    /**
+     * @param scriptUri The URI of the script to invoke
+     * @param context   The context of the finished script, its document
+     *                  is used to find document scripts
+     */
+    public ScriptCallback(String scriptUri, XScriptContext context) {
+        this.scriptUri = scriptUri;
+        this.context = context;
+    }
+
+    public void taskFinished(ScriptTask task) {
+        XComponentContext ctx = context.getComponentContext();
+        if (ctx == null) {
+            System.err.println("No component context to call back " + scriptUri);
+            return;
+        }
+
+        String text;
+        if (task.getError() != null) {
+            text = String.valueOf(task.getError().getMessage());
+        } else {
+            text = task.getResult() == null ? "" : String.valueOf(task.getResult());
+        }
+
+        try {
+            XScriptProviderFactory factory = UnoRuntime.queryInterface(
+                    XScriptProviderFactory.class, ctx.getValueByName(MSPF));
+            Object location = context.getDocument() != null ? context.getDocument() : "";
+            XScriptProvider provider = factory.createScriptProvider(location);
+            XScript script = provider.getScript(scriptUri);
+            script.invoke(new Object[]{task.getId(), task.getState().name(), text},
+                    new short[1][], new Object[1][]);
+        } catch (Exception e) {
+            System.err.println("Failed to call back " + scriptUri + " for "
+                    + task.getId() + ": " + e);
+        }
+    }
+}
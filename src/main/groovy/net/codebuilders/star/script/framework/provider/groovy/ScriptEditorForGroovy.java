@@ -23,8 +23,11 @@ import javax.swing.JFrame;
 import javax.swing.JPanel;
 import javax.swing.JButton;
 import javax.swing.JOptionPane;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
 
 import java.awt.FlowLayout;
+import java.awt.Font;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
 import java.awt.event.WindowAdapter;
@@ -33,6 +36,7 @@ import java.awt.event.WindowEvent;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.net.URL;
 import java.util.Map;
 import java.util.HashMap;
@@ -41,14 +45,16 @@ import com.sun.star.script.provider.XScriptContext;
 import com.sun.star.script.framework.provider.ScriptEditor;
 import com.sun.star.script.framework.provider.SwingInvocation;
 import com.sun.star.script.framework.container.ScriptMetaData;
-import com.sun.star.script.framework.provider.ClassLoaderFactory;
 
 public class ScriptEditorForGroovy implements ScriptEditor, ActionListener {
+    public static final String HIGHLIGHT_PROPERTY = "net.codebuilders.groovy.editor.highlight";
+
     private JFrame frame;
     private String filename;
 
     private ScriptSourceModel model;
     private ScriptSourceView view;
+    private SourceChecker checker;
 
     private XScriptContext context;
     private URL scriptURL = null;
@@ -167,6 +173,25 @@ public class ScriptEditorForGroovy implements ScriptEditor, ActionListener {
         return model.execute(context, cl);
     }
 
+    /**
+     * Executes the script while sampling where its time goes and shows
+     * the result in the gutter of the editor and in a dialog
+     */
+    public Object profile() throws Exception {
+        frame.toFront();
+        ScriptProfiler profiler = new ScriptProfiler(Thread.currentThread(), model.getLocation());
+        profiler.start();
+        try {
+            return model.execute(context, cl);
+        } finally {
+            ScriptProfile profile = profiler.stop();
+            if (view instanceof PlainSourceView) {
+                ((PlainSourceView) view).setProfile(profile);
+            }
+            showProfile(profile);
+        }
+    }
+
     /**
      * Opens an editor window for the specified ScriptMetaData.
      * If an editor window is already open for that data it will be
@@ -180,11 +205,13 @@ public class ScriptEditorForGroovy implements ScriptEditor, ActionListener {
             try {
                 ClassLoader cl = null;
                 try {
-                    cl = ClassLoaderFactory.getURLClassLoader(entry);
+                    cl = ParcelClassLoaderPool.getPool().getClassLoader(
+                            entry, context.getComponentContext());
                 } catch (Exception ignore) // TODO re-examine error handling
                 {
                 }
                 final ClassLoader theCl = cl;
+                final String parcel = entry.getParcelLocation();
                 String sUrl = entry.getParcelLocation();
                 if (!sUrl.endsWith("/")) {
                     sUrl += "/";
@@ -200,7 +227,7 @@ public class ScriptEditorForGroovy implements ScriptEditor, ActionListener {
                                             BEING_EDITED.get(url);
                                     if (editor == null) {
                                         editor = new ScriptEditorForGroovy(
-                                                context, theCl, url);
+                                                context, theCl, url, parcel);
                                         BEING_EDITED.put(url, editor);
                                     }
                                 }
@@ -216,10 +243,11 @@ public class ScriptEditorForGroovy implements ScriptEditor, ActionListener {
     private ScriptEditorForGroovy() {
     }
 
-    private ScriptEditorForGroovy(XScriptContext context, ClassLoader cl, URL url) {
+    private ScriptEditorForGroovy(XScriptContext context, ClassLoader cl, URL url, String parcel) {
         this.context = context;
         this.scriptURL = url;
         this.model = new ScriptSourceModel(url);
+        this.model.setParcel(parcel);
         this.filename = url.getFile();
         this.cl = cl;
         try {
@@ -234,25 +262,56 @@ public class ScriptEditorForGroovy implements ScriptEditor, ActionListener {
                 Object[] args = new Object[]{this.model};
                 this.view = (ScriptSourceView) ctor.newInstance(args);
             } else {
-                this.view = new PlainSourceView(model);
+                this.view = createView(model);
             }
         } catch (java.lang.Error err) {
-            this.view = new PlainSourceView(model);
+            this.view = createView(model);
         } catch (Exception e) {
-            this.view = new PlainSourceView(model);
+            this.view = createView(model);
         }
 
         this.model.setView(this.view);
+
+        // the NetBeans view shows no markers but Run still reuses the check
+        SourceChecker.Listener listener = view instanceof SourceChecker.Listener
+                ? (SourceChecker.Listener) view : null;
+        this.checker = new SourceChecker(view, cl,
+                CompiledScriptCache.className(url.toString()), listener);
+        this.model.setChecker(checker);
+        if (view instanceof PlainSourceView) {
+            ((PlainSourceView) view).setChecker(checker);
+        }
+        checker.schedule();
+
         initUI();
         // frame.show();
         frame.setVisible(true);
     }
 
+    // highlighting unless net.codebuilders.groovy.editor.highlight is false
+    private static ScriptSourceView createView(ScriptSourceModel model) {
+        if (Boolean.parseBoolean(System.getProperty(HIGHLIGHT_PROPERTY, "true"))) {
+            return new HighlightingSourceView(model);
+        }
+        return new PlainSourceView(model);
+    }
+
     private void showErrorMessage(String message) {
         JOptionPane.showMessageDialog(frame, message,
                 "Error", JOptionPane.ERROR_MESSAGE);
     }
 
+    private void showProfile(ScriptProfile profile) {
+        StringWriter out = new StringWriter();
+        profile.write(out, view.getText());
+        JTextArea text = new JTextArea(out.toString(), 16, 60);
+        text.setEditable(false);
+        text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        text.setCaretPosition(0);
+        JOptionPane.showMessageDialog(frame, new JScrollPane(text),
+                "Profile", JOptionPane.INFORMATION_MESSAGE);
+    }
+
     private void initUI() {
         frame = new JFrame("Groovy Debug Window: " + filename);
         frame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
@@ -265,7 +324,7 @@ public class ScriptEditorForGroovy implements ScriptEditor, ActionListener {
                 }
         );
 
-        String[] labels = {"Run", "Clear", "Save", "Close"};
+        String[] labels = {"Run", "Profile", "Clear", "Save", "Close"};
         JPanel p = new JPanel();
         p.setLayout(new FlowLayout());
 
@@ -318,7 +377,7 @@ public class ScriptEditorForGroovy implements ScriptEditor, ActionListener {
             String s = view.getText();
             fos = scriptURL.openConnection().getOutputStream();
             if (fos != null) {
-                fos.write(s.getBytes());
+                fos.write(SourceLoader.encode(s));
             } else {
                 showErrorMessage(
                         "Error saving script: Could not open stream for file");
@@ -341,6 +400,8 @@ public class ScriptEditorForGroovy implements ScriptEditor, ActionListener {
                 } catch (IOException ignore) {
                 }
             }
+            // don't wait for the source watcher before the next run
+            SourceCache.getCache().invalidate(scriptURL);
         }
         return result;
     }
@@ -349,6 +410,7 @@ public class ScriptEditorForGroovy implements ScriptEditor, ActionListener {
         synchronized (BEING_EDITED) {
             BEING_EDITED.remove(scriptURL);
         }
+        checker.dispose();
     }
 
     public void actionPerformed(ActionEvent e) {
@@ -358,6 +420,12 @@ public class ScriptEditorForGroovy implements ScriptEditor, ActionListener {
             } catch (Exception invokeException) {
                 showErrorMessage(invokeException.getMessage());
             }
+        } else if (e.getActionCommand().equals("Profile")) {
+            try {
+                profile();
+            } catch (Exception invokeException) {
+                showErrorMessage(invokeException.getMessage());
+            }
         } else if (e.getActionCommand().equals("Close")) {
             doClose();
         } else if (e.getActionCommand().equals("Save")) {
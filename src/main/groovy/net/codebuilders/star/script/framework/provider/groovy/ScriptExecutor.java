@@ -0,0 +1,267 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded worker pool for scripts run with the {@code async} option.
+ * <p>
+ * The pool size, the number of queued runs and the default number of
+ * runs of one script that may be queued or running at the same time are
+ * set with the system properties
+ * {@code net.codebuilders.groovy.async.threads},
+ * {@code net.codebuilders.groovy.async.queue} and
+ * {@code net.codebuilders.groovy.async.maxConcurrent}. A script may
+ * change its own limit with {@code //# async.maxConcurrent = n}.
+ * Submissions beyond any limit are rejected rather than blocking the
+ * caller.
+ */
+public class ScriptExecutor {
+
+    public static final String THREADS_PROPERTY = "net.codebuilders.groovy.async.threads";
+    public static final String QUEUE_PROPERTY = "net.codebuilders.groovy.async.queue";
+    public static final String MAX_CONCURRENT_PROPERTY =
+            "net.codebuilders.groovy.async.maxConcurrent";
+
+    private static final int DEFAULT_QUEUE = 32;
+    private static final int DEFAULT_MAX_CONCURRENT = 1;
+
+    // finished tasks kept so their results can still be looked up
+    private static final int MAX_FINISHED = 64;
+
+    // global ScriptExecutor returned for getExecutor() calls
+    private static volatile ScriptExecutor theScriptExecutor;
+
+    private final ThreadPoolExecutor executor;
+    private final int defaultMaxConcurrent;
+
+    // queued and running tasks allowed in total
+    private final int capacity;
+
+    private final Map<String, ScriptTask> active = new LinkedHashMap<String, ScriptTask>();
+    private final Map<String, ScriptTask> finished =
+            new LinkedHashMap<String, ScriptTask>() {
+                protected boolean removeEldestEntry(Map.Entry<String, ScriptTask> eldest) {
+                    return size() > MAX_FINISHED;
+                }
+            };
+    private final Map<String, Integer> perScript = new HashMap<String, Integer>();
+
+    /**
+     * A piece of work run for a task.
+     */
+    public interface Work {
+        Object run(ScriptTask task) throws Exception;
+    }
+
+    /**
+     * Returns the global ScriptExecutor instance.
+     */
+    public static ScriptExecutor getExecutor() {
+        if (theScriptExecutor == null) {
+            synchronized (ScriptExecutor.class) {
+                if (theScriptExecutor == null) {
+                    theScriptExecutor = new ScriptExecutor(
+                            Integer.getInteger(THREADS_PROPERTY,
+                                    Math.max(2, Runtime.getRuntime().availableProcessors())),
+                            Integer.getInteger(QUEUE_PROPERTY, DEFAULT_QUEUE),
+                            Integer.getInteger(MAX_CONCURRENT_PROPERTY, DEFAULT_MAX_CONCURRENT));
+                }
+            }
+        }
+        return theScriptExecutor;
+    }
+
+    public ScriptExecutor(int threads, int queueSize, int defaultMaxConcurrent) {
+        this.defaultMaxConcurrent = Math.max(1, defaultMaxConcurrent);
+
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Groovy script " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        threads = Math.max(1, threads);
+        queueSize = Math.max(1, queueSize);
+        capacity = threads + queueSize;
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), factory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public int getDefaultMaxConcurrent() {
+        return defaultMaxConcurrent;
+    }
+
+    /**
+     * Queues a run of a script.
+     *
+     * @param scriptUrl     The source URL of the script
+     * @param maxConcurrent How many runs of the script may be queued or
+     *                      running, including this one
+     * @param work          The run itself
+     * @return The task of the run
+     * @throws RejectedExecutionException If the queue is full or the
+     *                                    script has too many runs
+     */
+    public ScriptTask submit(String scriptUrl, int maxConcurrent, Work work)
+            throws RejectedExecutionException {
+        return submit(scriptUrl, maxConcurrent, false, work);
+    }
+
+    /**
+     * Queues a run of a script, optionally on a virtual thread of its own.
+     * <p>
+     * Runs on virtual threads are not queued behind the worker pool but
+     * count against the same limit of queued and running tasks.
+     *
+     * @param scriptUrl     The source URL of the script
+     * @param maxConcurrent How many runs of the script may be queued or
+     *                      running, including this one
+     * @param virtual       true to run on a virtual thread, a platform
+     *                      pool thread is used before Java 21
+     * @param work          The run itself
+     * @return The task of the run
+     * @throws RejectedExecutionException If the queue is full or the
+     *                                    script has too many runs
+     */
+    public ScriptTask submit(final String scriptUrl, int maxConcurrent, boolean virtual,
+                             final Work work) throws RejectedExecutionException {
+
+        virtual = virtual && ScriptThreads.isVirtualAvailable();
+
+        final ScriptTask task = new ScriptTask(scriptUrl);
+
+        synchronized (this) {
+            Integer running = perScript.get(scriptUrl);
+            int n = running == null ? 0 : running;
+            if (n >= Math.max(1, maxConcurrent)) {
+                throw new RejectedExecutionException(
+                        scriptUrl + " already has " + n + " queued or running tasks");
+            }
+            if (virtual && active.size() >= capacity) {
+                throw new RejectedExecutionException("Too many queued Groovy scripts ("
+                        + active.size() + ")");
+            }
+            perScript.put(scriptUrl, n + 1);
+            active.put(task.getId(), task);
+        }
+
+        task.setOnFinish(new Runnable() {
+            public void run() {
+                release(task);
+            }
+        });
+
+        Runnable run = new Runnable() {
+                public void run() {
+                    if (!task.start()) {
+                        return;
+                    }
+                    Object result = null;
+                    Throwable error = null;
+                    try {
+                        result = work.run(task);
+                    } catch (Throwable t) {
+                        error = t;
+                        if (!task.isCancelled()) {
+                            System.err.println("Script task " + task.getId() + " failed: " + t);
+                        }
+                    }
+                    task.finish(result, error);
+
+                    // a cancelled run must not leave the pool thread interrupted
+                    Thread.interrupted();
+                }
+            };
+
+        if (virtual) {
+            ScriptThreads.newThread("Groovy script " + task.getId(), run, true).start();
+            return task;
+        }
+
+        try {
+            executor.execute(run);
+        } catch (RejectedExecutionException ree) {
+            task.setOnFinish(null);
+            synchronized (this) {
+                release(task);
+                finished.remove(task.getId());
+            }
+            throw new RejectedExecutionException("Too many queued Groovy scripts ("
+                    + executor.getQueue().size() + ")", ree);
+        }
+        return task;
+    }
+
+    private synchronized void release(ScriptTask task) {
+        Integer running = perScript.get(task.getScriptUrl());
+        if (running != null && running > 1) {
+            perScript.put(task.getScriptUrl(), running - 1);
+        } else {
+            perScript.remove(task.getScriptUrl());
+        }
+        active.remove(task.getId());
+        finished.put(task.getId(), task);
+    }
+
+    /**
+     * Looks up a queued, running or recently finished task.
+     *
+     * @param id The task id
+     * @return The task or null if it is unknown
+     */
+    public synchronized ScriptTask getTask(String id) {
+        ScriptTask task = active.get(id);
+        return task != null ? task : finished.get(id);
+    }
+
+    /**
+     * Returns the tasks that are queued or running.
+     */
+    public synchronized List<ScriptTask> getActiveTasks() {
+        return new ArrayList<ScriptTask>(active.values());
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int getRunningCount() {
+        return executor.getActiveCount();
+    }
+
+    public String toString() {
+        return "ScriptExecutor[threads=" + executor.getMaximumPoolSize()
+                + ", running=" + getRunningCount() + ", queued=" + getQueueSize() + "]";
+    }
+}
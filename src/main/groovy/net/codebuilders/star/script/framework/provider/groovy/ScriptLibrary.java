@@ -0,0 +1,430 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyResourceLoader;
+import org.codehaus.groovy.control.CompilationFailedException;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The class loader of a parcel that also finds the classes of the Groovy
+ * scripts in the parcel directory and in the shared library directories.
+ * <p>
+ * A script may use the classes of another script by name, e.g.
+ * {@code new Util().format(x)} finds {@code Util.groovy} and
+ * {@code a.b.Util} finds {@code a/b/Util.groovy}. Scripts of the parcel
+ * come before scripts of the shared directories, which are listed in the
+ * system property {@code net.codebuilders.groovy.library} separated like
+ * a class path. Classes on the class path of the parcel come first.
+ * <p>
+ * A library script is compiled once, when it is first used, and its
+ * classes are defined in a class loader of their own. The scripts and
+ * library scripts that used it while being compiled are remembered, and
+ * {@link #refresh()} drops a modified library script together with every
+ * script that depends on it, directly or through other library scripts.
+ * All other compiled scripts are kept.
+ */
+public class ScriptLibrary extends GroovyClassLoader {
+
+    public static final String PATH_PROPERTY = "net.codebuilders.groovy.library";
+
+    private final File[] roots;
+    private final long classPathStamp;
+
+    // the library scripts and what depends on them, guarded by the map itself
+    private final Map<String, LibraryScript> scripts = new HashMap<String, LibraryScript>();
+    private final Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
+    private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+    private final Set<String> missing = new HashSet<String>();
+
+    // the scripts being compiled on this thread and their class names, the innermost last
+    private final ThreadLocal<Deque<String>> compiling = new ThreadLocal<Deque<String>>() {
+        protected Deque<String> initialValue() {
+            return new ArrayDeque<String>();
+        }
+    };
+    private final ThreadLocal<Deque<String>> compilingNames = new ThreadLocal<Deque<String>>() {
+        protected Deque<String> initialValue() {
+            return new ArrayDeque<String>();
+        }
+    };
+
+    /**
+     * @param parent    The loader of the parcel class path
+     * @param parcelDir The parcel directory, may be null
+     */
+    public ScriptLibrary(ClassLoader parent, File parcelDir) {
+        this(parent, parcelDir, 0);
+    }
+
+    /**
+     * @param parent         The loader of the parcel class path
+     * @param parcelDir      The parcel directory, may be null
+     * @param classPathStamp Changes when a file of the parcel class path changes
+     */
+    public ScriptLibrary(ClassLoader parent, File parcelDir, long classPathStamp) {
+        super(parent);
+        this.roots = roots(parcelDir);
+        this.classPathStamp = classPathStamp;
+
+        // library scripts are compiled here, never as part of the script using them
+        setResourceLoader(new GroovyResourceLoader() {
+            public URL loadGroovySource(String filename) {
+                return null;
+            }
+        });
+    }
+
+    private static File[] roots(File parcelDir) {
+        List<File> roots = new ArrayList<File>();
+        if (parcelDir != null && parcelDir.isDirectory()) {
+            roots.add(parcelDir);
+        }
+        String path = System.getProperty(PATH_PROPERTY);
+        if (path != null) {
+            for (String dir : path.split(File.pathSeparator)) {
+                File root = new File(dir.trim());
+                if (dir.trim().length() > 0 && root.isDirectory() && !roots.contains(root)) {
+                    roots.add(root);
+                }
+            }
+        }
+        return roots.toArray(new File[0]);
+    }
+
+    public Class<?> loadClass(String name, boolean lookupScriptFiles,
+                              boolean preferClassOverScript, boolean resolve)
+            throws ClassNotFoundException, CompilationFailedException {
+        try {
+            return super.loadClass(name, false, true, resolve);
+        } catch (ClassNotFoundException cnfe) {
+            Class<?> c = findLibraryClass(name);
+            if (c == null) {
+                throw cnfe;
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Returns the stamp of the parcel class path this loader was made
+     * for, compiled classes stored on disk are only reused for the same.
+     */
+    public long getClassPathStamp() {
+        return classPathStamp;
+    }
+
+    /**
+     * Marks the start of compiling a script, the library scripts it uses
+     * from now on are recorded as its dependencies.
+     *
+     * @param unit The key of the script in the {@link CompiledScriptCache}
+     */
+    public void beginUnit(String unit) {
+        compiling.get().addLast(unit);
+        compilingNames.get().addLast(CompiledScriptCache.className(unit));
+    }
+
+    /**
+     * Marks the end of compiling a script.
+     *
+     * @param unit The key of the script in the {@link CompiledScriptCache}
+     * @return True if the script uses library scripts
+     */
+    public boolean endUnit(String unit) {
+        compiling.get().removeLastOccurrence(unit);
+        compilingNames.get().removeLastOccurrence(CompiledScriptCache.className(unit));
+        synchronized (scripts) {
+            for (Set<String> users : dependents.values()) {
+                if (users.contains(unit)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Drops the library scripts modified since they were compiled and the
+     * scripts depending on them.
+     *
+     * @return The keys of the dropped scripts in the {@link CompiledScriptCache}
+     */
+    public Set<String> refresh() {
+        synchronized (scripts) {
+            // a script added since the last lookup may be found now
+            missing.clear();
+
+            Set<String> stale = new LinkedHashSet<String>();
+            for (LibraryScript script : scripts.values()) {
+                if (script.isModified()) {
+                    stale.add(script.name);
+                }
+            }
+            if (stale.isEmpty()) {
+                return Collections.emptySet();
+            }
+
+            Deque<String> todo = new ArrayDeque<String>(stale);
+            while (!todo.isEmpty()) {
+                Set<String> users = dependents.get(todo.pop());
+                if (users != null) {
+                    for (String user : users) {
+                        if (stale.add(user)) {
+                            todo.push(user);
+                        }
+                    }
+                }
+            }
+
+            Set<String> dropped = new HashSet<String>();
+            for (String unit : stale) {
+                LibraryScript script = scripts.remove(unit);
+                if (script != null) {
+                    classes.keySet().removeAll(script.classNames);
+                    script.compiled.release();
+                } else {
+                    dropped.add(unit);
+                }
+                dependents.remove(unit);
+                for (Set<String> users : dependents.values()) {
+                    users.remove(unit);
+                }
+            }
+            System.err.println("Library scripts changed, recompiling " + stale);
+            return dropped;
+        }
+    }
+
+    /**
+     * Releases the classes of all library scripts, called when the parcel
+     * loader is dropped.
+     */
+    public void release() {
+        synchronized (scripts) {
+            for (LibraryScript script : scripts.values()) {
+                script.compiled.release();
+            }
+            scripts.clear();
+            classes.clear();
+            dependents.clear();
+            missing.clear();
+        }
+    }
+
+    /**
+     * Returns the names of the library scripts compiled so far.
+     */
+    public Set<String> getLibraryScripts() {
+        synchronized (scripts) {
+            return new HashSet<String>(scripts.keySet());
+        }
+    }
+
+    private Class<?> findLibraryClass(String name) {
+        Deque<String> names = compilingNames.get();
+
+        // a nested class is declared in the script of its outer class
+        int dollar = name.indexOf('$');
+        String scriptName = dollar > 0 ? name.substring(0, dollar) : name;
+
+        synchronized (scripts) {
+            Class<?> c = classes.get(name);
+            if (c != null) {
+                return used(c);
+            }
+            if (missing.contains(scriptName) || scripts.containsKey(scriptName)
+                    || scriptName.equals(names.peekLast())) {
+                // the script being compiled looks up its own classes first
+                return null;
+            }
+        }
+
+        File file = find(scriptName);
+        if (file == null) {
+            synchronized (scripts) {
+                missing.add(scriptName);
+            }
+            return null;
+        }
+        if (names.contains(scriptName)) {
+            System.err.println("Library scripts " + names + " depend on each other, "
+                    + scriptName + " cannot be compiled while they are");
+            return null;
+        }
+
+        // compiled without the lock, it may take long and look up other library scripts
+        LibraryScript script;
+        try {
+            script = compile(scriptName, file);
+        } catch (CompilationFailedException cfe) {
+            // the script using it fails to resolve the class
+            StringBuilder buf = new StringBuilder();
+            buf.append("Failed to compile library script ").append(file).append(':');
+            for (String line : CompiledScript.describe(cfe)) {
+                buf.append("\n    ").append(line);
+            }
+            System.err.println(buf);
+            return null;
+        }
+
+        LibraryScript unused = null;
+        Class<?> c;
+        synchronized (scripts) {
+            if (script == null) {
+                missing.add(scriptName);
+                return null;
+            }
+            if (scripts.containsKey(scriptName)) {
+                // another thread compiled it in the meantime, its classes are used
+                unused = script;
+            } else {
+                classes.putAll(script.classes);
+                scripts.put(scriptName, script);
+            }
+            c = classes.get(name);
+            if (c != null) {
+                used(c);
+            }
+        }
+        if (unused != null) {
+            unused.compiled.release();
+        } else if (!script.classes.containsKey(scriptName)) {
+            System.err.println("Library script " + file + " declares no class " + scriptName
+                    + ", check its package");
+        }
+        return c;
+    }
+
+    // records the script being compiled on this thread as a user of the class
+    private Class<?> used(Class<?> c) {
+        String user = compiling.get().peekLast();
+        if (user != null) {
+            String scriptName = owner(c);
+            if (!scriptName.equals(user)) {
+                Set<String> users = dependents.get(scriptName);
+                if (users == null) {
+                    users = new HashSet<String>();
+                    dependents.put(scriptName, users);
+                }
+                users.add(user);
+            }
+        }
+        return c;
+    }
+
+    // the library script that declares a class
+    private String owner(Class<?> c) {
+        for (LibraryScript script : scripts.values()) {
+            if (script.classNames.contains(c.getName())) {
+                return script.name;
+            }
+        }
+        return c.getName();
+    }
+
+    private File find(String scriptName) {
+        String path = scriptName.replace('.', File.separatorChar) + ".groovy";
+        for (File root : roots) {
+            File file = new File(root, path);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    // compiles a library script without publishing it, null if it cannot be read
+    private LibraryScript compile(String scriptName, File file) throws CompilationFailedException {
+        String source;
+        long lastModified = file.lastModified();
+        long length = file.length();
+        try {
+            source = SourceLoader.read(file.toURI().toURL(), file);
+        } catch (IOException ioe) {
+            System.err.println("Failed to read library script " + file + ": " + ioe.getMessage());
+            return null;
+        }
+
+        String simpleName = scriptName.substring(scriptName.lastIndexOf('.') + 1);
+        CompiledScript compiled;
+        compiling.get().addLast(scriptName);
+        compilingNames.get().addLast(scriptName);
+        try {
+            compiled = CompiledScript.compile(source, simpleName, this,
+                    ScriptOptions.parse(null, source));
+        } finally {
+            compiling.get().removeLast();
+            compilingNames.get().removeLast();
+        }
+
+        LibraryScript script = new LibraryScript(scriptName, file, lastModified, length,
+                compiled);
+        ClassLoader scriptLoader = compiled.getScriptClass().getClassLoader();
+        try {
+            for (String className : script.classNames) {
+                script.classes.put(className, scriptLoader.loadClass(className));
+            }
+        } catch (ClassNotFoundException cnfe) {
+            compiled.release();
+            throw new IllegalStateException("Library script " + file + " has no class "
+                    + cnfe.getMessage(), cnfe);
+        }
+        return script;
+    }
+
+    private static class LibraryScript {
+        private final String name;
+        private final File file;
+        private final long lastModified;
+        private final long length;
+        private final Set<String> classNames;
+        private final Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
+        private final CompiledScript compiled;
+
+        LibraryScript(String name, File file, long lastModified, long length,
+                      CompiledScript compiled) {
+            this.name = name;
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.classNames = new HashSet<String>(compiled.getClasses().keySet());
+            this.compiled = compiled;
+        }
+
+        boolean isModified() {
+            return !file.isFile() || file.lastModified() != lastModified
+                    || file.length() != length;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Stops scripts that run too long, use too much CPU time or allocate too
+ * much memory.
+ * <p>
+ * The limits of a script come from its {@code limit.time},
+ * {@code limit.cputime} (both in milliseconds) and {@code limit.allocation}
+ * (in bytes, with an optional k, m or g suffix) options, e.g.
+ * <pre>
+ * //# limit.time = 5000
+ * //# limit.allocation = 256m
+ * </pre>
+ * The defaults for scripts without the options are set with the system
+ * properties {@code net.codebuilders.groovy.limit.time},
+ * {@code net.codebuilders.groovy.limit.cputime} and
+ * {@code net.codebuilders.groovy.limit.allocation}. Nothing is limited by
+ * default.
+ * <p>
+ * A watchdog thread checks the running scripts and interrupts the thread
+ * of a script over its limit. Scripts are compiled to check the interrupt
+ * flag in every loop, closure and method, so the script ends with an
+ * InterruptedException at its next check. A script blocked in a call
+ * into the office can only be stopped once the call returns. CPU time and
+ * allocation cannot be measured on virtual threads, only the wall time
+ * limit applies to them.
+ */
+public final class ScriptLimits {
+
+    public static final String TIME_PROPERTY = "net.codebuilders.groovy.limit.time";
+    public static final String CPU_TIME_PROPERTY = "net.codebuilders.groovy.limit.cputime";
+    public static final String ALLOCATION_PROPERTY = "net.codebuilders.groovy.limit.allocation";
+
+    public static final ScriptLimits NONE = new ScriptLimits(0, 0, 0);
+
+    // how often the watchdog checks the running scripts
+    private static final long PERIOD_MILLIS = 20;
+
+    private static final List<Run> runs = new ArrayList<Run>();
+    private static Thread watchdog;
+
+    private final long timeMillis;
+    private final long cpuTimeMillis;
+    private final long allocationBytes;
+
+    public ScriptLimits(long timeMillis, long cpuTimeMillis, long allocationBytes) {
+        this.timeMillis = timeMillis;
+        this.cpuTimeMillis = cpuTimeMillis;
+        this.allocationBytes = allocationBytes;
+    }
+
+    /**
+     * Returns the limits of a script.
+     *
+     * @param options The options of the script
+     * @return The limits, {@link #NONE} if nothing is limited
+     */
+    public static ScriptLimits get(ScriptOptions options) {
+        long time = parse(ScriptOptions.LIMIT_TIME,
+                options.get(ScriptOptions.LIMIT_TIME, System.getProperty(TIME_PROPERTY)));
+        long cpuTime = parse(ScriptOptions.LIMIT_CPU_TIME,
+                options.get(ScriptOptions.LIMIT_CPU_TIME, System.getProperty(CPU_TIME_PROPERTY)));
+        long allocation = parse(ScriptOptions.LIMIT_ALLOCATION,
+                options.get(ScriptOptions.LIMIT_ALLOCATION, System.getProperty(ALLOCATION_PROPERTY)));
+        if (time <= 0 && cpuTime <= 0 && allocation <= 0) {
+            return NONE;
+        }
+        return new ScriptLimits(time, cpuTime, allocation);
+    }
+
+    // a number with an optional k, m or g suffix, 0 for no limit
+    static long parse(String name, String value) {
+        if (value == null || value.trim().length() == 0) {
+            return 0;
+        }
+        String number = value.trim().toLowerCase();
+        long unit = 1;
+        char suffix = number.charAt(number.length() - 1);
+        if (suffix == 'k' || suffix == 'm' || suffix == 'g') {
+            unit = suffix == 'k' ? 1024L : suffix == 'm' ? 1024L * 1024 : 1024L * 1024 * 1024;
+            number = number.substring(0, number.length() - 1).trim();
+        }
+        try {
+            return Long.parseLong(number) * unit;
+        } catch (NumberFormatException nfe) {
+            System.err.println("Ignoring option " + name + " = " + value + ", not a number");
+            return 0;
+        }
+    }
+
+    public boolean isLimited() {
+        return timeMillis > 0 || cpuTimeMillis > 0 || allocationBytes > 0;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    public long getCpuTimeMillis() {
+        return cpuTimeMillis;
+    }
+
+    public long getAllocationBytes() {
+        return allocationBytes;
+    }
+
+    /**
+     * Runs a script on the calling thread within the limits.
+     *
+     * @param name Names the script in messages
+     * @param work The run
+     * @return The result of the run
+     * @throws LimitExceededException If the run was stopped
+     * @throws Exception              What the run threw
+     */
+    public <T> T call(String name, Callable<T> work) throws Exception {
+        if (!isLimited()) {
+            return work.call();
+        }
+
+        Run run = new Run(name, Thread.currentThread(), this);
+        add(run);
+        String exceeded = null;
+        try {
+            T result = work.call();
+            exceeded = run.finish();
+            if (exceeded != null) {
+                // the script caught the InterruptedException
+                throw new LimitExceededException(exceeded, null);
+            }
+            return result;
+        } catch (Exception e) {
+            exceeded = run.finish();
+            if (exceeded != null && !(e instanceof LimitExceededException)) {
+                throw new LimitExceededException(exceeded, e);
+            }
+            throw e;
+        } finally {
+            exceeded = run.finish();
+            remove(run);
+            if (exceeded != null) {
+                // the interrupt was meant for the script, not for whoever runs next on this thread
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Wraps a run so it is limited on the thread it ends up running on.
+     *
+     * @param name Names the script in messages
+     * @param work The run
+     * @return The limited run
+     */
+    public <T> Callable<T> wrap(final String name, final Callable<T> work) {
+        if (!isLimited()) {
+            return work;
+        }
+        return new Callable<T>() {
+            public T call() throws Exception {
+                return ScriptLimits.this.call(name, work);
+            }
+        };
+    }
+
+    private static void add(Run run) {
+        synchronized (runs) {
+            runs.add(run);
+            if (watchdog == null) {
+                watchdog = new Thread(new Runnable() {
+                    public void run() {
+                        watch();
+                    }
+                }, "Groovy script watchdog");
+                watchdog.setDaemon(true);
+                watchdog.start();
+            }
+            runs.notifyAll();
+        }
+    }
+
+    private static void remove(Run run) {
+        synchronized (runs) {
+            runs.remove(run);
+        }
+    }
+
+    private static void watch() {
+        List<Run> current = new ArrayList<Run>();
+        while (true) {
+            try {
+                synchronized (runs) {
+                    while (runs.isEmpty()) {
+                        runs.wait();
+                    }
+                    current.clear();
+                    current.addAll(runs);
+                }
+                long now = System.nanoTime();
+                for (Run run : current) {
+                    run.check(now);
+                }
+                Thread.sleep(PERIOD_MILLIS);
+            } catch (InterruptedException ie) {
+                // keep watching
+            } catch (Throwable t) {
+                System.err.println("Groovy script watchdog: " + t);
+            }
+        }
+    }
+
+    private static class Run {
+
+        private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        private final String name;
+        private final Thread thread;
+        private final ScriptLimits limits;
+        private final long startNanos;
+        private final long startCpu;
+        private final long startAllocated;
+        private boolean finished = false;
+        private String exceeded = null;
+
+        Run(String name, Thread thread, ScriptLimits limits) {
+            this.name = name;
+            this.thread = thread;
+            this.limits = limits;
+            this.startNanos = System.nanoTime();
+            this.startCpu = limits.cpuTimeMillis > 0 ? cpuTime() : -1;
+            this.startAllocated = limits.allocationBytes > 0 ? allocated() : -1;
+        }
+
+        synchronized void check(long now) {
+            if (finished || exceeded != null) {
+                return;
+            }
+
+            if (limits.timeMillis > 0 && now - startNanos > limits.timeMillis * 1000000L) {
+                exceeded = "its time limit of " + limits.timeMillis + " ms";
+            } else if (startCpu >= 0) {
+                long cpu = cpuTime();
+                if (cpu >= 0 && cpu - startCpu > limits.cpuTimeMillis * 1000000L) {
+                    exceeded = "its CPU time limit of " + limits.cpuTimeMillis + " ms";
+                }
+            }
+            if (exceeded == null && startAllocated >= 0) {
+                long bytes = allocated();
+                if (bytes >= 0 && bytes - startAllocated > limits.allocationBytes) {
+                    exceeded = "its allocation limit of " + limits.allocationBytes + " bytes";
+                }
+            }
+
+            if (exceeded != null) {
+                System.err.println("Stopping " + name + ", it exceeded " + exceeded);
+                thread.interrupt();
+            }
+        }
+
+        // returns what was exceeded or null, the watchdog leaves the thread alone afterwards
+        synchronized String finish() {
+            finished = true;
+            return exceeded;
+        }
+
+        private long cpuTime() {
+            try {
+                if (!threads.isThreadCpuTimeSupported()) {
+                    return -1;
+                }
+                if (!threads.isThreadCpuTimeEnabled()) {
+                    threads.setThreadCpuTimeEnabled(true);
+                }
+                return threads.getThreadCpuTime(thread.getId());
+            } catch (UnsupportedOperationException uoe) {
+                return -1;
+            }
+        }
+
+        private long allocated() {
+            if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+                return -1;
+            }
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            try {
+                if (!sunThreads.isThreadAllocatedMemorySupported()) {
+                    return -1;
+                }
+                if (!sunThreads.isThreadAllocatedMemoryEnabled()) {
+                    sunThreads.setThreadAllocatedMemoryEnabled(true);
+                }
+                return sunThreads.getThreadAllocatedBytes(thread.getId());
+            } catch (UnsupportedOperationException uoe) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Thrown when a script was stopped because it exceeded a limit.
+     */
+    public static class LimitExceededException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        LimitExceededException(String exceeded, Throwable cause) {
+            super("Script stopped, it exceeded " + exceeded, cause);
+        }
+    }
+}
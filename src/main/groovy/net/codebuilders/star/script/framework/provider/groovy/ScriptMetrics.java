@@ -0,0 +1,455 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Invocation counts, error counts and per phase latency histograms of
+ * the scripts run by the provider, published through JMX.
+ * <p>
+ * The counters of at most {@code net.codebuilders.groovy.metrics.size}
+ * scripts are kept, 256 by default, those of the script not run for the
+ * longest time are dropped first. The totals count every script.
+ */
+public class ScriptMetrics implements ScriptMetricsMXBean {
+
+    // system property to change the number of scripts counted separately
+    public static final String MAX_SCRIPTS_PROPERTY = "net.codebuilders.groovy.metrics.size";
+
+    public static final String OBJECT_NAME =
+            "net.codebuilders.star.script.framework.provider.groovy:type=ScriptMetrics";
+
+    /**
+     * The phases of an invocation that are timed separately.
+     */
+    public enum Phase {
+        CLASS_LOADER, SOURCE, COMPILE, EXECUTE
+    }
+
+    // upper bounds of the histogram buckets in microseconds, the last bucket is open
+    private static final long[] BUCKET_LIMITS = {100, 1000, 10000, 100000, 1000000, 10000000};
+
+    private static final int DEFAULT_MAX_SCRIPTS = 256;
+
+    private static final String[] BUCKET_LABELS =
+            {"<100us", "<1ms", "<10ms", "<100ms", "<1s", "<10s", ">=10s"};
+
+    // global ScriptMetrics returned for getMetrics() calls
+    private static volatile ScriptMetrics theScriptMetrics;
+
+    // access ordered so the eldest entry is the least recently used one, guarded by the map itself
+    private final Map<String, Counters> scripts;
+    private final AtomicLong invocations = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Returns the global ScriptMetrics instance.
+     */
+    public static ScriptMetrics getMetrics() {
+        if (theScriptMetrics == null) {
+            synchronized (ScriptMetrics.class) {
+                if (theScriptMetrics == null) {
+                    theScriptMetrics = new ScriptMetrics(
+                            Integer.getInteger(MAX_SCRIPTS_PROPERTY, DEFAULT_MAX_SCRIPTS));
+                }
+            }
+        }
+        return theScriptMetrics;
+    }
+
+    /**
+     * @param maxScripts The number of scripts counted separately
+     */
+    public ScriptMetrics(int maxScripts) {
+        final int max = Math.max(1, maxScripts);
+        this.scripts = new LinkedHashMap<String, Counters>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Counters> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    /**
+     * Registers the global instance with the platform MBean server.
+     * Calling it again has no effect.
+     */
+    public static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(getMetrics(), name);
+            }
+        } catch (InstanceAlreadyExistsException alreadyRegistered) {
+            // another provider instance was faster
+        } catch (Exception e) {
+            System.err.println("Failed to register Groovy script metrics: " + e);
+        }
+    }
+
+    /**
+     * Counts an invocation of a script.
+     *
+     * @param url The source URL of the script
+     */
+    public void invoked(String url) {
+        invocations.incrementAndGet();
+        counters(url).invocations.incrementAndGet();
+    }
+
+    /**
+     * Counts a failed invocation of a script.
+     *
+     * @param url The source URL of the script
+     */
+    public void failed(String url) {
+        errors.incrementAndGet();
+        counters(url).errors.incrementAndGet();
+    }
+
+    /**
+     * Records the time a phase of an invocation took.
+     *
+     * @param url   The source URL of the script
+     * @param phase The phase
+     * @param nanos The time taken in nanoseconds
+     */
+    public void record(String url, Phase phase, long nanos) {
+        counters(url).histograms[phase.ordinal()].record(nanos);
+    }
+
+    private Counters counters(String url) {
+        synchronized (scripts) {
+            Counters c = scripts.get(url);
+            if (c == null) {
+                c = new Counters();
+                scripts.put(url, c);
+            }
+            return c;
+        }
+    }
+
+    public List<ScriptStatistics> getScripts() {
+        List<ScriptStatistics> result = new ArrayList<ScriptStatistics>();
+        Map<String, Counters> sorted;
+        synchronized (scripts) {
+            sorted = new TreeMap<String, Counters>(scripts);
+        }
+        for (Map.Entry<String, Counters> entry : sorted.entrySet()) {
+            result.add(new ScriptStatistics(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    public long getInvocationCount() {
+        return invocations.get();
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    public int getCompiledScriptCacheSize() {
+        return CompiledScriptCache.getCache().size();
+    }
+
+    public int getCompiledScriptCacheMaxSize() {
+        return CompiledScriptCache.getCache().getMaxEntries();
+    }
+
+    public long getCompiledScriptCacheHits() {
+        return CompiledScriptCache.getCache().getHits();
+    }
+
+    public long getCompiledScriptCacheMisses() {
+        return CompiledScriptCache.getCache().getMisses();
+    }
+
+    public double getCompiledScriptCacheHitRate() {
+        return rate(getCompiledScriptCacheHits(), getCompiledScriptCacheMisses());
+    }
+
+    public long getCompiledScriptCacheEvictions() {
+        return CompiledScriptCache.getCache().getEvictions();
+    }
+
+    public int getSourceCacheSize() {
+        return SourceCache.getCache().size();
+    }
+
+    public long getSourceCacheHits() {
+        return SourceCache.getCache().getHits();
+    }
+
+    public long getSourceCacheMisses() {
+        return SourceCache.getCache().getMisses();
+    }
+
+    public double getSourceCacheHitRate() {
+        return rate(getSourceCacheHits(), getSourceCacheMisses());
+    }
+
+    public int getParcelClassLoaderCount() {
+        return ParcelClassLoaderPool.getPool().size();
+    }
+
+    public long getDiskCacheLoads() {
+        BytecodeCache cache = BytecodeCache.getCreatedCache();
+        return cache == null ? 0 : cache.getLoads();
+    }
+
+    public long getDiskCacheStores() {
+        BytecodeCache cache = BytecodeCache.getCreatedCache();
+        return cache == null ? 0 : cache.getStores();
+    }
+
+    public long getDiskCacheRejected() {
+        BytecodeCache cache = BytecodeCache.getCreatedCache();
+        return cache == null ? 0 : cache.getRejected();
+    }
+
+    public long getScriptClassesDefined() {
+        return CompiledScript.getClassesDefined();
+    }
+
+    public long getScriptClassesReleased() {
+        return CompiledScript.getClassesReleased();
+    }
+
+    public long getCompiledScriptCacheBudgetEvictions() {
+        return CompiledScriptCache.getCache().getBudgetEvictions();
+    }
+
+    public long getMetaspaceUsed() {
+        MemoryPoolMXBean pool = metaspace();
+        return pool == null ? -1 : pool.getUsage().getUsed();
+    }
+
+    public int getLoadedClassCount() {
+        return classLoading().getLoadedClassCount();
+    }
+
+    public long getTotalLoadedClassCount() {
+        return classLoading().getTotalLoadedClassCount();
+    }
+
+    public long getUnloadedClassCount() {
+        return classLoading().getUnloadedClassCount();
+    }
+
+    public String getStartupReport() {
+        return ScriptStartup.getReport();
+    }
+
+    public String report() {
+        StringBuilder buf = new StringBuilder();
+        for (ScriptStatistics s : getScripts()) {
+            buf.append(s.getUrl()).append('\n');
+            buf.append("    invocations=").append(s.getInvocations())
+                    .append(" errors=").append(s.getErrors()).append('\n');
+            for (PhaseStatistics p : s.getPhases()) {
+                buf.append("    ").append(p.getPhase())
+                        .append(" count=").append(p.getCount())
+                        .append(" mean=").append(p.getMeanMicros()).append("us")
+                        .append(" max=").append(p.getMaxMicros()).append("us ")
+                        .append(p.getHistogram()).append('\n');
+            }
+        }
+        return buf.toString();
+    }
+
+    public void reset() {
+        synchronized (scripts) {
+            scripts.clear();
+        }
+        invocations.set(0);
+        errors.set(0);
+    }
+
+    private static ClassLoadingMXBean classLoading() {
+        return ManagementFactory.getClassLoadingMXBean();
+    }
+
+    /**
+     * Returns the memory pool of the class metadata, null if the JVM has none.
+     */
+    static MemoryPoolMXBean metaspace() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals("Metaspace")) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of collections that may unload classes, which
+     * are the collections of the old generation.
+     */
+    static long fullCollectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String name = gc.getName();
+            if (!name.contains("Young") && !name.contains("Scavenge") && !name.contains("Copy")
+                    && !name.contains("ParNew") && !name.contains("Minor") && !name.contains("Pauses")) {
+                count += Math.max(0, gc.getCollectionCount());
+            }
+        }
+        return count;
+    }
+
+    private static double rate(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * Statistics of one script as published through JMX.
+     */
+    public static class ScriptStatistics {
+        private final String url;
+        private final long invocations;
+        private final long errors;
+        private final List<PhaseStatistics> phases = new ArrayList<PhaseStatistics>();
+
+        ScriptStatistics(String url, Counters counters) {
+            this.url = url;
+            this.invocations = counters.invocations.get();
+            this.errors = counters.errors.get();
+            for (Phase phase : Phase.values()) {
+                phases.add(new PhaseStatistics(phase, counters.histograms[phase.ordinal()]));
+            }
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public long getInvocations() {
+            return invocations;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public List<PhaseStatistics> getPhases() {
+            return phases;
+        }
+    }
+
+    /**
+     * Latency histogram of one phase of a script as published through JMX.
+     */
+    public static class PhaseStatistics {
+        private final String phase;
+        private final long count;
+        private final long meanMicros;
+        private final long maxMicros;
+        private final String histogram;
+
+        PhaseStatistics(Phase phase, Histogram h) {
+            this.phase = phase.name();
+            this.count = h.count.get();
+            this.meanMicros = count == 0 ? 0 : h.totalNanos.get() / count / 1000;
+            this.maxMicros = h.maxNanos.get() / 1000;
+
+            StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < BUCKET_LABELS.length; i++) {
+                if (i > 0) {
+                    buf.append(' ');
+                }
+                buf.append(BUCKET_LABELS[i]).append('=').append(h.buckets.get(i));
+            }
+            this.histogram = buf.toString();
+        }
+
+        public String getPhase() {
+            return phase;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMicros() {
+            return meanMicros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        /**
+         * Returns the bucket counts as "limit=count" pairs.
+         */
+        public String getHistogram() {
+            return histogram;
+        }
+    }
+
+    private static class Counters {
+        private final AtomicLong invocations = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final Histogram[] histograms = new Histogram[Phase.values().length];
+
+        Counters() {
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new Histogram();
+            }
+        }
+    }
+
+    private static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_LIMITS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS.length && micros >= BUCKET_LIMITS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import java.util.List;
+
+/**
+ * Management interface of the Groovy script provider, registered as
+ * {@value ScriptMetrics#OBJECT_NAME}.
+ */
+public interface ScriptMetricsMXBean {
+
+    /**
+     * Returns the invocation statistics of every script run so far.
+     */
+    List<ScriptMetrics.ScriptStatistics> getScripts();
+
+    long getInvocationCount();
+
+    long getErrorCount();
+
+    int getCompiledScriptCacheSize();
+
+    int getCompiledScriptCacheMaxSize();
+
+    long getCompiledScriptCacheHits();
+
+    long getCompiledScriptCacheMisses();
+
+    double getCompiledScriptCacheHitRate();
+
+    long getCompiledScriptCacheEvictions();
+
+    int getSourceCacheSize();
+
+    long getSourceCacheHits();
+
+    long getSourceCacheMisses();
+
+    double getSourceCacheHitRate();
+
+    int getParcelClassLoaderCount();
+
+    /**
+     * Returns the scripts loaded from the on-disk class cache, 0 if it is disabled.
+     */
+    long getDiskCacheLoads();
+
+    long getDiskCacheStores();
+
+    long getDiskCacheRejected();
+
+    /**
+     * Returns the number of classes defined for compiled or disk cached scripts.
+     */
+    long getScriptClassesDefined();
+
+    /**
+     * Returns the number of script classes whose metaclasses were dropped
+     * because their script left the cache.
+     */
+    long getScriptClassesReleased();
+
+    /**
+     * Returns the scripts evicted because the Metaspace budget was exceeded.
+     */
+    long getCompiledScriptCacheBudgetEvictions();
+
+    /**
+     * Returns the Metaspace in use in bytes, -1 if the JVM has no Metaspace pool.
+     */
+    long getMetaspaceUsed();
+
+    int getLoadedClassCount();
+
+    long getTotalLoadedClassCount();
+
+    long getUnloadedClassCount();
+
+    /**
+     * Returns the time and classes the Groovy runtime took to start, see
+     * {@link ScriptStartup}.
+     */
+    String getStartupReport();
+
+    /**
+     * Returns a plain text table of the per script statistics.
+     */
+    String report();
+
+    /**
+     * Clears the per script statistics.
+     */
+    void reset();
+}
@@ -0,0 +1,221 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Options that change how a script is compiled or run.
+ * <p>
+ * Options come from the language properties of the script in the
+ * parcel descriptor, e.g.
+ * <pre>
+ * &lt;languagedepprops&gt;
+ *     &lt;prop name="compile" value="static"/&gt;
+ * &lt;/languagedepprops&gt;
+ * </pre>
+ * and from directives in the comment lines at the top of the script,
+ * which take precedence:
+ * <pre>
+ * //# compile = static
+ * </pre>
+ */
+public class ScriptOptions {
+
+    /**
+     * How the script is compiled: dynamic (the default), typechecked or static.
+     */
+    public static final String COMPILE = "compile";
+
+    public static final String COMPILE_DYNAMIC = "dynamic";
+    public static final String COMPILE_TYPECHECKED = "typechecked";
+    public static final String COMPILE_STATIC = "static";
+
+    /**
+     * Runs the script on the {@link ScriptExecutor} and returns its task id
+     * at once instead of waiting for its result.
+     */
+    public static final String ASYNC = "async";
+
+    /**
+     * How many asynchronous runs of the same script may be queued or running.
+     */
+    public static final String ASYNC_MAX_CONCURRENT = "async.maxconcurrent";
+
+    /**
+     * Script URI invoked with the task id, state and result or error text
+     * when an asynchronous run has finished.
+     */
+    public static final String ASYNC_CALLBACK = "async.callback";
+
+    /**
+     * The thread an async run uses: caller, virtual or platform, see {@link ScriptThreads}.
+     */
+    public static final String THREAD = "thread";
+
+    /**
+     * The longest time a run may take in milliseconds, see {@link ScriptLimits}.
+     */
+    public static final String LIMIT_TIME = "limit.time";
+
+    /**
+     * The most CPU time a run may use in milliseconds.
+     */
+    public static final String LIMIT_CPU_TIME = "limit.cputime";
+
+    /**
+     * The most bytes a run may allocate, with an optional k, m or g suffix.
+     */
+    public static final String LIMIT_ALLOCATION = "limit.allocation";
+
+    /**
+     * Locks the document while the script runs and makes its changes a
+     * single undo action, see {@link DocumentLock}.
+     */
+    public static final String LOCK = "lock";
+
+    public static final ScriptOptions DEFAULT =
+            new ScriptOptions(Collections.<String, String>emptyMap());
+
+    private static final Pattern DIRECTIVE =
+            Pattern.compile("^//#\\s*([\\w.]+)\\s*(?:=\\s*)?(.*?)\\s*$");
+
+    private final Map<String, String> options;
+
+    private ScriptOptions(Map<String, String> options) {
+        this.options = options;
+    }
+
+    /**
+     * Collects the options of a script.
+     *
+     * @param languageProperties The language properties from the parcel
+     *                           descriptor, may be null
+     * @param source             The script source, may be null
+     * @return The options of the script
+     */
+    public static ScriptOptions parse(Map<?, ?> languageProperties, String source) {
+        Map<String, String> options = new TreeMap<String, String>();
+
+        if (languageProperties != null) {
+            for (Map.Entry<?, ?> entry : languageProperties.entrySet()) {
+                if (entry.getKey() != null && entry.getValue() != null) {
+                    options.put(entry.getKey().toString().toLowerCase(),
+                            entry.getValue().toString().trim());
+                }
+            }
+        }
+
+        if (source != null) {
+            parseDirectives(source, options);
+        }
+
+        return options.isEmpty() ? DEFAULT : new ScriptOptions(options);
+    }
+
+    // only the leading block of blank and line comment lines is scanned
+    private static void parseDirectives(String source, Map<String, String> options) {
+        int start = 0;
+        int length = source.length();
+
+        while (start < length) {
+            int end = source.indexOf('\n', start);
+            if (end == -1) {
+                end = length;
+            }
+            String line = source.substring(start, end).trim();
+            start = end + 1;
+
+            if (line.length() == 0) {
+                continue;
+            }
+            if (!line.startsWith("//")) {
+                break;
+            }
+
+            Matcher m = DIRECTIVE.matcher(line);
+            if (m.matches()) {
+                options.put(m.group(1).toLowerCase(), m.group(2));
+            }
+        }
+    }
+
+    /**
+     * Returns the value of an option.
+     *
+     * @param name         The option name
+     * @param defaultValue The value used when the option is not set
+     * @return The option value
+     */
+    public String get(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null || value.length() == 0 ? defaultValue : value;
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        // a bare directive like "//# async" switches the option on
+        return value.length() == 0 || "true".equalsIgnoreCase(value)
+                || "yes".equalsIgnoreCase(value) || "on".equalsIgnoreCase(value);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null || value.length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfe) {
+            System.err.println("Ignoring option " + name + " = " + value + ", not a number");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the compile mode, one of dynamic, typechecked or static.
+     */
+    public String getCompileMode() {
+        String mode = get(COMPILE, COMPILE_DYNAMIC).toLowerCase();
+        if (mode.equals(COMPILE_STATIC) || mode.equals(COMPILE_TYPECHECKED)) {
+            return mode;
+        }
+        return COMPILE_DYNAMIC;
+    }
+
+    /**
+     * Returns a fingerprint of the options that change the generated
+     * bytecode, used as part of the cache keys of compiled scripts.
+     */
+    public String getCompileKey() {
+        // scripts compiled before they checked for interrupts are compiled again
+        return COMPILE + "=" + getCompileMode() + ",interruptible";
+    }
+
+    public String toString() {
+        return "ScriptOptions" + options;
+    }
+}
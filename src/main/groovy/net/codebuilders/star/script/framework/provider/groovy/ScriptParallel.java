@@ -0,0 +1,568 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import groovy.lang.Binding;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Parallel map, reduce and group by over arrays, bound as
+ * {@code PARALLEL} next to XSCRIPTCONTEXT.
+ * <p>
+ * The work is split over a fork-join pool of
+ * {@code net.codebuilders.groovy.parallel.threads} threads, one per
+ * processor by default, in pieces of at least
+ * {@code net.codebuilders.groovy.parallel.threshold} elements, 8192 by
+ * default. The helpers only take arrays of numbers and texts, e.g. the
+ * columns of a {@link CalcRangeData}, so the data is detached from the
+ * office before the work starts:
+ * <pre>
+ * def data = CALC.read(CALC.usedRange("Orders"))
+ * def totals = PARALLEL.sumBy(data.column(0).toStringArray(), data.column(3).toDoubleArray())
+ * </pre>
+ * Calls into the office have to be made on the thread that started the
+ * work. While the work runs, the UNO objects a closure captured, and the
+ * UNO objects in the variables of the script's Binding, e.g.
+ * XSCRIPTCONTEXT, are swapped for stand-ins that run every call on that
+ * thread, and so are the UNO objects those calls return. {@code CALC}
+ * fails when a piece uses it. A UNO object the work reaches any other
+ * way is not covered: one held by a field of another object or stored in
+ * a collection, or one captured by a lambda of a statically compiled
+ * script or by a Java class. Such calls run on the pool thread unnoticed. A function wraps them in {@link #onCaller}, which runs a call
+ * on the thread that started the work while the other pieces keep going.
+ * <p>
+ * The operators given to reduce and group by must be associative with
+ * the identity given.
+ * <p>
+ * When the script is stopped, e.g. by its {@link ScriptLimits}, the
+ * pieces still running end within a few thousand elements. The time and
+ * memory limits only count the thread of the script though, the work
+ * done by the pool threads is not counted against them.
+ */
+public class ScriptParallel {
+
+    public static final String THREADS_PROPERTY = "net.codebuilders.groovy.parallel.threads";
+    public static final String THRESHOLD_PROPERTY = "net.codebuilders.groovy.parallel.threshold";
+
+    public static final String BINDING_NAME = "PARALLEL";
+
+    private static final int DEFAULT_THRESHOLD = 8192;
+    private static final int CHECK_MASK = 4095;
+
+    // global pool returned for getPool() calls
+    private static volatile ForkJoinPool thePool;
+
+    // the work a pool thread is doing a piece of
+    private static final ThreadLocal<Caller> current = new ThreadLocal<Caller>();
+
+    private final int threshold;
+
+    public ScriptParallel() {
+        this(Integer.getInteger(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD));
+    }
+
+    public ScriptParallel(int threshold) {
+        this.threshold = Math.max(1, threshold);
+    }
+
+    /**
+     * Puts the helper into the Binding of a run.
+     */
+    public static void bind(Binding binding) {
+        binding.setProperty(BINDING_NAME, new ScriptParallel());
+    }
+
+    /**
+     * Returns the pool shared by all scripts, created on first use.
+     */
+    public static ForkJoinPool getPool() {
+        if (thePool == null) {
+            synchronized (ScriptParallel.class) {
+                if (thePool == null) {
+                    final AtomicInteger count = new AtomicInteger();
+                    int threads = Integer.getInteger(THREADS_PROPERTY,
+                            Runtime.getRuntime().availableProcessors());
+                    thePool = new ForkJoinPool(Math.max(1, threads),
+                            new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                                    ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+                                            .newThread(pool);
+                                    t.setName("Groovy parallel " + count.incrementAndGet());
+                                    t.setDaemon(true);
+                                    return t;
+                                }
+                            }, null, false);
+                }
+            }
+        }
+        return thePool;
+    }
+
+    /**
+     * Runs a call on the thread that started the parallel work, e.g. a
+     * call into the office. Called on that thread or outside parallel
+     * work it runs at once.
+     *
+     * @param call The call, e.g. a closure
+     * @return What the call returned
+     * @throws Exception What the call threw
+     */
+    public Object onCaller(Callable<?> call) throws Exception {
+        return callOnCaller(call);
+    }
+
+    static Object callOnCaller(Callable<?> call) throws Exception {
+        Caller caller = current.get();
+        if (caller == null) {
+            return call.call();
+        }
+        return caller.call(call);
+    }
+
+    /**
+     * Fails if called by a piece of parallel work, for the helpers that
+     * call the office and cannot be guarded.
+     *
+     * @param what What is called, for the message
+     * @throws IllegalStateException On a pool thread
+     */
+    static void checkCaller(String what) {
+        if (current.get() != null) {
+            throw new IllegalStateException(what + " calls the office, parallel work has to"
+                    + " use it in PARALLEL.onCaller { }");
+        }
+    }
+
+    /**
+     * Applies a function to every number.
+     *
+     * @return A new array of the results
+     */
+    public double[] map(final double[] values, final DoubleUnaryOperator function)
+            throws InterruptedException {
+        final double[] result = new double[values.length];
+        run(values.length, new Work<Void>() {
+            public Void leaf(int from, int to, Caller caller) {
+                for (int i = from; i < to; i++) {
+                    caller.check(i);
+                    result[i] = function.applyAsDouble(values[i]);
+                }
+                return null;
+            }
+
+            public Void combine(Void left, Void right) {
+                return null;
+            }
+        }, null, function);
+        return result;
+    }
+
+    /**
+     * Turns every text into a number, e.g. by parsing it.
+     *
+     * @return A new array of the results
+     */
+    public double[] mapToDouble(final String[] values, final ToDoubleFunction<String> function)
+            throws InterruptedException {
+        final double[] result = new double[values.length];
+        run(values.length, new Work<Void>() {
+            public Void leaf(int from, int to, Caller caller) {
+                for (int i = from; i < to; i++) {
+                    caller.check(i);
+                    result[i] = function.applyAsDouble(values[i]);
+                }
+                return null;
+            }
+
+            public Void combine(Void left, Void right) {
+                return null;
+            }
+        }, null, function);
+        return result;
+    }
+
+    /**
+     * Combines all numbers.
+     *
+     * @param values   The numbers
+     * @param identity The result for no numbers, e.g. 0 for a sum
+     * @param operator Combines two results, e.g. { a, b -> a + b }
+     */
+    public double reduce(final double[] values, final double identity,
+                         final DoubleBinaryOperator operator) throws InterruptedException {
+        return run(values.length, new Work<Double>() {
+            public Double leaf(int from, int to, Caller caller) {
+                double result = identity;
+                for (int i = from; i < to; i++) {
+                    caller.check(i);
+                    result = operator.applyAsDouble(result, values[i]);
+                }
+                return result;
+            }
+
+            public Double combine(Double left, Double right) {
+                return operator.applyAsDouble(left, right);
+            }
+        }, identity, operator);
+    }
+
+    /**
+     * Adds up the numbers, skipping NaN, i.e. the cells holding text.
+     */
+    public double sum(final double[] values) throws InterruptedException {
+        return run(values.length, new Work<Double>() {
+            public Double leaf(int from, int to, Caller caller) {
+                double sum = 0;
+                for (int i = from; i < to; i++) {
+                    caller.check(i);
+                    if (!Double.isNaN(values[i])) {
+                        sum += values[i];
+                    }
+                }
+                return sum;
+            }
+
+            public Double combine(Double left, Double right) {
+                return left + right;
+            }
+        }, 0.0);
+    }
+
+    /**
+     * Combines the numbers of every key.
+     *
+     * @param keys     The key of every number
+     * @param values   The numbers
+     * @param identity The start of every key's result, e.g. 0 for a sum
+     * @param operator Combines two results, e.g. { a, b -> Math.max(a, b) }
+     * @return The result of every key
+     */
+    public Map<String, Double> groupBy(final String[] keys, final double[] values,
+                                       final double identity, final DoubleBinaryOperator operator)
+            throws InterruptedException {
+        checkLengths(keys.length, values.length);
+        Map<String, double[]> groups = run(keys.length, new Work<Map<String, double[]>>() {
+            public Map<String, double[]> leaf(int from, int to, Caller caller) {
+                Map<String, double[]> groups = new HashMap<String, double[]>();
+                for (int i = from; i < to; i++) {
+                    caller.check(i);
+                    double[] group = groups.get(keys[i]);
+                    if (group == null) {
+                        group = new double[]{identity};
+                        groups.put(keys[i], group);
+                    }
+                    group[0] = operator.applyAsDouble(group[0], values[i]);
+                }
+                return groups;
+            }
+
+            public Map<String, double[]> combine(Map<String, double[]> left,
+                                                 Map<String, double[]> right) {
+                return merge(left, right, operator);
+            }
+        }, new HashMap<String, double[]>(), operator);
+        return unbox(groups);
+    }
+
+    /**
+     * Adds up the numbers of every key, skipping NaN.
+     */
+    public Map<String, Double> sumBy(final String[] keys, final double[] values)
+            throws InterruptedException {
+        checkLengths(keys.length, values.length);
+        final DoubleBinaryOperator add = new DoubleBinaryOperator() {
+            public double applyAsDouble(double left, double right) {
+                return left + right;
+            }
+        };
+        Map<String, double[]> groups = run(keys.length, new Work<Map<String, double[]>>() {
+            public Map<String, double[]> leaf(int from, int to, Caller caller) {
+                Map<String, double[]> groups = new HashMap<String, double[]>();
+                for (int i = from; i < to; i++) {
+                    caller.check(i);
+                    double[] group = groups.get(keys[i]);
+                    if (group == null) {
+                        group = new double[1];
+                        groups.put(keys[i], group);
+                    }
+                    if (!Double.isNaN(values[i])) {
+                        group[0] += values[i];
+                    }
+                }
+                return groups;
+            }
+
+            public Map<String, double[]> combine(Map<String, double[]> left,
+                                                 Map<String, double[]> right) {
+                return merge(left, right, add);
+            }
+        }, new HashMap<String, double[]>());
+        return unbox(groups);
+    }
+
+    /**
+     * Counts how often every key occurs.
+     */
+    public Map<String, Long> countBy(final String[] keys) throws InterruptedException {
+        Map<String, long[]> groups = run(keys.length, new Work<Map<String, long[]>>() {
+            public Map<String, long[]> leaf(int from, int to, Caller caller) {
+                Map<String, long[]> groups = new HashMap<String, long[]>();
+                for (int i = from; i < to; i++) {
+                    caller.check(i);
+                    long[] group = groups.get(keys[i]);
+                    if (group == null) {
+                        group = new long[1];
+                        groups.put(keys[i], group);
+                    }
+                    group[0]++;
+                }
+                return groups;
+            }
+
+            public Map<String, long[]> combine(Map<String, long[]> left, Map<String, long[]> right) {
+                Map<String, long[]> into = left.size() >= right.size() ? left : right;
+                Map<String, long[]> from = into == left ? right : left;
+                for (Map.Entry<String, long[]> e : from.entrySet()) {
+                    long[] group = into.get(e.getKey());
+                    if (group == null) {
+                        into.put(e.getKey(), e.getValue());
+                    } else {
+                        group[0] += e.getValue()[0];
+                    }
+                }
+                return into;
+            }
+        }, new HashMap<String, long[]>());
+
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, long[]> e : groups.entrySet()) {
+            counts.put(e.getKey(), e.getValue()[0]);
+        }
+        return counts;
+    }
+
+    // the smaller map is merged into the larger one, left comes before right
+    private static Map<String, double[]> merge(Map<String, double[]> left, Map<String, double[]> right,
+                                               DoubleBinaryOperator operator) {
+        boolean intoLeft = left.size() >= right.size();
+        Map<String, double[]> into = intoLeft ? left : right;
+        Map<String, double[]> from = intoLeft ? right : left;
+        for (Map.Entry<String, double[]> e : from.entrySet()) {
+            double[] group = into.get(e.getKey());
+            if (group == null) {
+                into.put(e.getKey(), e.getValue());
+            } else {
+                double other = e.getValue()[0];
+                group[0] = intoLeft ? operator.applyAsDouble(group[0], other)
+                        : operator.applyAsDouble(other, group[0]);
+            }
+        }
+        return into;
+    }
+
+    private static Map<String, Double> unbox(Map<String, double[]> groups) {
+        Map<String, Double> result = new HashMap<String, Double>();
+        for (Map.Entry<String, double[]> e : groups.entrySet()) {
+            result.put(e.getKey(), e.getValue()[0]);
+        }
+        return result;
+    }
+
+    private static void checkLengths(int keys, int values) {
+        if (keys != values) {
+            throw new IllegalArgumentException(keys + " keys for " + values + " values");
+        }
+    }
+
+    // runs the work in the pool, doing the caller's part of it on this thread until it is done,
+    // the UNO objects the functions reach are guarded meanwhile
+    private <T> T run(int size, Work<T> work, T empty, Object... functions) throws InterruptedException {
+        if (size == 0) {
+            return empty;
+        }
+
+        Caller outer = current.get();
+        if (outer != null) {
+            // a function of parallel work started more, it joins the same pool
+            return new Piece<T>(work, outer, 0, size, threshold).invoke();
+        }
+
+        Caller caller = new Caller();
+        Runnable unguard = UnoGuard.swap(functions);
+        try {
+            ForkJoinTask<T> task = getPool().submit(new Piece<T>(work, caller, 0, size, threshold));
+            try {
+                while (!task.isDone()) {
+                    Runnable call = caller.queue.poll(10, TimeUnit.MILLISECONDS);
+                    if (call != null) {
+                        call.run();
+                    }
+                }
+            } catch (InterruptedException ie) {
+                // e.g. the script is over its time limit
+                caller.cancelled = true;
+                task.cancel(true);
+                for (Runnable call = caller.queue.poll(); call != null; call = caller.queue.poll()) {
+                    ((FutureTask<?>) call).cancel(false);
+                }
+                throw ie;
+            }
+
+            try {
+                return task.get();
+            } catch (ExecutionException ee) {
+                throw rethrow(ee.getCause());
+            }
+        } finally {
+            unguard.run();
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        // the pool rethrows a copy of an exception thrown on another thread
+        if (t.getCause() != null && t.getCause().getClass() == t.getClass()) {
+            t = t.getCause();
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t.getMessage(), t);
+    }
+
+    // what the pieces of a work do
+    private interface Work<T> {
+        T leaf(int from, int to, Caller caller);
+
+        T combine(T left, T right);
+    }
+
+    // the thread that started a work and the calls it is asked to run
+    private static class Caller {
+        private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+        private volatile boolean cancelled = false;
+
+        // called for every element, a stopped work ends within a few thousand
+        void check(int i) {
+            if ((i & CHECK_MASK) == 0 && cancelled) {
+                throw new CancellationException();
+            }
+        }
+
+        // runs a call on this caller's thread, waiting for it on a pool thread
+        Object call(Callable<?> call) throws Exception {
+            @SuppressWarnings("unchecked")
+            final FutureTask<Object> task = new FutureTask<Object>((Callable<Object>) call);
+            queue.add(task);
+            if (cancelled) {
+                // the caller stopped waiting before it saw this one
+                task.cancel(false);
+            }
+            // the pool may start another thread while this one waits
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                public boolean block() throws InterruptedException {
+                    try {
+                        task.get();
+                    } catch (ExecutionException ignore) {
+                        // thrown below
+                    } catch (CancellationException ignore) {
+                        // thrown below
+                    }
+                    return true;
+                }
+
+                public boolean isReleasable() {
+                    return task.isDone();
+                }
+            });
+            try {
+                return task.get();
+            } catch (ExecutionException ee) {
+                // checked exceptions of the office are declared by the UNO methods
+                if (ee.getCause() instanceof Exception) {
+                    throw (Exception) ee.getCause();
+                }
+                throw rethrow(ee.getCause());
+            }
+        }
+    }
+
+    private static class Piece<T> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+
+        private final Work<T> work;
+        private final Caller caller;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        Piece(Work<T> work, Caller caller, int from, int to, int threshold) {
+            this.work = work;
+            this.caller = caller;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        protected T compute() {
+            if (caller.cancelled) {
+                throw new CancellationException();
+            }
+            // combining runs functions as well
+            Caller previous = current.get();
+            current.set(caller);
+            try {
+                if (to - from <= threshold) {
+                    return work.leaf(from, to, caller);
+                }
+                int middle = (from + to) >>> 1;
+                Piece<T> left = new Piece<T>(work, caller, from, middle, threshold);
+                Piece<T> right = new Piece<T>(work, caller, middle, to, threshold);
+                left.fork();
+                T rightResult = right.compute();
+                return work.combine(left.join(), rightResult);
+            } finally {
+                if (previous == null) {
+                    current.remove();
+                } else {
+                    current.set(previous);
+                }
+            }
+        }
+    }
+}
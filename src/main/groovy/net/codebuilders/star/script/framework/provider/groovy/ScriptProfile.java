@@ -0,0 +1,122 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Where the time of one script run went, line by line, as sampled by
+ * the {@link ScriptProfiler}.
+ * <p>
+ * A sample is counted for the script line that was executing, including
+ * the time spent in methods called from that line.
+ */
+public class ScriptProfile {
+
+    private final String script;
+    private final Map<Integer, long[]> lines;
+    private final long samples;
+    private final long nanos;
+
+    ScriptProfile(String script, Map<Integer, long[]> lines, long samples, long nanos) {
+        this.script = script;
+        this.lines = Collections.unmodifiableMap(new TreeMap<Integer, long[]>(lines));
+        this.samples = samples;
+        this.nanos = nanos;
+    }
+
+    public String getScript() {
+        return script;
+    }
+
+    /**
+     * Returns the number of samples taken, including samples taken while
+     * the script was not executing a line of its own.
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    public long getMillis() {
+        return nanos / 1000000;
+    }
+
+    /**
+     * Returns the number of samples of a line.
+     *
+     * @param line The line number, starting at 1
+     * @return The number of samples
+     */
+    public long getHits(int line) {
+        long[] counts = lines.get(line);
+        return counts == null ? 0 : counts[0];
+    }
+
+    /**
+     * Returns the time attributed to a line.
+     *
+     * @param line The line number, starting at 1
+     * @return The time in milliseconds
+     */
+    public double getMillis(int line) {
+        long[] counts = lines.get(line);
+        return counts == null ? 0 : counts[1] / 1000000.0;
+    }
+
+    public long getMaxHits() {
+        long max = 0;
+        for (long[] counts : lines.values()) {
+            max = Math.max(max, counts[0]);
+        }
+        return max;
+    }
+
+    /**
+     * Writes the profile as tab separated lines: line number, samples,
+     * milliseconds, percent of all samples and the source line.
+     *
+     * @param out    Where to write
+     * @param source The script source, may be null
+     */
+    public void write(Writer out, String source) {
+        String[] sourceLines = source == null ? new String[0] : source.split("\r?\n", -1);
+
+        PrintWriter writer = new PrintWriter(out);
+        writer.println("# " + script + ": " + samples + " samples in " + getMillis() + " ms");
+        writer.println("line\tsamples\tms\tpercent\tsource");
+        for (Map.Entry<Integer, long[]> entry : lines.entrySet()) {
+            int line = entry.getKey();
+            long[] counts = entry.getValue();
+            writer.println(line + "\t" + counts[0]
+                    + "\t" + String.format(Locale.ROOT, "%.1f", counts[1] / 1000000.0)
+                    + "\t" + String.format(Locale.ROOT, "%.1f", samples == 0 ? 0 : 100.0 * counts[0] / samples)
+                    + "\t" + (line <= sourceLines.length ? sourceLines[line - 1].trim() : ""));
+        }
+        writer.flush();
+    }
+
+    public String toString() {
+        return "ScriptProfile[" + script + ", " + samples + " samples, " + lines.size() + " lines]";
+    }
+}
@@ -0,0 +1,201 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Samples the stack of the thread running a script to find the script
+ * lines the time goes into.
+ * <p>
+ * Every sample counts for the innermost frame of the script itself, so
+ * the time spent in Groovy, Java or office calls is charged to the script
+ * line that made the call. Samples are taken every
+ * {@code net.codebuilders.groovy.profile.interval} milliseconds, 10 by
+ * default.
+ * <p>
+ * Scripts run without the editor are profiled when the system property
+ * {@code net.codebuilders.groovy.profile.dir} names a directory. The
+ * profile of every run is written there as a tab separated file, see
+ * {@link ScriptProfile#write}.
+ */
+public class ScriptProfiler {
+
+    public static final String INTERVAL_PROPERTY = "net.codebuilders.groovy.profile.interval";
+    public static final String EXPORT_PROPERTY = "net.codebuilders.groovy.profile.dir";
+
+    private static final int DEFAULT_INTERVAL = 10;
+
+    private final Thread target;
+    private final String script;
+    private final String fileName;
+    private final long intervalMillis;
+
+    // written by the sampler thread only, read after it has ended
+    private final Map<Integer, long[]> lines = new HashMap<Integer, long[]>();
+    private long samples;
+    private long startNanos;
+    private long stopNanos;
+
+    private volatile boolean running;
+    private Thread sampler;
+
+    /**
+     * @param target The thread running the script
+     * @param script The script location, used to name the profile
+     */
+    public ScriptProfiler(Thread target, String script) {
+        this.target = target;
+        this.script = script;
+        this.fileName = fileName(script);
+        this.intervalMillis = Math.max(1, Integer.getInteger(INTERVAL_PROPERTY, DEFAULT_INTERVAL));
+    }
+
+    /**
+     * Returns the source file name the script is compiled with, which is
+     * the file name of its stack frames.
+     *
+     * @param location The script location
+     * @return The source file name
+     */
+    public static String fileName(String location) {
+        return CompiledScriptCache.className(location) + ".groovy";
+    }
+
+    public synchronized void start() {
+        if (sampler != null) {
+            throw new IllegalStateException("Profiler already started");
+        }
+        running = true;
+        startNanos = System.nanoTime();
+        sampler = new Thread(new Runnable() {
+            public void run() {
+                sample();
+            }
+        }, "Groovy profiler");
+        sampler.setDaemon(true);
+        sampler.setPriority(Thread.MAX_PRIORITY);
+        sampler.start();
+    }
+
+    /**
+     * Stops sampling.
+     *
+     * @return The profile of the run
+     */
+    public synchronized ScriptProfile stop() {
+        running = false;
+        if (sampler != null) {
+            sampler.interrupt();
+            try {
+                sampler.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        stopNanos = System.nanoTime();
+        return new ScriptProfile(script, lines, samples, stopNanos - startNanos);
+    }
+
+    private void sample() {
+        long last = System.nanoTime();
+        while (running) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException ie) {
+                // stopped, the time since the last sample is not charged
+                break;
+            }
+
+            StackTraceElement[] stack = target.getStackTrace();
+            long now = System.nanoTime();
+            samples++;
+            for (StackTraceElement frame : stack) {
+                if (frame.getLineNumber() > 0 && fileName.equals(frame.getFileName())) {
+                    long[] counts = lines.get(frame.getLineNumber());
+                    if (counts == null) {
+                        counts = new long[2];
+                        lines.put(frame.getLineNumber(), counts);
+                    }
+                    counts[0]++;
+                    counts[1] += now - last;
+                    break;
+                }
+            }
+            last = now;
+        }
+    }
+
+    /**
+     * Wraps a run so it is profiled if profiles are exported.
+     *
+     * @param script The script location
+     * @param source The script source, written next to the samples
+     * @param work   The run
+     * @return The run, profiled if {@code net.codebuilders.groovy.profile.dir} is set
+     */
+    public static <T> Callable<T> export(final String script, final String source,
+                                         final Callable<T> work) {
+        final String dir = System.getProperty(EXPORT_PROPERTY);
+        if (dir == null || dir.length() == 0) {
+            return work;
+        }
+        return new Callable<T>() {
+            public T call() throws Exception {
+                ScriptProfiler profiler = new ScriptProfiler(Thread.currentThread(), script);
+                profiler.start();
+                try {
+                    return work.call();
+                } finally {
+                    write(new File(dir), profiler.stop(), source);
+                }
+            }
+        };
+    }
+
+    private static void write(File dir, ScriptProfile profile, String source) {
+        String name = CompiledScriptCache.className(profile.getScript())
+                + "-" + System.currentTimeMillis() + ".profile.tsv";
+        Writer out = null;
+        try {
+            dir.mkdirs();
+            out = new OutputStreamWriter(new FileOutputStream(new File(dir, name)),
+                    StandardCharsets.UTF_8);
+            profile.write(out, source);
+        } catch (IOException ioe) {
+            System.err.println("Failed to write the profile of " + profile.getScript()
+                    + ": " + ioe.getMessage());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+}
@@ -26,13 +26,52 @@ import com.sun.star.script.framework.container.ScriptMetaData;
 import com.sun.star.script.framework.provider.ScriptEditor;
 import com.sun.star.script.framework.provider.ScriptProvider;
 import com.sun.star.script.provider.XScript;
+import com.sun.star.script.provider.ScriptFrameworkErrorException;
 import com.sun.star.script.provider.XScriptContext;
+import com.sun.star.uno.AnyConverter;
 import com.sun.star.uno.XComponentContext;
 
+import java.util.List;
+
 public class ScriptProviderForGroovy {
     public static class _ScriptProviderForGroovy extends ScriptProvider {
+
+        private static final String RUN_BATCH = "runBatch";
+
+        /*
+        The office creates the provider whenever it lists the script
+        languages, e.g. for the macro organiser. Nothing here may load
+        Groovy unless the warm-up is enabled, the runtime is loaded on the
+        first getScript, runBatch or editor call, see ScriptStartup.
+         */
         public _ScriptProviderForGroovy(XComponentContext ctx) {
-            super(ctx, "Groovy");
+            super(ctx, ScriptStartup.beginProvider("Groovy"));
+            ScriptStartup.endProvider();
+
+            // loads the runtime in the background if asked to
+            if (ScriptWarmup.isEnabled()) {
+                ScriptWarmup.warmRuntime();
+            }
+        }
+
+        public void initialize(Object[] aArguments)
+                throws com.sun.star.uno.Exception {
+            super.initialize(aArguments);
+
+            // only the user and share scripts are known up front
+            if (ScriptWarmup.isEnabled() && aArguments.length > 0
+                    && ("user".equals(aArguments[0]) || "share".equals(aArguments[0]))) {
+                ScriptWarmup.warmScripts(m_container, m_xContext);
+            }
+
+            // the user scripts provider serves all script URIs
+            if (ScriptServer.isEnabled() && aArguments.length > 0 && "user".equals(aArguments[0])) {
+                ScriptServer.startShared(new ScriptServer.Scripts() {
+                    public ScriptMetaData find(String scriptURI) throws Exception {
+                        return getScriptData(scriptURI);
+                    }
+                }, m_xContext);
+            }
         }
 
         public XScript getScript(String scriptURI)
@@ -40,6 +79,7 @@ public class ScriptProviderForGroovy {
                 com.sun.star.script.provider.ScriptFrameworkErrorException {
             GroovyScript script = null;
 
+            ScriptStartup.initRuntime();
             try {
                 ScriptMetaData scriptMetaData = getScriptData(scriptURI);
                 XScriptContext xScriptContext = getScriptingContext();
@@ -50,11 +90,79 @@ public class ScriptProviderForGroovy {
             return script;
         }
 
+        /**
+         * Runs a script over many documents, see {@link BatchRunner}.
+         * The script is read and compiled once for all documents.
+         *
+         * @param scriptURI    The vnd.sun.star.script URI of the script
+         * @param documentUrls The documents to run it for
+         * @return One result per document
+         * @throws ScriptFrameworkErrorException If the script cannot be
+         *                                       found or compiled
+         */
+        public List<BatchResult> runBatch(String scriptURI, String[] documentUrls)
+                throws ScriptFrameworkErrorException {
+            ScriptStartup.initRuntime();
+            ScriptMetaData scriptMetaData = getScriptData(scriptURI);
+            GroovyScript script = new GroovyScript(getScriptingContext(), scriptMetaData);
+            return new BatchRunner(m_xContext).run(script.prepare(), documentUrls);
+        }
+
+        /*
+        runBatch is also reachable through XInvocation so Basic and other
+        UNO callers can use it on the provider object, e.g.
+        oProvider.runBatch(sScriptURI, Array(sUrl1, sUrl2)) which returns
+        one array of url, status, stored, load, run and store milliseconds
+        and message per document.
+         */
+        public Object invoke(String aFunctionName, Object[] aParams,
+                             short[][] aOutParamIndex, Object[][] aOutParam)
+                throws com.sun.star.lang.IllegalArgumentException,
+                com.sun.star.script.CannotConvertException,
+                com.sun.star.reflection.InvocationTargetException {
+
+            if (!RUN_BATCH.equals(aFunctionName)) {
+                return super.invoke(aFunctionName, aParams, aOutParamIndex, aOutParam);
+            }
+
+            aOutParamIndex[0] = new short[0];
+            aOutParam[0] = new Object[0];
+
+            if (aParams.length != 2 || !(aParams[0] instanceof String)
+                    || !(aParams[1] instanceof Object[])) {
+                throw new com.sun.star.lang.IllegalArgumentException(
+                        "runBatch expects a script URI and an array of document URLs");
+            }
+            Object[] urls = (Object[]) aParams[1];
+            String[] documentUrls = new String[urls.length];
+            for (int i = 0; i < urls.length; i++) {
+                documentUrls[i] = AnyConverter.isString(urls[i])
+                        ? AnyConverter.toString(urls[i]) : String.valueOf(urls[i]);
+            }
+
+            try {
+                List<BatchResult> results = runBatch((String) aParams[0], documentUrls);
+                Object[] rows = new Object[results.size()];
+                for (int i = 0; i < rows.length; i++) {
+                    rows[i] = results.get(i).toArray();
+                }
+                return rows;
+            } catch (ScriptFrameworkErrorException e) {
+                throw new com.sun.star.reflection.InvocationTargetException(
+                        e.getMessage(), this, e);
+            }
+        }
+
+        public boolean hasMethod(String aName) {
+            return RUN_BATCH.equals(aName) || super.hasMethod(aName);
+        }
+
         public boolean hasScriptEditor() {
             return true;
         }
 
         public ScriptEditor getScriptEditor() {
+            ScriptStartup.initRuntime();
             // return new ScriptEditorForGroovy();
             return ScriptEditorForGroovy.getEditor();
         }
@@ -0,0 +1,675 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.container.XEnumeration;
+import com.sun.star.frame.XDesktop;
+import com.sun.star.frame.XModel;
+import com.sun.star.script.framework.container.ScriptEntry;
+import com.sun.star.script.framework.container.ScriptMetaData;
+import com.sun.star.script.framework.provider.PathUtils;
+import com.sun.star.script.provider.XScriptContext;
+import com.sun.star.uno.Any;
+import com.sun.star.uno.UnoRuntime;
+import com.sun.star.uno.XComponentContext;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs scripts for other processes on this machine, so a short
+ * automation job does not pay for starting a JVM, connecting to the
+ * office and compiling its script every time.
+ * <p>
+ * The server listens on the loopback interface at the port set with the
+ * system property {@code net.codebuilders.groovy.server.port} and is off
+ * when it is not set. When it starts it writes a new random token to
+ * groovy/server.token in the user profile, or the file named by
+ * {@code net.codebuilders.groovy.server.token}, readable by the user
+ * only. The first line a client sends must be that token, any other
+ * connection is closed.
+ * <p>
+ * Requests and responses are lines of tab separated UTF-8 text, a tab,
+ * newline or backslash in a field is written as \t, \n or \\. Lines
+ * longer than 64 KiB close the connection.
+ * <pre>
+ * run &lt;script&gt; &lt;document&gt; &lt;argument&gt;...
+ * ok &lt;queued ms&gt; &lt;run ms&gt; &lt;result&gt;
+ * error &lt;message&gt;
+ *
+ * stats
+ * ok &lt;statistics&gt;
+ * </pre>
+ * The script is a vnd.sun.star.script URI or the path of a Groovy file,
+ * the document a URL or path of the document to run it for, empty for
+ * none. An open document is used as it is, any other one is opened
+ * hidden and stored and closed after the run if the script modified it.
+ * <p>
+ * Scripts run one after the other on a single thread with the compiled
+ * script cache and parcel class loaders of the provider. Up to
+ * {@code net.codebuilders.groovy.server.queue} requests, 16 by default,
+ * wait for their turn, more are rejected. Connections are served by a
+ * few threads, {@value #CONNECTION_THREADS} connections at a time, and
+ * further ones wait to be accepted.
+ */
+public class ScriptServer {
+
+    public static final String PORT_PROPERTY = "net.codebuilders.groovy.server.port";
+    public static final String QUEUE_PROPERTY = "net.codebuilders.groovy.server.queue";
+    public static final String TOKEN_PROPERTY = "net.codebuilders.groovy.server.token";
+
+    static final int CONNECTION_THREADS = 4;
+
+    private static final int DEFAULT_QUEUE = 16;
+    private static final int MAX_LINE = 64 * 1024;
+    // a client that does not send the token in time gives up its thread
+    private static final int TOKEN_TIMEOUT = 10000;
+
+    private static final String USER_TOKEN_URL =
+            "vnd.sun.star.expand:${$OOO_BASE_DIR/program/" + PathUtils.BOOTSTRAP_NAME
+                    + "::UserInstallation}/user/groovy/server.token";
+    private static final String SCRIPT_URI = "vnd.sun.star.script:";
+
+    // the server of the office, started by the provider of the user scripts
+    private static ScriptServer theScriptServer;
+
+    /**
+     * Finds scripts by their vnd.sun.star.script URI.
+     */
+    public interface Scripts {
+        ScriptMetaData find(String scriptURI) throws Exception;
+    }
+
+    /**
+     * Provides the XSCRIPTCONTEXT of a run.
+     */
+    public interface Documents {
+
+        /**
+         * @param document The document URL or path, empty for none
+         * @return The context to run the script with
+         * @throws Exception If the document cannot be opened
+         */
+        XScriptContext open(String document) throws Exception;
+
+        /**
+         * Called after the run with the context returned by {@link #open}.
+         */
+        void release(XScriptContext context) throws Exception;
+    }
+
+    private final int port;
+    private final Scripts scripts;
+    private final Documents documents;
+    private final File tokenFile;
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor connections;
+    private final Semaphore slots = new Semaphore(CONNECTION_THREADS);
+
+    private ServerSocket serverSocket;
+    private byte[] token;
+
+    // statistics, guarded by this
+    private long served = 0;
+    private long failed = 0;
+    private long rejected = 0;
+    private long queuedNanos = 0;
+    private long runNanos = 0;
+    private int maxQueued = 0;
+
+    /**
+     * @param port      The port to listen on, 0 for any free port
+     * @param queueSize How many requests may wait
+     * @param scripts   Finds scripts by URI, null if only paths are accepted
+     * @param documents Provides the contexts of the runs
+     * @param tokenFile The file the token is written to when the server starts
+     */
+    public ScriptServer(int port, int queueSize, Scripts scripts, Documents documents, File tokenFile) {
+        this.port = port;
+        this.scripts = scripts;
+        this.documents = documents;
+        this.tokenFile = tokenFile;
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Groovy script server");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // the acceptor waits for a free slot, so connections never queue here
+        this.connections = new ThreadPoolExecutor(CONNECTION_THREADS, CONNECTION_THREADS,
+                0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Groovy script server connection");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    public static boolean isEnabled() {
+        return System.getProperty(PORT_PROPERTY) != null;
+    }
+
+    /**
+     * Starts the server of the office unless it is running already.
+     *
+     * @param scripts Finds scripts by URI
+     * @param context The component context used to open documents
+     */
+    public static synchronized void startShared(Scripts scripts, XComponentContext context) {
+        if (theScriptServer != null) {
+            return;
+        }
+        String value = System.getProperty(PORT_PROPERTY).trim();
+        int port;
+        try {
+            port = Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            port = -1;
+        }
+        if (port < 0 || port > 0xffff) {
+            System.err.println("Groovy script server not started, " + PORT_PROPERTY
+                    + " is not a port number: " + value);
+            return;
+        }
+
+        String tokenPath = System.getProperty(TOKEN_PROPERTY);
+        File tokenFile = tokenPath != null
+                ? new File(tokenPath)
+                : ParcelPaths.toFile(USER_TOKEN_URL, context);
+        if (tokenFile == null) {
+            System.err.println("Groovy script server not started, no user profile directory for its token");
+            return;
+        }
+
+        ScriptServer server = new ScriptServer(port,
+                Integer.getInteger(QUEUE_PROPERTY, DEFAULT_QUEUE),
+                scripts, new OfficeDocuments(context), tokenFile);
+        try {
+            server.start();
+            theScriptServer = server;
+        } catch (IOException ioe) {
+            System.err.println("Failed to start the Groovy script server: " + ioe);
+        }
+    }
+
+    /**
+     * Returns the server of the office, null if it is not running.
+     */
+    public static synchronized ScriptServer getShared() {
+        return theScriptServer;
+    }
+
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+        token = writeToken(tokenFile);
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "Groovy script server acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.err.println("Groovy script server listening on port " + getPort()
+                + ", token in " + tokenFile);
+    }
+
+    // a new token per start, in a file only the user can read
+    private static byte[] writeToken(File file) throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder(random.length * 2);
+        for (byte b : random) {
+            hex.append(String.format(Locale.ROOT, "%02x", b & 0xff));
+        }
+        byte[] token = hex.toString().getBytes(StandardCharsets.UTF_8);
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        // created anew so no one else holds it open
+        Files.deleteIfExists(file.toPath());
+        try {
+            Files.createFile(file.toPath(),
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException notPosix) {
+            try {
+                Files.createFile(file.toPath());
+            } catch (FileAlreadyExistsException ignore) {
+            }
+            if (!(file.setReadable(false, false) && file.setReadable(true, true)
+                    && file.setWritable(false, false) && file.setWritable(true, true))) {
+                throw new IOException("Cannot make " + file + " private to the user");
+            }
+        }
+        Files.write(file.toPath(), token);
+        return token;
+    }
+
+    public synchronized int getPort() {
+        return serverSocket == null ? port : serverSocket.getLocalPort();
+    }
+
+    public void stop() {
+        synchronized (this) {
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+        connections.shutdownNow();
+        executor.shutdownNow();
+        if (tokenFile.exists() && !tokenFile.delete()) {
+            System.err.println("Groovy script server: cannot delete " + tokenFile);
+        }
+    }
+
+    private void accept() {
+        ServerSocket socket;
+        synchronized (this) {
+            socket = serverSocket;
+        }
+        while (!socket.isClosed()) {
+            try {
+                // no more connections than handler threads, further clients wait in the backlog
+                slots.acquire();
+            } catch (InterruptedException ie) {
+                return;
+            }
+            try {
+                final Socket connection = socket.accept();
+                connections.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            serve(connection);
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                });
+            } catch (SocketException closed) {
+                return;
+            } catch (RejectedExecutionException stopped) {
+                // stop() shut the threads down, the socket is closed as well
+                return;
+            } catch (IOException ioe) {
+                slots.release();
+                System.err.println("Groovy script server: " + ioe);
+            }
+        }
+    }
+
+    private void serve(Socket connection) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    connection.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8);
+
+            connection.setSoTimeout(TOKEN_TIMEOUT);
+            String first = readLine(in);
+            if (first == null || !MessageDigest.isEqual(token,
+                    first.trim().getBytes(StandardCharsets.UTF_8))) {
+                return;
+            }
+            connection.setSoTimeout(0);
+
+            String line;
+            while ((line = readLine(in)) != null) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                out.write(handle(line));
+                out.write('\n');
+                out.flush();
+            }
+        } catch (IOException ioe) {
+            // the client went away
+        } finally {
+            try {
+                connection.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    // a line without its end, null at the end of the input
+    private static String readLine(Reader in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (line.length() >= MAX_LINE) {
+                throw new IOException("Request line longer than " + MAX_LINE + " characters");
+            }
+            line.append((char) c);
+        }
+        if (c < 0 && line.length() == 0) {
+            return null;
+        }
+        int end = line.length();
+        return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1) : line.toString();
+    }
+
+    /**
+     * Handles one request line.
+     *
+     * @param line The request
+     * @return The response, without the line end
+     */
+    String handle(String line) {
+        String[] fields = line.split("\t", -1);
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = unescape(fields[i]);
+        }
+
+        if (fields[0].equals("stats")) {
+            return "ok\t" + escape(getStatistics());
+        }
+        if (!fields[0].equals("run") || fields.length < 2 || fields[1].length() == 0) {
+            return "error\t" + escape("Expected run <script> <document> <argument>... or stats");
+        }
+
+        final String script = fields[1];
+        final String document = fields.length > 2 ? fields[2] : "";
+        final Object[] args = fields.length > 3
+                ? Arrays.copyOfRange(fields, 3, fields.length, Object[].class) : new Object[0];
+
+        final long submitted = System.nanoTime();
+        final long[] started = new long[1];
+        Future<Object> future;
+        try {
+            future = executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    started[0] = System.nanoTime();
+                    return run(script, document, args);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            synchronized (this) {
+                rejected++;
+            }
+            return "error\t" + escape("Too many requests waiting, try again later");
+        }
+        synchronized (this) {
+            maxQueued = Math.max(maxQueued, executor.getQueue().size());
+        }
+
+        Object result;
+        String error = null;
+        try {
+            result = future.get();
+        } catch (ExecutionException ee) {
+            result = null;
+            Throwable cause = ee.getCause();
+            error = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+        } catch (InterruptedException ie) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return "error\tinterrupted";
+        }
+        long end = System.nanoTime();
+
+        long queued = started[0] - submitted;
+        long ran = end - started[0];
+        synchronized (this) {
+            served++;
+            queuedNanos += queued;
+            runNanos += ran;
+            if (error != null) {
+                failed++;
+            }
+        }
+        if (error != null) {
+            return "error\t" + escape(error);
+        }
+        return "ok\t" + queued / 1000000 + "\t" + ran / 1000000 + "\t" + escape(toString(result));
+    }
+
+    private Object run(String script, String document, Object[] args) throws Exception {
+        ScriptStartup.initRuntime();
+
+        ScriptMetaData scriptMetaData;
+        if (script.startsWith(SCRIPT_URI)) {
+            if (scripts == null) {
+                throw new IllegalArgumentException("Script URIs need an office, use a path: " + script);
+            }
+            scriptMetaData = scripts.find(script);
+        } else {
+            File file = new File(script).getAbsoluteFile();
+            if (!file.isFile()) {
+                throw new IllegalArgumentException("No script " + file);
+            }
+            scriptMetaData = new FileScript(file);
+        }
+
+        XScriptContext context = documents.open(document);
+        try {
+            return new GroovyScript(context, scriptMetaData)
+                    .invoke(args, new short[1][], new Object[1][]);
+        } finally {
+            documents.release(context);
+        }
+    }
+
+    private static String toString(Object result) {
+        if (result instanceof Any) {
+            result = ((Any) result).getObject();
+        }
+        if (result instanceof Object[]) {
+            return Arrays.deepToString((Object[]) result);
+        }
+        return String.valueOf(result);
+    }
+
+    public synchronized String getStatistics() {
+        return String.format(Locale.ROOT,
+                "served=%d failed=%d rejected=%d waiting=%d maxWaiting=%d meanQueuedMs=%.1f meanRunMs=%.1f",
+                served, failed, rejected, executor.getQueue().size(), maxQueued,
+                served == 0 ? 0.0 : queuedNanos / 1000000.0 / served,
+                served == 0 ? 0.0 : runNanos / 1000000.0 / served);
+    }
+
+    static String escape(String s) {
+        StringBuilder buf = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                buf.append("\\\\");
+            } else if (c == '\t') {
+                buf.append("\\t");
+            } else if (c == '\n') {
+                buf.append("\\n");
+            } else if (c != '\r') {
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+
+    static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        StringBuilder buf = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                buf.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Runs a server without an office. Scripts are given by path and get
+     * a {@link LocalScriptContext} without a document.
+     *
+     * @param args The port, 0 or none for any free port, and the token
+     *             file, server.token in the working directory by default
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        File tokenFile = new File(args.length > 1 ? args[1] : "server.token");
+        ScriptServer server = new ScriptServer(port,
+                Integer.getInteger(QUEUE_PROPERTY, DEFAULT_QUEUE), null, new Documents() {
+            public XScriptContext open(String document) {
+                if (document.length() > 0) {
+                    throw new IllegalArgumentException("No office to open " + document);
+                }
+                return new LocalScriptContext();
+            }
+
+            public void release(XScriptContext context) {
+            }
+        }, tokenFile);
+        server.start();
+        Thread.currentThread().join();
+    }
+
+    /**
+     * A script file outside of any parcel, its directory is its class path.
+     */
+    static class FileScript extends ScriptMetaData {
+
+        private final File file;
+
+        FileScript(File file) {
+            super(null, new ScriptEntry("Groovy", file.getName()), null);
+            this.file = file;
+        }
+
+        public String getParcelLocation() {
+            return file.getParentFile().toURI().toString();
+        }
+
+        public URL getSourceURL() throws MalformedURLException {
+            return file.toURI().toURL();
+        }
+
+        public URL[] getClassPath() throws MalformedURLException {
+            return new URL[]{file.getParentFile().toURI().toURL()};
+        }
+    }
+
+    /**
+     * Runs scripts for documents of the office, an open document is used
+     * as it is, any other one is opened for the run only.
+     */
+    static class OfficeDocuments implements Documents {
+
+        private final XComponentContext context;
+        private final BatchRunner loader;
+
+        OfficeDocuments(XComponentContext context) {
+            this.context = context;
+            this.loader = new BatchRunner(context);
+        }
+
+        public XScriptContext open(String document) throws Exception {
+            XDesktop desktop = loader.getDesktop();
+            if (document.length() == 0) {
+                return new DocumentScriptContext(null, desktop, context);
+            }
+
+            String url = BatchRunner.toUrl(document);
+            XModel model = findOpen(desktop, url);
+            if (model != null) {
+                return new DocumentScriptContext(model, desktop, context);
+            }
+            return new OpenedContext(loader.load(url), desktop, context);
+        }
+
+        public void release(XScriptContext scriptContext) throws Exception {
+            if (!(scriptContext instanceof OpenedContext)) {
+                return;
+            }
+            XModel model = scriptContext.getDocument();
+            try {
+                if (loader.isModified(model)) {
+                    loader.store(model);
+                }
+            } finally {
+                loader.close(model);
+            }
+        }
+
+        private static XModel findOpen(XDesktop desktop, String url) throws Exception {
+            if (desktop == null) {
+                return null;
+            }
+            XEnumeration components = desktop.getComponents().createEnumeration();
+            while (components.hasMoreElements()) {
+                XModel model = UnoRuntime.queryInterface(XModel.class, components.nextElement());
+                if (model != null && url.equals(model.getURL())) {
+                    return model;
+                }
+            }
+            return null;
+        }
+    }
+
+    // a document opened for one run
+    private static class OpenedContext extends DocumentScriptContext {
+
+        OpenedContext(XModel document, XDesktop desktop, XComponentContext context) {
+            super(document, desktop, context);
+        }
+    }
+}
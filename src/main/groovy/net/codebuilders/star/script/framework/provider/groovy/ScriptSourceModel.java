@@ -22,42 +22,32 @@
 
 package net.codebuilders.star.script.framework.provider.groovy;
 
-import java.io.InputStream;
 import java.io.IOException;
 
 import java.net.URL;
+import java.util.concurrent.Callable;
 
 import com.sun.star.script.provider.XScriptContext;
 import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
+import groovy.lang.GroovyClassLoader;
+import org.codehaus.groovy.runtime.InvokerHelper;
 
 public class ScriptSourceModel {
 
     private int currentPosition = -1;
     private URL file = null;
     private ScriptSourceView view = null;
+    private SourceChecker checker = null;
+    private String parcel = null;
 
     public ScriptSourceModel(URL file) {
         this.file = file;
     }
 
+    // decoded once and reused until the file changes, see SourceCache
     private String load() throws IOException {
-        StringBuffer buf = new StringBuffer();
-        InputStream in = file.openStream();
-
-        byte[] contents = new byte[1024];
-        int len = 0;
-
-        while ((len = in.read(contents, 0, 1024)) != -1) {
-            buf.append(new String(contents, 0, len));
-        }
-
-        try {
-            in.close();
-        } catch (IOException ignore) {
-        }
-
-        return buf.toString();
+        String text = SourceCache.getCache().get(file, null).getText();
+        return text == null ? "" : text;
     }
 
     public String getText() {
@@ -80,24 +70,58 @@ public class ScriptSourceModel {
         this.view = view;
     }
 
-    public Object execute(final XScriptContext context, ClassLoader cl)
+    /**
+     * Runs the script compiled by the background check if it is up to date.
+     */
+    public void setChecker(SourceChecker checker) {
+        this.checker = checker;
+    }
+
+    /**
+     * Sets the parcel location of the script, whose CACHE scope runs share.
+     */
+    public void setParcel(String parcel) {
+        this.parcel = parcel;
+    }
+
+    public Object execute(final XScriptContext context, final ClassLoader cl)
             throws Exception {
 
         Object result = null;
 
+        /* sets this threads class loader for the run hopefully any threads
+        spawned by this will inherit this cl this enables any class files
+        imported from the interpreter to be loaded. The previous loader is
+        restored afterwards so the office thread does not keep the parcel's.
+        note: setting the classloader on the interpreter has a slightly
+        different meaning in that the classloader for the interpreter seems
+        only to look for source files ( bla.java ) in the classpath */
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
         if (cl != null) {
-            /* sets this threads class loader hopefully any threads spawned by
-            this will inherit this cl this enables any class files imported
-            from the interpreter to be loaded.
-            note: setting the classloader on the interpreter has a slightly
-            different meaning in that the classloader for the interpreter seems
-            only to look for source files ( bla.java ) in the classpath */
-
-            Thread.currentThread().setContextClassLoader(cl);
+            thread.setContextClassLoader(cl);
+        }
+        try {
+            result = ScriptStateCache.wrap(context == null ? null : context.getDocument(),
+                    new Callable<Object>() {
+                        public Object call() {
+                            return evaluate(context, cl);
+                        }
+                    }).call();
+        } finally {
+            thread.setContextClassLoader(previous);
         }
 
+        // DEBUG
+        System.out.println("result = " + result);
+
+        return result;
+    }
+
+    private Object evaluate(XScriptContext context, ClassLoader cl) {
+        Object result;
+
         Binding binding = new Binding();
-        GroovyShell shell = new GroovyShell(binding);
 
         // reset position
         currentPosition = -1;
@@ -105,19 +129,51 @@ public class ScriptSourceModel {
 
         binding.setProperty("XSCRIPTCONTEXT", context);
         binding.setProperty("ARGUMENTS", new Object[0]);
-
-        if (view.isModified()) {
-            result = shell.evaluate(view.getText());
+        ScriptStateCache.bind(binding, context, parcel);
+        CalcRanges.bind(binding, context);
+        ScriptParallel.bind(binding);
+
+        String text = view.isModified() ? view.getText() : getText();
+
+        // the text was compiled in the background after the last edit
+        CompiledScript compiled = checker == null ? null : checker.acquire(text);
+        if (compiled != null) {
+            try {
+                result = InvokerHelper.createScript(compiled.getScriptClass(), binding).run();
+            } finally {
+                checker.release(compiled);
+            }
         } else {
-            result = shell.evaluate(getText());
+            // compiled with the pooled parcel loader, named like the class compiled by the
+            // checker so the profiler finds its lines by it
+            compiled = CompiledScript.compile(text, CompiledScriptCache.className(file.toString()),
+                    groovyLoader(cl));
+            try {
+                result = InvokerHelper.createScript(compiled.getScriptClass(), binding).run();
+            } finally {
+                // the next run compiles again, the classes of this one are not used any more
+                compiled.release();
+            }
         }
 
-        // DEBUG
-        System.out.println("result = " + result.toString());
-
         return result;
     }
 
+    private static GroovyClassLoader groovyLoader(ClassLoader cl) {
+        if (cl instanceof GroovyClassLoader) {
+            return (GroovyClassLoader) cl;
+        }
+        // only without a parcel loader, e.g. when the pool failed to create one
+        return new GroovyClassLoader(cl != null ? cl : ScriptSourceModel.class.getClassLoader());
+    }
+
+    /**
+     * Returns the location of the script, like the script URL.
+     */
+    public String getLocation() {
+        return file.toString();
+    }
+
     public void indicateErrorLine(int lineNum) {
         System.out.println("Groovy indicateErrorLine " + lineNum);
         currentPosition = lineNum - 1;
@@ -0,0 +1,204 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Loads the Groovy runtime when the provider is first used and records
+ * what starting up costs.
+ * <p>
+ * The office creates the provider whenever the scripting framework lists
+ * the script languages, e.g. for the macro organiser, so creating it must
+ * not load Groovy. The runtime is loaded by {@link #initRuntime()} on the
+ * first script, batch or editor call instead.
+ * <p>
+ * The time is recorded for creating the provider, loading the runtime
+ * classes, initialising the runtime and the first script run, and is
+ * available from {@link ScriptMetricsMXBean#getStartupReport()}. When the
+ * system property {@code net.codebuilders.groovy.startup.report} is true
+ * the number of classes loaded in every phase is counted too and the
+ * report is printed after the first run.
+ */
+public final class ScriptStartup {
+
+    public static final String REPORT_PROPERTY = "net.codebuilders.groovy.startup.report";
+
+    // the core of the runtime every script needs, initialising GroovySystem creates the metaclass registry
+    private static final String[] RUNTIME_CLASSES = {
+            "groovy.lang.GroovySystem",
+            "org.codehaus.groovy.runtime.InvokerHelper",
+            "org.codehaus.groovy.runtime.DefaultGroovyMethods",
+            "groovy.lang.GroovyClassLoader",
+            "org.codehaus.groovy.control.CompilationUnit",
+            "groovy.lang.Binding",
+            "groovy.lang.Script",
+    };
+
+    private static final List<Phase> phases = new ArrayList<Phase>();
+    private static final ThreadLocal<long[]> providerStart = new ThreadLocal<long[]>();
+    private static volatile boolean runtimeReady = false;
+    private static volatile boolean invoked = false;
+
+    private ScriptStartup() {
+    }
+
+    /**
+     * Marks the start of creating a provider, called in the argument list
+     * of the super constructor call so its time is included.
+     *
+     * @param language The language name passed on to the super constructor
+     * @return The language name
+     */
+    public static String beginProvider(String language) {
+        providerStart.set(new long[]{System.nanoTime(), loadedClasses()});
+        return language;
+    }
+
+    /**
+     * Records the creation of a provider started with {@link #beginProvider}.
+     */
+    public static void endProvider() {
+        long[] start = providerStart.get();
+        providerStart.remove();
+        if (start != null) {
+            record("provider", start[0], start[1]);
+        }
+    }
+
+    /**
+     * Loads and initialises the Groovy runtime unless it is ready already.
+     */
+    public static void initRuntime() {
+        if (runtimeReady) {
+            return;
+        }
+        synchronized (ScriptStartup.class) {
+            if (runtimeReady) {
+                return;
+            }
+            ClassLoader loader = ScriptStartup.class.getClassLoader();
+            try {
+                long start = System.nanoTime();
+                long classes = loadedClasses();
+                for (String name : RUNTIME_CLASSES) {
+                    Class.forName(name, false, loader);
+                }
+                record("runtime loading", start, classes);
+
+                start = System.nanoTime();
+                classes = loadedClasses();
+                for (String name : RUNTIME_CLASSES) {
+                    Class.forName(name, true, loader);
+                }
+                record("runtime initialisation", start, classes);
+            } catch (ClassNotFoundException cnfe) {
+                // the first script fails with the same error
+                System.err.println("Failed to load the Groovy runtime: " + cnfe);
+            }
+
+            long start = System.nanoTime();
+            long classes = loadedClasses();
+            ScriptMetrics.register();
+            record("metrics registration", start, classes);
+
+            runtimeReady = true;
+        }
+    }
+
+    /**
+     * Returns the start of the first script run, or -1 for all later runs.
+     */
+    static long beginInvocation() {
+        return invoked ? -1 : System.nanoTime();
+    }
+
+    /**
+     * Records the first script run.
+     *
+     * @param startNanos   What {@link #beginInvocation()} returned
+     * @param startClasses The total number of classes loaded at that time
+     */
+    static void endInvocation(long startNanos, long startClasses) {
+        if (startNanos < 0) {
+            return;
+        }
+        synchronized (ScriptStartup.class) {
+            if (invoked) {
+                return;
+            }
+            invoked = true;
+            record("first script", startNanos, startClasses);
+        }
+        if (Boolean.getBoolean(REPORT_PROPERTY)) {
+            System.err.println(getReport());
+        }
+    }
+
+    // loading the management classes takes longer than creating the provider, classes are only counted for the report
+    static long loadedClasses() {
+        if (!Boolean.getBoolean(REPORT_PROPERTY)) {
+            return -1;
+        }
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+        return classLoading.getTotalLoadedClassCount();
+    }
+
+    private static void record(String name, long startNanos, long startClasses) {
+        Phase phase = new Phase(name, System.nanoTime() - startNanos,
+                startClasses < 0 ? -1 : loadedClasses() - startClasses);
+        synchronized (phases) {
+            phases.add(phase);
+        }
+    }
+
+    /**
+     * Returns the startup phases recorded so far, one per line.
+     */
+    public static String getReport() {
+        StringBuilder buf = new StringBuilder("Groovy startup:");
+        synchronized (phases) {
+            for (Phase phase : phases) {
+                buf.append("\n    ").append(phase);
+            }
+        }
+        return buf.toString();
+    }
+
+    private static class Phase {
+        private final String name;
+        private final long nanos;
+        private final long classes;
+
+        Phase(String name, long nanos, long classes) {
+            this.name = name;
+            this.nanos = nanos;
+            this.classes = classes;
+        }
+
+        public String toString() {
+            String time = String.format(Locale.ROOT, "%-24s %8.1f ms", name, nanos / 1000000.0);
+            return classes < 0 ? time : time + String.format(Locale.ROOT, " %6d classes", classes);
+        }
+    }
+}
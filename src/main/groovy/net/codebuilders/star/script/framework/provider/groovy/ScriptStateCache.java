@@ -0,0 +1,572 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.document.UndoManagerEvent;
+import com.sun.star.document.XUndoManager;
+import com.sun.star.document.XUndoManagerListener;
+import com.sun.star.document.XUndoManagerSupplier;
+import com.sun.star.frame.XModel;
+import com.sun.star.lang.EventObject;
+import com.sun.star.script.provider.XScriptContext;
+import com.sun.star.uno.UnoRuntime;
+import com.sun.star.util.XCloseBroadcaster;
+import com.sun.star.util.XCloseListener;
+import com.sun.star.util.XModifiable;
+import com.sun.star.util.XModifyBroadcaster;
+import com.sun.star.util.XModifyListener;
+import groovy.lang.Binding;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Values a script keeps from one run to the next, bound as {@code CACHE}
+ * next to XSCRIPTCONTEXT.
+ * <p>
+ * There is a scope per document, per parcel and a global one:
+ * <pre>
+ * def styles = CACHE.document.get("styles") { readStyles(XSCRIPTCONTEXT.document) }
+ * def config = CACHE.parcel.get("config", 60000) { parseConfig() }
+ * CACHE.global.put("lastRun", new Date())
+ * </pre>
+ * The document scope is dropped when the document is closed and emptied
+ * on every change made while no script runs for it. Changes are seen
+ * through the document's undo manager, so every edit counts, not only the
+ * one that sets the modified flag. Changes made by a script, or by
+ * anything else while it runs, keep the values, the script updates what it
+ * has stored about the document itself. A document without an undo
+ * manager cannot report every edit, its scope is emptied when a run
+ * starts and the document is modified, so there the values only last
+ * while it is unmodified. The parcel scope
+ * is emptied when the parcel's class loader is dropped, so values there
+ * may be instances of the parcel's classes. Values of the global scope
+ * should be plain data, they keep the classes of the script that made
+ * them loaded.
+ * <p>
+ * Every scope keeps at most {@code net.codebuilders.groovy.state.max}
+ * values, 256 by default, and drops the least recently used one first.
+ * Values expire after {@code net.codebuilders.groovy.state.ttl} ms unless
+ * a time is given when storing them, by default they do not expire.
+ */
+public class ScriptStateCache {
+
+    public static final String MAX_ENTRIES_PROPERTY = "net.codebuilders.groovy.state.max";
+    public static final String TTL_PROPERTY = "net.codebuilders.groovy.state.ttl";
+
+    public static final String BINDING_NAME = "CACHE";
+
+    private static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private static final Scope global = new Scope("global");
+
+    // keyed by parcel location and by document oid, guarded by the map itself
+    private static final Map<String, Scope> parcels = new HashMap<String, Scope>();
+    private static final Map<String, DocumentScope> documents = new HashMap<String, DocumentScope>();
+
+    // the number of runs per document oid, guarded by documents
+    private static final Map<String, int[]> running = new HashMap<String, int[]>();
+
+    private final XModel document;
+    private final String parcel;
+
+    private ScriptStateCache(XModel document, String parcel) {
+        this.document = document;
+        this.parcel = parcel;
+    }
+
+    /**
+     * Puts the cache of a run into its Binding.
+     *
+     * @param binding The Binding of the run
+     * @param context The XSCRIPTCONTEXT of the run, its document owns the document scope
+     * @param parcel  The parcel location of the script, may be null
+     */
+    public static void bind(Binding binding, XScriptContext context, String parcel) {
+        XModel document = context == null ? null : context.getDocument();
+        binding.setProperty(BINDING_NAME, new ScriptStateCache(document, parcel));
+    }
+
+    /**
+     * Wraps a run so modifications of its document made while it runs do
+     * not empty the document scope.
+     *
+     * @param document The document the script runs for, may be null
+     * @param work     The run of the script
+     * @return The run to call instead
+     */
+    public static <T> Callable<T> wrap(final XModel document, final Callable<T> work) {
+        if (document == null) {
+            return work;
+        }
+        return new Callable<T>() {
+            public T call() throws Exception {
+                String oid = enter(document);
+                try {
+                    return work.call();
+                } finally {
+                    exit(oid);
+                }
+            }
+        };
+    }
+
+    static String enter(XModel document) {
+        String oid = UnoRuntime.generateOid(document);
+        DocumentScope untracked = null;
+        synchronized (documents) {
+            int[] count = running.get(oid);
+            if (count == null) {
+                count = new int[1];
+                running.put(oid, count);
+                DocumentScope scope = documents.get(oid);
+                if (scope != null && !scope.isTracked()) {
+                    untracked = scope;
+                }
+            }
+            count[0]++;
+        }
+        // edits since the last run went unseen if the document is modified
+        if (untracked != null && isModified(document)) {
+            untracked.clear();
+        }
+        return oid;
+    }
+
+    static void exit(String oid) {
+        synchronized (documents) {
+            int[] count = running.get(oid);
+            if (count != null && --count[0] == 0) {
+                running.remove(oid);
+            }
+        }
+    }
+
+    private static boolean isRunning(String oid) {
+        synchronized (documents) {
+            return running.containsKey(oid);
+        }
+    }
+
+    private static boolean isModified(XModel document) {
+        try {
+            XModifiable modifiable = UnoRuntime.queryInterface(XModifiable.class, document);
+            return modifiable == null || modifiable.isModified();
+        } catch (RuntimeException e) {
+            // the document is gone, nothing worth keeping
+            return true;
+        }
+    }
+
+    /**
+     * Returns the scope of the document the script runs for.
+     *
+     * @throws IllegalStateException If the script runs without a document
+     */
+    public Scope getDocument() {
+        if (document == null) {
+            throw new IllegalStateException("The script runs without a document");
+        }
+        String oid = UnoRuntime.generateOid(document);
+        DocumentScope scope;
+        synchronized (documents) {
+            scope = documents.get(oid);
+            if (scope != null) {
+                return scope;
+            }
+            scope = new DocumentScope(oid, document);
+            documents.put(oid, scope);
+        }
+        // registered without the lock, the office may notify at once
+        scope.listen();
+        return scope;
+    }
+
+    /**
+     * Returns the scope of the parcel the script belongs to.
+     */
+    public Scope getParcel() {
+        String location = parcel == null ? "" : parcel;
+        synchronized (parcels) {
+            Scope scope = parcels.get(location);
+            if (scope == null) {
+                scope = new Scope(location);
+                parcels.put(location, scope);
+            }
+            return scope;
+        }
+    }
+
+    /**
+     * Returns the scope shared by all scripts.
+     */
+    public Scope getGlobal() {
+        return global;
+    }
+
+    /**
+     * Drops the values of a parcel, called when its class loader is dropped.
+     *
+     * @param location The parcel location
+     */
+    static void releaseParcel(String location) {
+        Scope scope;
+        synchronized (parcels) {
+            scope = parcels.remove(location);
+        }
+        if (scope != null) {
+            scope.clear();
+        }
+    }
+
+    /**
+     * Drops the values of all scopes and stops listening to the documents.
+     */
+    static void clearAll() {
+        List<Scope> dropped;
+        synchronized (parcels) {
+            dropped = new ArrayList<Scope>(parcels.values());
+            parcels.clear();
+        }
+        List<DocumentScope> documentScopes;
+        synchronized (documents) {
+            documentScopes = new ArrayList<DocumentScope>(documents.values());
+            documents.clear();
+        }
+        // the listeners are removed without the lock, like they are added
+        for (DocumentScope scope : documentScopes) {
+            scope.unlisten();
+            scope.clear();
+        }
+        for (Scope scope : dropped) {
+            scope.clear();
+        }
+        global.clear();
+    }
+
+    public String toString() {
+        synchronized (documents) {
+            synchronized (parcels) {
+                return "ScriptStateCache[documents=" + documents.size() + ", parcels=" + parcels.size()
+                        + ", global=" + global.size() + "]";
+            }
+        }
+    }
+
+    /**
+     * The values of one scope, least recently used first.
+     */
+    public static class Scope {
+
+        private final String name;
+        private final long defaultTtl;
+        private final Map<Object, Value> entries;
+
+        Scope(String name) {
+            this.name = name;
+            this.defaultTtl = Math.max(0, Long.getLong(TTL_PROPERTY, 0));
+            final int maxEntries = Math.max(1, Integer.getInteger(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES));
+            this.entries = new LinkedHashMap<Object, Value>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<Object, Value> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        /**
+         * Returns the value stored under a key, or null if there is none
+         * or it has expired.
+         */
+        public Object get(Object key) {
+            synchronized (entries) {
+                Value entry = lookup(key);
+                return entry == null ? null : entry.value;
+            }
+        }
+
+        /**
+         * Returns the value stored under a key, computing and storing it
+         * if there is none.
+         *
+         * @param key     The key
+         * @param compute Computes the value, e.g. a closure
+         * @return The stored or the computed value, which may be null
+         * @throws Exception What computing the value threw
+         */
+        public Object get(Object key, Callable<?> compute) throws Exception {
+            return get(key, defaultTtl, compute);
+        }
+
+        /**
+         * Returns the value stored under a key, computing and storing it
+         * for a limited time if there is none.
+         *
+         * @param key        The key
+         * @param ttlMillis  The time in ms the computed value is kept, 0 for no limit
+         * @param compute    Computes the value, e.g. a closure
+         * @return The stored or the computed value, which may be null
+         * @throws Exception What computing the value threw
+         */
+        public Object get(Object key, long ttlMillis, Callable<?> compute) throws Exception {
+            synchronized (entries) {
+                Value entry = lookup(key);
+                if (entry != null) {
+                    return entry.value;
+                }
+            }
+
+            // computed without the lock, it may call into the office
+            Object value = compute.call();
+
+            synchronized (entries) {
+                // another run may have stored it in the meantime
+                Value entry = lookup(key);
+                if (entry != null) {
+                    return entry.value;
+                }
+                entries.put(key, new Value(value, ttlMillis));
+                return value;
+            }
+        }
+
+        /**
+         * Stores a value under a key, expiring after the default time.
+         */
+        public void put(Object key, Object value) {
+            put(key, value, defaultTtl);
+        }
+
+        /**
+         * Stores a value under a key.
+         *
+         * @param key       The key
+         * @param value     The value, may be null
+         * @param ttlMillis The time in ms the value is kept, 0 for no limit
+         */
+        public void put(Object key, Object value, long ttlMillis) {
+            synchronized (entries) {
+                entries.put(key, new Value(value, ttlMillis));
+            }
+        }
+
+        public boolean containsKey(Object key) {
+            synchronized (entries) {
+                return lookup(key) != null;
+            }
+        }
+
+        /**
+         * Removes the value stored under a key.
+         *
+         * @return The removed value, or null if there was none
+         */
+        public Object remove(Object key) {
+            synchronized (entries) {
+                Value entry = entries.remove(key);
+                return entry == null || entry.isExpired() ? null : entry.value;
+            }
+        }
+
+        public void clear() {
+            synchronized (entries) {
+                entries.clear();
+            }
+        }
+
+        public int size() {
+            synchronized (entries) {
+                return entries.size();
+            }
+        }
+
+        private Value lookup(Object key) {
+            Value entry = entries.get(key);
+            if (entry != null && entry.isExpired()) {
+                entries.remove(key);
+                return null;
+            }
+            return entry;
+        }
+
+        public String toString() {
+            return "Scope[" + name + ", size=" + size() + "]";
+        }
+    }
+
+    // a scope that follows the life of its document
+    private static class DocumentScope extends Scope
+            implements XCloseListener, XModifyListener, XUndoManagerListener {
+
+        private final String oid;
+        private final XModel document;
+
+        // the undo manager reporting every edit, null if there is none
+        private volatile XUndoManager undoManager;
+
+        DocumentScope(String oid, XModel document) {
+            super(oid);
+            this.oid = oid;
+            this.document = document;
+        }
+
+        void listen() {
+            XCloseBroadcaster closeBroadcaster =
+                    UnoRuntime.queryInterface(XCloseBroadcaster.class, document);
+            if (closeBroadcaster != null) {
+                closeBroadcaster.addCloseListener(this);
+            }
+            XModifyBroadcaster modifyBroadcaster =
+                    UnoRuntime.queryInterface(XModifyBroadcaster.class, document);
+            if (modifyBroadcaster != null) {
+                modifyBroadcaster.addModifyListener(this);
+            }
+            XUndoManagerSupplier undoSupplier =
+                    UnoRuntime.queryInterface(XUndoManagerSupplier.class, document);
+            XUndoManager manager = undoSupplier == null ? null : undoSupplier.getUndoManager();
+            if (manager != null) {
+                manager.addUndoManagerListener(this);
+                undoManager = manager;
+            }
+        }
+
+        void unlisten() {
+            try {
+                XCloseBroadcaster closeBroadcaster =
+                        UnoRuntime.queryInterface(XCloseBroadcaster.class, document);
+                if (closeBroadcaster != null) {
+                    closeBroadcaster.removeCloseListener(this);
+                }
+                XModifyBroadcaster modifyBroadcaster =
+                        UnoRuntime.queryInterface(XModifyBroadcaster.class, document);
+                if (modifyBroadcaster != null) {
+                    modifyBroadcaster.removeModifyListener(this);
+                }
+                XUndoManager manager = undoManager;
+                undoManager = null;
+                if (manager != null) {
+                    manager.removeUndoManagerListener(this);
+                }
+            } catch (RuntimeException e) {
+                // the document is gone already, e.g. disposed
+            }
+        }
+
+        boolean isTracked() {
+            return undoManager != null;
+        }
+
+        private void drop() {
+            boolean removed;
+            synchronized (documents) {
+                removed = documents.get(oid) == this;
+                if (removed) {
+                    documents.remove(oid);
+                }
+            }
+            if (removed) {
+                unlisten();
+            }
+            clear();
+        }
+
+        private void changed() {
+            // the script changing its own document keeps what it stored
+            if (!isRunning(oid)) {
+                clear();
+            }
+        }
+
+        public void queryClosing(EventObject event, boolean getsOwnership) {
+        }
+
+        public void notifyClosing(EventObject event) {
+            drop();
+        }
+
+        public void modified(EventObject event) {
+            changed();
+        }
+
+        public void undoActionAdded(UndoManagerEvent event) {
+            changed();
+        }
+
+        public void actionUndone(UndoManagerEvent event) {
+            changed();
+        }
+
+        public void actionRedone(UndoManagerEvent event) {
+            changed();
+        }
+
+        public void leftContext(UndoManagerEvent event) {
+            changed();
+        }
+
+        public void leftHiddenContext(UndoManagerEvent event) {
+            changed();
+        }
+
+        public void allActionsCleared(EventObject event) {
+        }
+
+        public void redoActionsCleared(EventObject event) {
+        }
+
+        public void resetAll(EventObject event) {
+        }
+
+        public void enteredContext(UndoManagerEvent event) {
+        }
+
+        public void enteredHiddenContext(UndoManagerEvent event) {
+        }
+
+        public void cancelledContext(UndoManagerEvent event) {
+        }
+
+        public void disposing(EventObject event) {
+            // the undo manager going away alone leaves the document open
+            if (event != null && undoManager != null
+                    && UnoRuntime.areSame(event.Source, undoManager)) {
+                undoManager = null;
+                return;
+            }
+            drop();
+        }
+    }
+
+    private static class Value {
+        private final Object value;
+        private final long expires;
+
+        Value(Object value, long ttlMillis) {
+            this.value = value;
+            this.expires = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+        }
+
+        boolean isExpired() {
+            return expires != 0 && System.currentTimeMillis() >= expires;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handle of an asynchronous script run.
+ * <p>
+ * The running script reaches its own task through
+ * {@code XSCRIPTCONTEXT.getTask()} to report progress and to check for
+ * cancellation:
+ * <pre>
+ * //# async
+ * def task = XSCRIPTCONTEXT.task
+ * rows.eachWithIndex { row, i -&gt;
+ *     task.checkCancelled()
+ *     task.setProgress(i / rows.size(), "row $i")
+ *     ...
+ * }
+ * </pre>
+ * Other code looks tasks up by id with {@link ScriptExecutor#getTask(String)}.
+ */
+public class ScriptTask {
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED
+    }
+
+    private static final AtomicLong ids = new AtomicLong();
+
+    private final String id;
+    private final String scriptUrl;
+    private final long createdMillis = System.currentTimeMillis();
+    private final List<ScriptTaskListener> listeners =
+            new CopyOnWriteArrayList<ScriptTaskListener>();
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile State state = State.QUEUED;
+    private volatile boolean cancelRequested = false;
+    private volatile double progress = 0.0;
+    private volatile String message;
+    private volatile long startedMillis;
+    private volatile long finishedMillis;
+
+    private Thread runner;
+    private Object result;
+    private Throwable error;
+    private Runnable onFinish;
+
+    ScriptTask(String scriptUrl) {
+        this.id = "groovy-" + ids.incrementAndGet();
+        this.scriptUrl = scriptUrl;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getScriptUrl() {
+        return scriptUrl;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Returns the progress last reported by the script, between 0 and 1.
+     */
+    public double getProgress() {
+        return progress;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setProgress(double progress) {
+        this.progress = Math.max(0.0, Math.min(1.0, progress));
+    }
+
+    /**
+     * Reports progress of the script.
+     *
+     * @param progress The fraction done, between 0 and 1
+     * @param message  A description of the current step, may be null
+     */
+    public void setProgress(double progress, String message) {
+        setProgress(progress);
+        this.message = message;
+    }
+
+    /**
+     * Returns true once cancellation was requested. Long running scripts
+     * should check this regularly and stop.
+     */
+    public boolean isCancelled() {
+        return cancelRequested;
+    }
+
+    /**
+     * Stops the script by throwing if cancellation was requested.
+     *
+     * @throws CancellationException If the task was cancelled
+     */
+    public void checkCancelled() throws CancellationException {
+        if (cancelRequested) {
+            throw new CancellationException("Script task " + id + " was cancelled");
+        }
+    }
+
+    /**
+     * Requests cancellation. A queued task never starts, a running task
+     * is interrupted and sees {@link #isCancelled()} return true.
+     *
+     * @return false if the task had already finished
+     */
+    public boolean cancel() {
+        Thread interrupt = null;
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            cancelRequested = true;
+            if (state == State.RUNNING) {
+                interrupt = runner;
+            }
+        }
+        if (interrupt != null) {
+            interrupt.interrupt();
+        } else {
+            finish(null, null);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value returned by the script once it has succeeded.
+     */
+    public synchronized Object getResult() {
+        return result;
+    }
+
+    /**
+     * Returns what the script threw once it has failed.
+     */
+    public synchronized Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Waits for the task to finish.
+     *
+     * @param timeoutMillis The maximum time to wait
+     * @return true if the task has finished
+     * @throws InterruptedException If the waiting thread is interrupted
+     */
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds a listener notified when the task has finished. A listener
+     * added to a finished task is notified at once.
+     *
+     * @param listener The listener
+     */
+    public void addListener(ScriptTaskListener listener) {
+        listeners.add(listener);
+        if (isDone() && listeners.remove(listener)) {
+            notify(listener);
+        }
+    }
+
+    public void removeListener(ScriptTaskListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the milliseconds the task has been running, or ran for.
+     */
+    public long getRunMillis() {
+        long started = startedMillis;
+        if (started == 0) {
+            return 0;
+        }
+        long finished = finishedMillis;
+        return (finished == 0 ? System.currentTimeMillis() : finished) - started;
+    }
+
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    // called once by the executor when the task is done either way
+    synchronized void setOnFinish(Runnable onFinish) {
+        this.onFinish = onFinish;
+    }
+
+    // returns false if the task was cancelled while it was queued
+    synchronized boolean start() {
+        if (state != State.QUEUED || cancelRequested) {
+            return false;
+        }
+        state = State.RUNNING;
+        runner = Thread.currentThread();
+        startedMillis = System.currentTimeMillis();
+        return true;
+    }
+
+    void finish(Object result, Throwable error) {
+        Runnable finished;
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            this.result = result;
+            this.error = error;
+            runner = null;
+            finishedMillis = System.currentTimeMillis();
+            if (cancelRequested) {
+                state = State.CANCELLED;
+            } else if (error != null) {
+                state = State.FAILED;
+            } else {
+                state = State.SUCCEEDED;
+                progress = 1.0;
+            }
+            finished = onFinish;
+            onFinish = null;
+            done.countDown();
+        }
+
+        if (finished != null) {
+            finished.run();
+        }
+        for (ScriptTaskListener listener : listeners) {
+            if (listeners.remove(listener)) {
+                notify(listener);
+            }
+        }
+    }
+
+    private void notify(ScriptTaskListener listener) {
+        try {
+            listener.taskFinished(this);
+        } catch (RuntimeException e) {
+            System.err.println("Script task listener failed: " + e);
+        }
+    }
+
+    public String toString() {
+        return "ScriptTask[" + id + ", " + scriptUrl + ", " + state + "]";
+    }
+}
@@ -0,0 +1,33 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+/**
+ * Notified once when an asynchronous script run has finished.
+ */
+public interface ScriptTaskListener {
+
+    /**
+     * Called on the thread that finished the task, after its state,
+     * result and error are set.
+     *
+     * @param task The finished task
+     */
+    void taskFinished(ScriptTask task);
+}
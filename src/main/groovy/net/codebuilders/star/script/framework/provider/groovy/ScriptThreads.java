@@ -0,0 +1,133 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+
+/**
+ * Chooses the thread of an async run with the {@code thread} option and
+ * sets the parcel class loader as context class loader for a run only.
+ * <ul>
+ * <li>{@code caller} (the default) and {@code platform} run on the
+ * platform threads of the {@link ScriptExecutor}.</li>
+ * <li>{@code virtual} runs every invocation on a virtual thread of its own.
+ * Virtual threads need Java 21, older runtimes use the platform threads.</li>
+ * </ul>
+ * A run that is not async always runs on the invoking thread, the office
+ * waits for its result either way. The default for scripts without the
+ * option is set with the system property
+ * {@code net.codebuilders.groovy.thread}.
+ */
+public final class ScriptThreads {
+
+    public static final String MODE_PROPERTY = "net.codebuilders.groovy.thread";
+
+    public static final String CALLER = "caller";
+    public static final String VIRTUAL = "virtual";
+    public static final String PLATFORM = "platform";
+
+    // Thread.ofVirtual() and Thread.Builder.unstarted(Runnable), null before Java 21
+    private static final Object virtualBuilder;
+    private static final Method unstarted;
+
+    static {
+        Object builder = null;
+        Method method = null;
+        try {
+            builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            method = builderClass.getMethod("unstarted", Runnable.class);
+        } catch (Exception e) {
+            // no virtual threads on this runtime
+            builder = null;
+            method = null;
+        }
+        virtualBuilder = builder;
+        unstarted = method;
+    }
+
+    private ScriptThreads() {
+    }
+
+    public static boolean isVirtualAvailable() {
+        return unstarted != null;
+    }
+
+    /**
+     * Returns the thread mode of a script, one of caller, virtual or platform.
+     *
+     * @param options The options of the script
+     * @return The thread mode
+     */
+    public static String getMode(ScriptOptions options) {
+        String mode = options.get(ScriptOptions.THREAD,
+                System.getProperty(MODE_PROPERTY, CALLER)).toLowerCase();
+        if (mode.equals(VIRTUAL) || mode.equals(PLATFORM)) {
+            return mode;
+        }
+        return CALLER;
+    }
+
+    /**
+     * Creates an unstarted thread.
+     *
+     * @param name    The thread name
+     * @param task    What the thread runs
+     * @param virtual true for a virtual thread if the runtime has them
+     * @return The new thread
+     */
+    public static Thread newThread(String name, Runnable task, boolean virtual) {
+        if (virtual && unstarted != null) {
+            try {
+                Thread t = (Thread) unstarted.invoke(virtualBuilder, task);
+                t.setName(name);
+                return t;
+            } catch (Exception e) {
+                System.err.println("Failed to create a virtual thread, using a platform thread: " + e);
+            }
+        }
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Runs with a context class loader and restores the previous one.
+     *
+     * @param loader The context class loader, null keeps the current one
+     * @param work   The work to run
+     * @return The result of the work
+     * @throws Exception What the work threw
+     */
+    public static <T> T withContextClassLoader(ClassLoader loader, Callable<T> work)
+            throws Exception {
+        if (loader == null) {
+            return work.call();
+        }
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader(loader);
+        try {
+            return work.call();
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.script.framework.container.Parcel;
+import com.sun.star.script.framework.container.ParcelContainer;
+import com.sun.star.script.framework.container.ScriptMetaData;
+import com.sun.star.uno.XComponentContext;
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Opt-in background warm-up of the Groovy runtime and the scripts of a
+ * parcel container so the first macro a user runs does not stall.
+ * <p>
+ * Enabled with the system property {@value #ENABLED_PROPERTY}. All work
+ * runs on a single low priority daemon thread and never blocks the
+ * caller.
+ */
+public class ScriptWarmup {
+
+    public static final String ENABLED_PROPERTY = "net.codebuilders.groovy.warmup";
+
+    // exercises the parser, closures and the metaclass registry
+    private static final String RUNTIME_SCRIPT =
+            "def list = [3, 1, 2].collect { it * 2 }.sort()\n"
+                    + "def map = [a: list.sum()]\n"
+                    + "return \"${map.a} ${list}\".toString()";
+
+    private static ExecutorService executor;
+    private static boolean runtimeScheduled = false;
+    private static String lastReport;
+
+    private ScriptWarmup() {
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    /**
+     * Schedules loading and initialising the Groovy runtime once per office session.
+     */
+    public static synchronized void warmRuntime() {
+        if (runtimeScheduled) {
+            return;
+        }
+        runtimeScheduled = true;
+
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                ScriptStartup.initRuntime();
+                long start = System.nanoTime();
+                try {
+                    GroovyClassLoader loader =
+                            new GroovyClassLoader(ScriptWarmup.class.getClassLoader());
+                    CompiledScript compiled =
+                            CompiledScript.compile(RUNTIME_SCRIPT, "GroovyWarmup", loader);
+                    Script script = InvokerHelper.createScript(
+                            compiled.getScriptClass(), new Binding());
+                    script.run();
+                    report("Groovy runtime warm-up finished in " + millis(start) + " ms");
+                } catch (Throwable t) {
+                    report("Groovy runtime warm-up failed after " + millis(start) + " ms: " + t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedules compiling every script of a parcel container into the
+     * {@link CompiledScriptCache}.
+     *
+     * @param container The parcel container, e.g. of the user or share scripts
+     * @param context   The component context used to locate parcel files
+     */
+    public static void warmScripts(final ParcelContainer container,
+                                   final XComponentContext context) {
+        if (container == null) {
+            return;
+        }
+
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                int compiled = 0;
+                int failed = 0;
+
+                for (String parcelName : container.getElementNames()) {
+                    Parcel parcel;
+                    try {
+                        parcel = (Parcel) container.getByName(parcelName);
+                    } catch (Exception e) {
+                        continue;
+                    }
+
+                    for (String scriptName : parcel.getElementNames()) {
+                        try {
+                            ScriptMetaData scriptMetaData =
+                                    (ScriptMetaData) parcel.getByName(scriptName);
+                            if (precompile(scriptMetaData, context)) {
+                                compiled++;
+                            }
+                        } catch (Exception e) {
+                            failed++;
+                        } catch (LinkageError le) {
+                            failed++;
+                        }
+                    }
+                }
+
+                report("Groovy warm-up of " + container.getName() + " scripts finished in "
+                        + millis(start) + " ms, " + compiled + " compiled, "
+                        + failed + " failed");
+            }
+        });
+    }
+
+    /**
+     * Returns the report of the most recently finished warm-up task.
+     *
+     * @return The report or null if no warm-up has finished yet
+     */
+    public static synchronized String getLastReport() {
+        return lastReport;
+    }
+
+    private static boolean precompile(ScriptMetaData scriptMetaData, XComponentContext context)
+            throws Exception {
+        SourceCache.CachedSource cached = SourceCache.getCache().get(scriptMetaData, context);
+        String source = cached.getText();
+        if (source == null || source.length() == 0) {
+            return false;
+        }
+
+        GroovyClassLoader cl = ParcelClassLoaderPool.getPool().getClassLoader(
+                scriptMetaData, context);
+        CompiledScriptCache.getCache().getOrCompile(
+                scriptMetaData.getSourceURL().toExternalForm(),
+                scriptMetaData.getParcelLocation(), source, cached.getHash(),
+                cached.getOptions(scriptMetaData.getLanguageProperties()), cl, context);
+        return true;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread t = new Thread(runnable, "Groovy warm-up");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    private static synchronized void report(String message) {
+        lastReport = message;
+        System.err.println(message);
+    }
+
+    private static long millis(long start) {
+        return (System.nanoTime() - start) / 1000000;
+    }
+}
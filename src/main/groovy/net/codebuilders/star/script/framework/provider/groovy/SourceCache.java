@@ -0,0 +1,293 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.script.framework.container.ScriptMetaData;
+import com.sun.star.ucb.XSimpleFileAccess;
+import com.sun.star.uno.UnoRuntime;
+import com.sun.star.uno.XComponentContext;
+import com.sun.star.util.DateTime;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of script sources so an unchanged script is not read again on
+ * every invocation.
+ * <p>
+ * Sources of scripts in the local file system are watched by the
+ * {@link SourceWatcher} and reused without any I/O until the watcher
+ * reports a change. Sources that cannot be watched, like scripts stored
+ * in a document, are reused while their modification stamp is unchanged.
+ */
+public class SourceCache {
+
+    private static final int MAX_ENTRIES = 256;
+
+    // global SourceCache returned for getCache() calls
+    private static volatile SourceCache theSourceCache;
+
+    private final Map<String, CachedSource> entries =
+            new LinkedHashMap<String, CachedSource>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, CachedSource> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    // counts markStale() calls so a change during a load is not lost
+    private long invalidations = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    private XComponentContext fileAccessContext;
+    private XSimpleFileAccess fileAccess;
+
+    /**
+     * Returns the global SourceCache instance.
+     */
+    public static SourceCache getCache() {
+        if (theSourceCache == null) {
+            synchronized (SourceCache.class) {
+                if (theSourceCache == null) {
+                    theSourceCache = new SourceCache();
+                }
+            }
+        }
+        return theSourceCache;
+    }
+
+    /**
+     * Get the source of a script, reading it only when it is not cached
+     * or has changed.
+     *
+     * @param scriptMetaData The metadata describing the script
+     * @param context        The component context, may be null
+     * @return The cached source, its text is null if the script could
+     * not be read
+     * @throws MalformedURLException If the script URL is invalid
+     */
+    public CachedSource get(ScriptMetaData scriptMetaData, XComponentContext context)
+            throws MalformedURLException {
+        URL url = scriptMetaData.getSourceURL();
+        try {
+            return get(url, context);
+        } catch (IOException e) {
+            System.err.println("Failed to read script " + url + ": " + e);
+            return new CachedSource(null, null, 0, false);
+        }
+    }
+
+    /**
+     * Get the source at a URL, reading it only when it is not cached or
+     * has changed. Sources are decoded by the {@link SourceLoader}.
+     *
+     * @param url     The source URL
+     * @param context The component context used to check sources that
+     *                are not local files, may be null
+     * @return The cached source
+     * @throws IOException If the source cannot be read
+     */
+    public CachedSource get(URL url, XComponentContext context) throws IOException {
+        String key = url.toExternalForm();
+
+        CachedSource entry;
+        long before;
+        synchronized (this) {
+            entry = entries.get(key);
+            before = invalidations;
+        }
+
+        if (entry != null && !entry.stale) {
+            if (entry.watched
+                    || (entry.stamp != 0 && entry.stamp == stamp(entry.file, key, context))) {
+                synchronized (this) {
+                    hits++;
+                }
+                return entry;
+            }
+        }
+
+        File file = ParcelPaths.toFile(url, context);
+
+        // start watching before reading so no change can slip through
+        boolean watched = false;
+        if (file != null) {
+            SourceWatcher watcher = SourceWatcher.getWatcher();
+            watched = watcher != null && watcher.watch(file);
+        }
+        long stamp = stamp(file, key, context);
+
+        String text = SourceLoader.read(url, file);
+
+        entry = new CachedSource(file, text, stamp, watched);
+        synchronized (this) {
+            misses++;
+            entry.stale = before != invalidations;
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Forces the next lookup of a script to read its source again.
+     *
+     * @param url The source URL of the script
+     */
+    public synchronized void invalidate(URL url) {
+        invalidations++;
+        CachedSource entry = entries.get(url.toExternalForm());
+        if (entry != null) {
+            entry.stale = true;
+        }
+    }
+
+    /**
+     * Marks the sources read from a file, or from any file of a
+     * directory, as stale.
+     *
+     * @param file      The changed file
+     * @param directory true if the file is a directory and all its
+     *                  entries have to be read again
+     */
+    public synchronized void markStale(File file, boolean directory) {
+        invalidations++;
+        for (CachedSource entry : entries.values()) {
+            if (entry.file == null) {
+                continue;
+            }
+            if (file.equals(entry.file)
+                    || (directory && file.equals(entry.file.getParentFile()))) {
+                entry.stale = true;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        invalidations++;
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    // returns 0 if the stamp of the source is unknown
+    private long stamp(File file, String url, XComponentContext context) {
+        if (file != null) {
+            return file.lastModified() * 31 + file.length();
+        }
+
+        XSimpleFileAccess sfa = getFileAccess(context);
+        if (sfa == null) {
+            return 0;
+        }
+        try {
+            DateTime dt = sfa.getDateTimeModified(url);
+            long stamp = dt.Year;
+            stamp = stamp * 12 + dt.Month;
+            stamp = stamp * 31 + dt.Day;
+            stamp = stamp * 24 + dt.Hours;
+            stamp = stamp * 60 + dt.Minutes;
+            stamp = stamp * 60 + dt.Seconds;
+            stamp = stamp * 100 + dt.HundredthSeconds;
+            return stamp * 31 + sfa.getSize(url);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private synchronized XSimpleFileAccess getFileAccess(XComponentContext context) {
+        if (context == null) {
+            return null;
+        }
+        if (fileAccess == null || fileAccessContext != context) {
+            try {
+                Object o = context.getServiceManager().createInstanceWithContext(
+                        "com.sun.star.ucb.SimpleFileAccess", context);
+                fileAccess = UnoRuntime.queryInterface(XSimpleFileAccess.class, o);
+                fileAccessContext = context;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        return fileAccess;
+    }
+
+    /**
+     * A script source as last read.
+     */
+    public static class CachedSource {
+        private final File file;
+        private final String text;
+        private final String hash;
+        private final long stamp;
+        private final boolean watched;
+        private volatile boolean stale = false;
+        private ScriptOptions options;
+
+        CachedSource(File file, String text, long stamp, boolean watched) {
+            this.file = file;
+            this.text = text;
+            this.hash = text == null ? null : CompiledScriptCache.hash(text);
+            this.stamp = stamp;
+            this.watched = watched;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Returns the hash of the text as used by the {@link CompiledScriptCache}.
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Returns the options of the script, parsed once per source.
+         *
+         * @param languageProperties The language properties of the script
+         * @return The options from the properties and the source directives
+         */
+        public synchronized ScriptOptions getOptions(Map<?, ?> languageProperties) {
+            if (options == null) {
+                options = ScriptOptions.parse(languageProperties, text);
+            }
+            return options;
+        }
+
+        public boolean isWatched() {
+            return watched;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import groovy.lang.GroovyClassLoader;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.ErrorCollector;
+import org.codehaus.groovy.control.MultipleCompilationErrorsException;
+import org.codehaus.groovy.control.ProcessingUnit;
+import org.codehaus.groovy.control.messages.SyntaxErrorMessage;
+import org.codehaus.groovy.syntax.SyntaxException;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Compiles the text of the editor in the background while it is edited.
+ * <p>
+ * A check starts when no edit was made for the delay set with the system
+ * property {@code net.codebuilders.groovy.editor.checkDelay} in
+ * milliseconds. Checks run one at a time on a thread of their own, a
+ * check that is overtaken by a newer edit stops after its current compile
+ * phase and its result is dropped. The errors of the last check are
+ * reported to the listener on the EDT, and the compiled script is kept so
+ * Run does not compile the same text again. A compiled script a run has
+ * acquired is released only after the run gave it back, even if a newer
+ * check replaced it or the checker was disposed meanwhile.
+ */
+public class SourceChecker {
+
+    public static final String DELAY_PROPERTY = "net.codebuilders.groovy.editor.checkDelay";
+
+    private static final int DEFAULT_DELAY = 400;
+
+    public interface Listener {
+        /**
+         * Called on the EDT with the errors of the last check.
+         *
+         * @param errors The error messages keyed by line number, starting at 1
+         */
+        void checked(Map<Integer, String> errors);
+    }
+
+    private final ScriptSourceView view;
+    private final GroovyClassLoader loader;
+    private final String className;
+    private final Listener listener;
+    private final Timer timer;
+    private final ExecutorService executor;
+
+    // only the check of the current generation may publish its result
+    private volatile long generation = 0;
+    private Future<?> running;
+    private String submitted;
+    private Result result;
+
+    // replaced results that runs still use, released when the last gives it back
+    private final List<Result> retired = new ArrayList<Result>();
+
+    /**
+     * @param view      The view whose text is checked
+     * @param loader    The parcel class loader, null for the loader of the provider
+     * @param className The class name to compile the script as
+     * @param listener  Told about the errors, may be null
+     */
+    public SourceChecker(ScriptSourceView view, ClassLoader loader, String className,
+                         Listener listener) {
+        this.view = view;
+        this.loader = loader instanceof GroovyClassLoader ? (GroovyClassLoader) loader
+                : new GroovyClassLoader(loader != null ? loader : SourceChecker.class.getClassLoader());
+        this.className = className;
+        this.listener = listener;
+
+        timer = new Timer(Integer.getInteger(DELAY_PROPERTY, DEFAULT_DELAY), new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                check();
+            }
+        });
+        timer.setRepeats(false);
+
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Groovy syntax check");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Checks the text once no edit was made for the delay. Called on the
+     * EDT after every edit, a running check is abandoned.
+     */
+    public synchronized void schedule() {
+        generation++;
+        submitted = null;
+        timer.restart();
+    }
+
+    /**
+     * Returns the script compiled by the last check if it was made for
+     * this text and found no errors. It stays loaded until it is given
+     * back with {@link #release(CompiledScript)}.
+     *
+     * @param text The text about to be run
+     * @return The compiled script or null
+     */
+    public synchronized CompiledScript acquire(String text) {
+        if (result != null && result.compiled != null && result.text.equals(text)) {
+            result.users++;
+            return result.compiled;
+        }
+        return null;
+    }
+
+    /**
+     * Gives back a compiled script returned by {@link #acquire(String)}
+     * once the run is over.
+     */
+    public void release(CompiledScript compiled) {
+        Result unused = null;
+        synchronized (this) {
+            if (result != null && result.compiled == compiled) {
+                result.users--;
+                return;
+            }
+            for (Iterator<Result> it = retired.iterator(); it.hasNext(); ) {
+                Result old = it.next();
+                if (old.compiled == compiled) {
+                    if (--old.users == 0) {
+                        it.remove();
+                        unused = old;
+                    }
+                    break;
+                }
+            }
+        }
+        if (unused != null) {
+            unused.compiled.release();
+        }
+    }
+
+    /**
+     * Stops checking, called when the editor is closed.
+     */
+    public void dispose() {
+        timer.stop();
+        generation++;
+        executor.shutdown();
+        Result unused;
+        synchronized (this) {
+            unused = retire(result);
+            result = null;
+        }
+        if (unused != null) {
+            unused.compiled.release();
+        }
+    }
+
+    // with the lock held, returns the replaced result if no run uses it so it is released now
+    private Result retire(Result replaced) {
+        if (replaced == null || replaced.compiled == null) {
+            return null;
+        }
+        if (replaced.users > 0) {
+            retired.add(replaced);
+            return null;
+        }
+        return replaced;
+    }
+
+    // on the EDT
+    private synchronized void check() {
+        final String text = view.getText();
+        if (text.equals(submitted)) {
+            return;
+        }
+        submitted = text;
+
+        /* The running check is not interrupted, an interrupt while the
+           compiler reads a class from the parcel jar would close the jar
+           for the shared parcel class loader. It stops at its next phase */
+        if (running != null) {
+            running.cancel(false);
+        }
+        final long checkGeneration = ++generation;
+        running = executor.submit(new Runnable() {
+            public void run() {
+                compile(text, checkGeneration);
+            }
+        });
+    }
+
+    private void compile(String text, final long checkGeneration) {
+        if (checkGeneration != generation) {
+            return;
+        }
+
+        CompiledScript compiled = null;
+        Map<Integer, String> errors = Collections.emptyMap();
+        try {
+            compiled = CompiledScript.compile(text, className, loader,
+                    new CompilationUnit.ProgressCallback() {
+                        public void call(ProcessingUnit unit, int phase) {
+                            if (checkGeneration != generation) {
+                                throw new CancellationException();
+                            }
+                        }
+                    });
+        } catch (CancellationException ce) {
+            return;
+        } catch (CompilationFailedException cfe) {
+            errors = getErrors(cfe);
+        } catch (Exception e) {
+            // not a problem of the text, Run reports it
+            System.err.println("Groovy syntax check failed: " + e);
+        } catch (LinkageError le) {
+            System.err.println("Groovy syntax check failed: " + le);
+        }
+
+        final Map<Integer, String> published = errors;
+        Result unused;
+        synchronized (this) {
+            if (checkGeneration != generation) {
+                if (compiled != null) {
+                    compiled.release();
+                }
+                return;
+            }
+            unused = retire(result);
+            result = new Result(text, compiled);
+        }
+        if (unused != null) {
+            unused.compiled.release();
+        }
+        if (listener != null) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    if (checkGeneration == generation) {
+                        listener.checked(published);
+                    }
+                }
+            });
+        }
+    }
+
+    private static Map<Integer, String> getErrors(CompilationFailedException e) {
+        Map<Integer, String> errors = new TreeMap<Integer, String>();
+        if (e instanceof MultipleCompilationErrorsException) {
+            ErrorCollector collector = ((MultipleCompilationErrorsException) e).getErrorCollector();
+            for (Object error : collector.getErrors()) {
+                if (error instanceof SyntaxErrorMessage) {
+                    SyntaxException cause = ((SyntaxErrorMessage) error).getCause();
+                    int line = Math.max(1, cause.getLine());
+                    String message = errors.get(line);
+                    errors.put(line, message == null ? cause.getOriginalMessage()
+                            : message + "\n" + cause.getOriginalMessage());
+                }
+            }
+        }
+        return errors;
+    }
+
+    private static class Result {
+        final String text;
+        final CompiledScript compiled;
+
+        // the runs using the compiled script, guarded by the checker
+        int users = 0;
+
+        Result(String text, CompiledScript compiled) {
+            this.text = text;
+            this.compiled = compiled;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes script sources in one explicit charset.
+ * <p>
+ * Sources are UTF-8 unless the system property
+ * {@code net.codebuilders.groovy.encoding} names another charset. A file
+ * that is not valid in that charset, like one saved in the platform
+ * charset by an older version of the editor, is decoded with the
+ * platform charset instead. Local files are read in one piece through a
+ * FileChannel into a buffer of the file's size. They are not memory
+ * mapped, since a mapped file cannot be saved on Windows until the
+ * mapping is garbage collected.
+ */
+public final class SourceLoader {
+
+    public static final String ENCODING_PROPERTY = "net.codebuilders.groovy.encoding";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final Charset CHARSET = loadCharset();
+
+    private SourceLoader() {
+    }
+
+    private static Charset loadCharset() {
+        String name = System.getProperty(ENCODING_PROPERTY);
+        if (name != null) {
+            try {
+                return Charset.forName(name);
+            } catch (Exception e) {
+                System.err.println("Unknown script encoding " + name + ", using UTF-8");
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Returns the charset scripts are read and written in.
+     */
+    public static Charset getCharset() {
+        return CHARSET;
+    }
+
+    /**
+     * Reads a script source.
+     *
+     * @param url  The source URL
+     * @param file The local file of the URL, null to read through the URL
+     * @return The decoded source
+     * @throws IOException If the source cannot be read
+     */
+    public static String read(URL url, File file) throws IOException {
+        if (file == null && "file".equals(url.getProtocol())) {
+            try {
+                file = new File(url.toURI());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                file = null;
+            }
+        }
+        if (file != null) {
+            return decode(readFile(file));
+        }
+
+        InputStream in = url.openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+            }
+            return decode(ByteBuffer.wrap(out.toByteArray()));
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private static ByteBuffer readFile(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large for a script");
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining() && channel.read(buf) != -1) {
+                // keep reading, a channel may return fewer bytes than asked for
+            }
+            buf.flip();
+            return buf;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Decodes source bytes, dropping a byte order mark.
+     *
+     * @param bytes The encoded source
+     * @return The source text
+     */
+    public static String decode(ByteBuffer bytes) {
+        if (CHARSET.equals(StandardCharsets.UTF_8) && bytes.remaining() >= 3
+                && bytes.get(bytes.position()) == (byte) 0xEF
+                && bytes.get(bytes.position() + 1) == (byte) 0xBB
+                && bytes.get(bytes.position() + 2) == (byte) 0xBF) {
+            bytes.position(bytes.position() + 3);
+        }
+
+        try {
+            return CHARSET.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(bytes.duplicate()).toString();
+        } catch (CharacterCodingException e) {
+            // most likely written in the platform charset by an older editor
+            return Charset.defaultCharset().decode(bytes).toString();
+        }
+    }
+
+    /**
+     * Encodes a source for writing.
+     *
+     * @param text The source text
+     * @return The encoded source
+     */
+    public static byte[] encode(String text) {
+        return text.getBytes(CHARSET);
+    }
+}
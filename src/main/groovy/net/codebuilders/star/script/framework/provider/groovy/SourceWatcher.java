@@ -0,0 +1,169 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Watches parcel directories and marks the cached sources of changed
+ * files stale in the {@link SourceCache}.
+ * <p>
+ * Can be turned off with the system property {@value #ENABLED_PROPERTY}
+ * set to false, the source cache then checks file stamps instead.
+ */
+public class SourceWatcher {
+
+    public static final String ENABLED_PROPERTY = "net.codebuilders.groovy.watch";
+
+    // global SourceWatcher returned for getWatcher() calls
+    private static volatile SourceWatcher theSourceWatcher;
+    private static volatile boolean initialised = false;
+
+    private final WatchService watchService;
+    private final SourceCache sourceCache;
+    private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+
+    /**
+     * Returns the global SourceWatcher instance.
+     *
+     * @return The watcher or null if watching is disabled or not
+     * supported by the file system
+     */
+    public static SourceWatcher getWatcher() {
+        if (!initialised) {
+            synchronized (SourceWatcher.class) {
+                if (!initialised) {
+                    if (!"false".equals(System.getProperty(ENABLED_PROPERTY))) {
+                        try {
+                            SourceWatcher watcher = new SourceWatcher(
+                                    FileSystems.getDefault().newWatchService(),
+                                    SourceCache.getCache());
+                            watcher.start();
+                            theSourceWatcher = watcher;
+                        } catch (IOException ioe) {
+                            System.err.println("Groovy source watcher disabled: " + ioe.getMessage());
+                        } catch (UnsupportedOperationException uoe) {
+                            System.err.println("Groovy source watcher disabled: " + uoe.getMessage());
+                        }
+                    }
+                    // set last, other threads then see the watcher as well
+                    initialised = true;
+                }
+            }
+        }
+        return theSourceWatcher;
+    }
+
+    public SourceWatcher(WatchService watchService, SourceCache sourceCache) {
+        this.watchService = watchService;
+        this.sourceCache = sourceCache;
+    }
+
+    /**
+     * Starts watching the directory of a script file.
+     *
+     * @param file The script file
+     * @return true if changes to the file will be reported
+     */
+    public boolean watch(File file) {
+        File dir = file.getParentFile();
+        if (dir == null || !dir.isDirectory()) {
+            return false;
+        }
+
+        Path path = dir.toPath();
+        synchronized (directories) {
+            if (directories.containsValue(path)) {
+                return true;
+            }
+            try {
+                WatchKey key = path.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                directories.put(key, path);
+                return true;
+            } catch (IOException ioe) {
+                return false;
+            } catch (ClosedWatchServiceException cwe) {
+                return false;
+            }
+        }
+    }
+
+    private void start() {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                processEvents();
+            }
+        }, "Groovy source watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void processEvents() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException ie) {
+                return;
+            } catch (ClosedWatchServiceException cwe) {
+                return;
+            }
+
+            Path dir;
+            synchronized (directories) {
+                dir = directories.get(key);
+            }
+
+            if (dir != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // events were lost, nothing in the directory can be trusted
+                        sourceCache.markStale(dir.toFile(), true);
+                    } else {
+                        Path changed = dir.resolve((Path) event.context());
+                        sourceCache.markStale(changed.toFile(), false);
+                    }
+                }
+            }
+
+            if (!key.reset()) {
+                // the directory is gone, stop tracking it
+                synchronized (directories) {
+                    directories.remove(key);
+                }
+                if (dir != null) {
+                    sourceCache.markStale(dir.toFile(), true);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy;
+
+import com.sun.star.uno.XInterface;
+import groovy.lang.Closure;
+import groovy.lang.Reference;
+import groovy.lang.Script;
+import org.codehaus.groovy.runtime.ConversionHandler;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Stands in for a UNO object while parallel work runs, see
+ * {@link ScriptParallel}. A call made on a pool thread is run on the
+ * thread that started the work, a call made on any other thread is made
+ * at once. UNO objects returned by a call are guarded as well.
+ * <p>
+ * The UNO objects a function reaches are swapped for guards before the
+ * work starts and put back when it ends: the variables a closure captured,
+ * also those of the closures it is nested in, and the variables of the
+ * script's Binding, e.g. XSCRIPTCONTEXT.
+ */
+final class UnoGuard implements InvocationHandler {
+
+    private final Object target;
+
+    private UnoGuard(Object target) {
+        this.target = target;
+    }
+
+    /**
+     * Returns a guard for a UNO object, or the value itself if it is
+     * not one or cannot be guarded.
+     */
+    static Object guard(Object value) {
+        if (!(value instanceof XInterface) || isGuard(value)) {
+            return value;
+        }
+        Class<?>[] interfaces = interfaces(value.getClass());
+        try {
+            return Proxy.newProxyInstance(value.getClass().getClassLoader(), interfaces,
+                    new UnoGuard(value));
+        } catch (IllegalArgumentException iae) {
+            // an interface is not visible to the loader of the object
+            return value;
+        }
+    }
+
+    static boolean isGuard(Object value) {
+        return value != null && Proxy.isProxyClass(value.getClass())
+                && Proxy.getInvocationHandler(value) instanceof UnoGuard;
+    }
+
+    static Object unguard(Object value) {
+        return isGuard(value) ? ((UnoGuard) Proxy.getInvocationHandler(value)).target : value;
+    }
+
+    // the public interfaces of a class and its super classes
+    private static Class<?>[] interfaces(Class<?> type) {
+        Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Class<?> i : c.getInterfaces()) {
+                if (Modifier.isPublic(i.getModifiers())) {
+                    interfaces.add(i);
+                }
+            }
+        }
+        return interfaces.toArray(new Class<?>[0]);
+    }
+
+    public Object invoke(Object proxy, final Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            // answered locally, like the UNO bridge does
+            if ("equals".equals(method.getName())) {
+                return proxy == args[0] || target.equals(unguard(args[0]));
+            }
+            return call(method, args);
+        }
+
+        // the office only gets the objects themselves
+        final Object[] callArgs = args == null ? null : new Object[args.length];
+        for (int i = 0; callArgs != null && i < args.length; i++) {
+            callArgs[i] = unguard(args[i]);
+        }
+        Object result = ScriptParallel.callOnCaller(new Callable<Object>() {
+            public Object call() throws Exception {
+                return UnoGuard.this.call(method, callArgs);
+            }
+        });
+        return guard(result);
+    }
+
+    private Object call(Method method, Object[] args) throws Exception {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ite) {
+            Throwable cause = ite.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ite;
+        }
+    }
+
+    /**
+     * Swaps the UNO objects the functions reach for guards.
+     *
+     * @param functions The functions given to the parallel work, e.g.
+     *                  closures coerced to an operator
+     * @return Puts the objects back, called when the work ends
+     */
+    static Runnable swap(Object... functions) {
+        final List<Runnable> undo = new ArrayList<Runnable>();
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        for (Object function : functions) {
+            swap(function, undo, seen);
+        }
+        return new Runnable() {
+            public void run() {
+                for (int i = undo.size() - 1; i >= 0; i--) {
+                    undo.get(i).run();
+                }
+            }
+        };
+    }
+
+    private static void swap(Object function, List<Runnable> undo, Set<Object> seen) {
+        // a closure given for an interface is a proxy around it
+        if (function != null && Proxy.isProxyClass(function.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(function);
+            if (handler instanceof ConversionHandler) {
+                function = ((ConversionHandler) handler).getDelegate();
+            }
+        }
+        if (function == null || !seen.add(function)) {
+            return;
+        }
+        if (function instanceof Closure) {
+            Closure<?> closure = (Closure<?>) function;
+            for (Class<?> c = closure.getClass(); c != Closure.class && c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (field.getType() == Reference.class && !Modifier.isStatic(field.getModifiers())) {
+                        swap(closure, field, undo, seen);
+                    }
+                }
+            }
+            swap(closure.getOwner(), undo, seen);
+            swap(closure.getDelegate(), undo, seen);
+        } else if (function instanceof Script) {
+            swap(((Script) function).getBinding().getVariables(), undo);
+        }
+    }
+
+    // a variable the closure captured
+    private static void swap(Closure<?> closure, Field field, List<Runnable> undo, Set<Object> seen) {
+        final Reference<Object> reference;
+        try {
+            field.setAccessible(true);
+            @SuppressWarnings("unchecked")
+            Reference<Object> value = (Reference<Object>) field.get(closure);
+            reference = value;
+        } catch (RuntimeException e) {
+            return;
+        } catch (IllegalAccessException e) {
+            return;
+        }
+        if (reference == null) {
+            return;
+        }
+        final Object value = reference.get();
+        if (value instanceof Closure) {
+            swap(value, undo, seen);
+            return;
+        }
+        final Object guard = guard(value);
+        if (guard != value) {
+            reference.set(guard);
+            undo.add(new Runnable() {
+                public void run() {
+                    // a value the work stored itself is kept
+                    if (reference.get() == guard) {
+                        reference.set(value);
+                    }
+                }
+            });
+        }
+    }
+
+    // the variables of a Binding
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static void swap(final Map variables, List<Runnable> undo) {
+        for (Object entry : new ArrayList<Object>(variables.entrySet())) {
+            final Object key = ((Map.Entry) entry).getKey();
+            final Object value = ((Map.Entry) entry).getValue();
+            final Object guard = guard(value);
+            if (guard != value) {
+                variables.put(key, guard);
+                undo.add(new Runnable() {
+                    public void run() {
+                        if (variables.get(key) == guard) {
+                            variables.put(key, value);
+                        }
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy
+
+import com.sun.star.sheet.XCellRangeAddressable
+import com.sun.star.sheet.XCellRangeData
+import com.sun.star.sheet.XCellRangeFormula
+import com.sun.star.sheet.XCellRangesQuery
+import com.sun.star.sheet.XSheetCellRanges
+import com.sun.star.table.CellAddress
+import com.sun.star.table.CellRangeAddress
+import com.sun.star.table.XCell
+import com.sun.star.table.XCellRange
+import spock.lang.Specification
+
+class CalcRangesSpec extends Specification {
+
+    // A1:E5 with the numbers 1 to 25, row by row
+    FakeSheet sheet = new FakeSheet(5, 5)
+
+    def "read gets numbers and texts in one call"() {
+        given:
+        sheet.values[1][2] = "text"
+
+        when:
+        def data = new CalcRanges(null).read(sheet.range(1, 1, 3, 3))
+
+        then:
+        sheet.calls == ["get B2:D4"]
+        data.rows == 3
+        data.columns == 3
+        data.getDouble(0, 0) == 7
+        data.getString(0, 1) == "text"
+        data[2].toDoubleArray() == [17, 18, 19] as double[]
+    }
+
+    def "a large range is read in blocks of whole rows"() {
+        when:
+        def data = new CalcRanges(null, 4).read(sheet.range(0, 0, 1, 4))
+
+        then:
+        sheet.calls == ["get A1:B2", "get A3:B4", "get A5:B5"]
+        data.column(1).toDoubleArray() == [2, 7, 12, 17, 22] as double[]
+    }
+
+    def "only the changed cells are written"() {
+        given:
+        def calc = new CalcRanges(null)
+        def data = calc.read(sheet.range(1, 1, 3, 3))
+        sheet.calls.clear()
+
+        when:
+        data[1][1] = 100
+        calc.write(data)
+
+        then:
+        sheet.calls == ["set C3"]
+        sheet.values[2][2] == 100d
+        !data.isChanged(1, 1)
+    }
+
+    def "changed cells of consecutive rows are written as one block"() {
+        given:
+        def calc = new CalcRanges(null)
+        def data = calc.read(sheet.range(0, 0, 4, 4))
+        sheet.calls.clear()
+
+        when:
+        data[1][1] = -1
+        data[2][3] = -2
+        data[4][0] = -3
+        calc.write(data)
+
+        then:
+        sheet.calls == ["set B2:D3", "set A5"]
+        sheet.values[1][1] == -1d
+        sheet.values[1][2] == 8d
+        sheet.values[2][3] == -2d
+        sheet.values[4][0] == -3d
+    }
+
+    def "a block is not larger than a chunk"() {
+        given:
+        def calc = new CalcRanges(null, 2)
+        def data = calc.read(sheet.range(0, 0, 1, 2))
+        sheet.calls.clear()
+
+        when:
+        data.column(0).setAll([-1, -2, -3] as double[])
+        calc.write(data)
+
+        then:
+        sheet.calls == ["set A1:A2", "set A3"]
+    }
+
+    def "nothing is written twice or without a change"() {
+        given:
+        def calc = new CalcRanges(null)
+        def data = calc.read(sheet.range(0, 0, 2, 2))
+        data[0][0] = 0
+        calc.write(data)
+        sheet.calls.clear()
+
+        when:
+        calc.write(data)
+
+        then:
+        sheet.calls.empty
+    }
+
+    def "formulas are kept unless the script set their cell"() {
+        given:
+        sheet.formulas[[0, 1]] = "=A1*2"
+        def calc = new CalcRanges(null)
+        def data = calc.read(sheet.range(0, 0, 2, 0))
+        sheet.calls.clear()
+
+        when:
+        data[0][0] = 10
+        data[0][2] = 30
+        calc.write(data)
+
+        then: "the row is written around the formula"
+        sheet.calls == ["set A1", "set C1"]
+        sheet.formulas[[0, 1]] == "=A1*2"
+
+        when:
+        data[0][1] = 20
+        calc.write(data)
+
+        then:
+        sheet.calls == ["set A1", "set C1", "set B1"]
+        sheet.formulas.isEmpty()
+        sheet.values[0][1] == 20d
+    }
+
+    def "formulas are read and written as text"() {
+        given:
+        sheet.formulas[[1, 0]] = "=B1+1"
+        def calc = new CalcRanges(null)
+        def data = calc.readFormulas(sheet.range(0, 0, 1, 1))
+
+        expect:
+        data.formulas
+        data.getString(0, 0) == "1"
+        data.getString(1, 0) == "=B1+1"
+
+        when:
+        data[1][1] = "=A2*3"
+        calc.write(data)
+
+        then:
+        sheet.calls == ["formulas A1:B2", "set formulas B2"]
+        sheet.formulas[[1, 1]] == "=A2*3"
+    }
+
+    def "the document has to be a spreadsheet"() {
+        when:
+        new CalcRanges(null).sheet("Sheet1")
+
+        then:
+        thrown(IllegalStateException)
+    }
+}
+
+/**
+ * An in-memory sheet whose ranges answer the calls CalcRanges makes and
+ * record them in A1 notation.
+ */
+class FakeSheet {
+
+    final Object[][] values
+    // key is [row, column]
+    final Map<List<Integer>, String> formulas = [:]
+    final List<String> calls = []
+
+    FakeSheet(int rows, int columns) {
+        values = new Object[rows][columns]
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns; c++) {
+                values[r][c] = (double) (r * columns + c + 1)
+            }
+        }
+    }
+
+    Range range(int left, int top, int right, int bottom) {
+        new Range(left, top, right, bottom)
+    }
+
+    static String name(int column, int row) {
+        "ABCDEFGHIJ"[column] + (row + 1)
+    }
+
+    class Range implements XCellRange, XCellRangeAddressable, XCellRangeData, XCellRangeFormula, XCellRangesQuery {
+
+        final int left, top, right, bottom
+
+        Range(int left, int top, int right, int bottom) {
+            this.left = left
+            this.top = top
+            this.right = right
+            this.bottom = bottom
+        }
+
+        String toString() {
+            left == right && top == bottom ? name(left, top) : name(left, top) + ":" + name(right, bottom)
+        }
+
+        XCell getCellByPosition(int column, int row) {
+            throw new UnsupportedOperationException()
+        }
+
+        XCellRange getCellRangeByPosition(int left, int top, int right, int bottom) {
+            new Range(this.left + left, this.top + top, this.left + right, this.top + bottom)
+        }
+
+        XCellRange getCellRangeByName(String name) {
+            throw new UnsupportedOperationException()
+        }
+
+        CellRangeAddress getRangeAddress() {
+            new CellRangeAddress((short) 0, left, top, right, bottom)
+        }
+
+        Object[][] getDataArray() {
+            calls << "get " + this
+            (top..bottom).collect { r -> (left..right).collect { c -> values[r][c] } as Object[] } as Object[][]
+        }
+
+        void setDataArray(Object[][] data) {
+            calls << "set " + this
+            store(data)
+        }
+
+        String[][] getFormulaArray() {
+            calls << "formulas " + this
+            (top..bottom).collect { r ->
+                (left..right).collect { c ->
+                    formulas[[r, c]] ?: (values[r][c] instanceof Double ? (values[r][c] as long) as String : values[r][c])
+                } as String[]
+            } as String[][]
+        }
+
+        void setFormulaArray(String[][] data) {
+            calls << "set formulas " + this
+            store(data)
+        }
+
+        private void store(Object[][] data) {
+            for (int r = top; r <= bottom; r++) {
+                for (int c = left; c <= right; c++) {
+                    Object value = data[r - top][c - left]
+                    formulas.remove([r, c])
+                    if (value instanceof String && value.startsWith("=")) {
+                        formulas[[r, c]] = value
+                    }
+                    values[r][c] = value
+                }
+            }
+        }
+
+        XSheetCellRanges queryContentCells(short flags) {
+            def cells = formulas.keySet().findAll { r, c -> r in top..bottom && c in left..right }
+            [getRangeAddresses: {
+                cells.collect { r, c -> new CellRangeAddress((short) 0, c, r, c, r) } as CellRangeAddress[]
+            }] as XSheetCellRanges
+        }
+
+        XSheetCellRanges queryVisibleCells() { throw new UnsupportedOperationException() }
+
+        XSheetCellRanges queryEmptyCells() { throw new UnsupportedOperationException() }
+
+        XSheetCellRanges queryFormulaCells(int flags) { throw new UnsupportedOperationException() }
+
+        XSheetCellRanges queryColumnDifferences(CellAddress address) { throw new UnsupportedOperationException() }
+
+        XSheetCellRanges queryRowDifferences(CellAddress address) { throw new UnsupportedOperationException() }
+
+        XSheetCellRanges queryIntersection(CellRangeAddress address) { throw new UnsupportedOperationException() }
+    }
+}
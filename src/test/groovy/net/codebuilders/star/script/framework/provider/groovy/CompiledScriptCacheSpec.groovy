@@ -0,0 +1,117 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy
+
+import spock.lang.Specification
+
+class CompiledScriptCacheSpec extends Specification {
+
+    GroovyClassLoader loader = new GroovyClassLoader(getClass().classLoader)
+
+    CompiledScript compile(String source = "return 1") {
+        CompiledScript.compile(source, "Script" + System.nanoTime(), loader)
+    }
+
+    def "hash is stable and changes with the source"() {
+        expect:
+        CompiledScriptCache.hash("return 1") == CompiledScriptCache.hash("return 1")
+        CompiledScriptCache.hash("return 1") != CompiledScriptCache.hash("return 2")
+        CompiledScriptCache.hash("return 1") ==~ /[0-9a-f]{64}/
+    }
+
+    def "an entry is only returned for the source hash it was compiled from"() {
+        given:
+        def cache = new CompiledScriptCache(4)
+        def script = compile()
+        cache.put("file:/a.groovy", "parcel", "h1", script)
+
+        expect:
+        cache.get("file:/a.groovy", "h1").is(script)
+        cache.get("file:/a.groovy", "h2") == null
+        cache.get("file:/b.groovy", "h1") == null
+        cache.hits == 1
+        cache.misses == 2
+    }
+
+    def "the least recently used entry is evicted once the cache is full"() {
+        given:
+        def cache = new CompiledScriptCache(2)
+        cache.put("a", "parcel", "h", compile())
+        cache.put("b", "parcel", "h", compile())
+
+        when: "a is used, so b is the least recently used one"
+        cache.get("a", "h")
+        cache.put("c", "parcel", "h", compile())
+
+        then:
+        cache.size() == 2
+        cache.evictions == 1
+        cache.get("a", "h") != null
+        cache.get("b", "h") == null
+        cache.get("c", "h") != null
+    }
+
+    def "evicted and replaced scripts are released"() {
+        given:
+        def cache = new CompiledScriptCache(1)
+        cache.put("a", "parcel", "h1", compile())
+        long released = CompiledScript.classesReleased
+
+        when:
+        cache.put("a", "parcel", "h2", compile())
+        cache.put("b", "parcel", "h1", compile())
+
+        then:
+        CompiledScript.classesReleased - released == 2
+    }
+
+    def "removeAll drops the scripts of one parcel only"() {
+        given:
+        def cache = new CompiledScriptCache(8)
+        cache.put("a", "p1", "h", compile())
+        cache.put("b", "p2", "h", compile())
+
+        when:
+        cache.removeAll("p1")
+
+        then:
+        cache.get("a", "h") == null
+        cache.get("b", "h") != null
+    }
+
+    def "getOrCompile compiles once per source and again when it changes"() {
+        given:
+        def cache = new CompiledScriptCache(4)
+        def options = ScriptOptions.parse(null, "return 1")
+
+        when:
+        def first = cache.getOrCompile("file:/a.groovy", "parcel", "return 1",
+                CompiledScriptCache.hash("return 1"), options, loader, null)
+        def second = cache.getOrCompile("file:/a.groovy", "parcel", "return 1",
+                CompiledScriptCache.hash("return 1"), options, loader, null)
+        def changed = cache.getOrCompile("file:/a.groovy", "parcel", "return 2",
+                CompiledScriptCache.hash("return 2"), options, loader, null)
+
+        then:
+        second.is(first)
+        !changed.is(first)
+        changed.scriptClass.newInstance().run() == 2
+        cache.size() == 1
+    }
+}
@@ -0,0 +1,111 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static net.codebuilders.star.script.framework.provider.groovy.GroovyLexer.*
+
+class GroovyLexerSpec extends Specification {
+
+    // the tokens of a line as [text, type] pairs
+    List tokens(String line, int state = NORMAL) {
+        def found = []
+        char[] text = line.toCharArray()
+        scan(text, 0, text.length, state, { start, end, type ->
+            found << [line.substring(start, end), type]
+        } as Tokens)
+        found
+    }
+
+    @Unroll
+    def "'#line' is one #type token"() {
+        expect:
+        tokens(line) == [[line, type]]
+
+        where:
+        line               | type
+        "return"           | KEYWORD
+        "answer"           | PLAIN
+        "// a comment"     | COMMENT
+        "/* a comment */"  | COMMENT
+        "'single'"         | STRING
+        '"double $x"'      | STRING
+        '"escaped \\" "'   | STRING
+        "'''triple'''"     | STRING
+        "42"               | NUMBER
+        "3.14"             | NUMBER
+        "0xFFL"            | NUMBER
+        "@Override"        | ANNOTATION
+    }
+
+    def "the tokens cover the whole line"() {
+        expect:
+        tokens("def x = 1..2 // range") == [
+                ["def", KEYWORD], [" ", PLAIN], ["x", PLAIN], [" = ", PLAIN],
+                ["1", NUMBER], ["..", PLAIN], ["2", NUMBER], [" ", PLAIN],
+                ["// range", COMMENT]]
+    }
+
+    def "only the given part of the text is lexed"() {
+        given:
+        char[] text = "int a\nnew b".toCharArray()
+        def found = []
+
+        when:
+        scan(text, 6, text.length, NORMAL, { start, end, type ->
+            found << [start, end, type]
+        } as Tokens)
+
+        then:
+        found == [[6, 9, KEYWORD], [9, 10, PLAIN], [10, 11, PLAIN]]
+    }
+
+    @Unroll
+    def "a line ending in '#line' continues in state #state"() {
+        given:
+        char[] text = line.toCharArray()
+
+        expect:
+        scan(text, 0, text.length, NORMAL, null) == state
+
+        where:
+        line                 | state
+        "x = 1"              | NORMAL
+        "x /* open"          | BLOCK_COMMENT
+        "x /* closed */ y"   | NORMAL
+        "s = '''open"        | TRIPLE_SINGLE
+        's = """open'        | TRIPLE_DOUBLE
+        "s = 'open"          | NORMAL
+    }
+
+    def "a block comment is carried into the next line"() {
+        expect:
+        tokens("still */ return", BLOCK_COMMENT) == [
+                ["still */", COMMENT], [" ", PLAIN], ["return", KEYWORD]]
+        tokens("still open", BLOCK_COMMENT) == [["still open", COMMENT]]
+    }
+
+    def "a triple quoted string is only closed by its own quotes"() {
+        expect:
+        tokens('a """ b', TRIPLE_SINGLE) == [['a """ b', STRING]]
+        tokens("a ''' b", TRIPLE_SINGLE) == [["a '''", STRING], [" ", PLAIN], ["b", PLAIN]]
+    }
+}
@@ -0,0 +1,127 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy
+
+import com.sun.star.script.framework.container.ScriptEntry
+import com.sun.star.script.framework.container.ScriptMetaData
+import spock.lang.Specification
+
+class ParcelClassLoaderPoolSpec extends Specification {
+
+    File parcel = File.createTempDir()
+
+    def cleanup() {
+        parcel.deleteDir()
+    }
+
+    // a script of a parcel in the local file system, its class path is the parcel directory
+    ScriptMetaData script(File location = parcel) {
+        new ScriptMetaData(null, new ScriptEntry("Groovy", "Test.groovy"), null) {
+            String getParcelLocation() {
+                location.toURI().toString()
+            }
+
+            URL[] getClassPath() {
+                [location.toURI().toURL()] as URL[]
+            }
+        }
+    }
+
+    def "the loader is kept while the class path is unchanged"() {
+        given:
+        def pool = new ParcelClassLoaderPool(0)
+        new File(parcel, "helper.jar").bytes = [1, 2, 3] as byte[]
+
+        expect:
+        pool.getClassLoader(script(), null).is(pool.getClassLoader(script(), null))
+        pool.size() == 1
+    }
+
+    def "saving a script does not replace the loader"() {
+        given:
+        def pool = new ParcelClassLoaderPool(0)
+        def loader = pool.getClassLoader(script(), null)
+
+        when:
+        new File(parcel, "Test.groovy").text = "return 1"
+
+        then:
+        pool.getClassLoader(script(), null).is(loader)
+    }
+
+    def "a modified jar replaces the loader and drops the parcel's scripts"() {
+        given:
+        def pool = new ParcelClassLoaderPool(0)
+        def jar = new File(parcel, "helper.jar")
+        jar.bytes = [1, 2, 3] as byte[]
+        def loader = pool.getClassLoader(script(), null)
+        def key = parcel.toURI().toString() + "Test.groovy"
+        CompiledScriptCache.cache.put(key, parcel.toURI().toString(), "h",
+                CompiledScript.compile("return 1", "Stamped" + System.nanoTime(), loader))
+
+        when:
+        jar.bytes = [1, 2, 3, 4] as byte[]
+
+        then:
+        !pool.getClassLoader(script(), null).is(loader)
+        CompiledScriptCache.cache.get(key, "h") == null
+    }
+
+    def "a new class file replaces the loader"() {
+        given:
+        def pool = new ParcelClassLoaderPool(0)
+        def loader = pool.getClassLoader(script(), null)
+
+        when:
+        new File(parcel, "sub").mkdir()
+        new File(parcel, "sub/Helper.class").bytes = [1] as byte[]
+
+        then:
+        !pool.getClassLoader(script(), null).is(loader)
+    }
+
+    def "the files are not checked again within the check interval"() {
+        given:
+        def pool = new ParcelClassLoaderPool(60000)
+        def loader = pool.getClassLoader(script(), null)
+
+        when:
+        new File(parcel, "helper.jar").bytes = [1, 2, 3] as byte[]
+
+        then:
+        pool.getClassLoader(script(), null).is(loader)
+    }
+
+    def "the least recently used parcel is evicted"() {
+        given:
+        def pool = new ParcelClassLoaderPool(60000, 1)
+        def other = File.createTempDir()
+        def loader = pool.getClassLoader(script(), null)
+
+        when:
+        pool.getClassLoader(script(other), null)
+
+        then:
+        pool.size() == 1
+        !pool.getClassLoader(script(), null).is(loader)
+
+        cleanup:
+        other.deleteDir()
+    }
+}
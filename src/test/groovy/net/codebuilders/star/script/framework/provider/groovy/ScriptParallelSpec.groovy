@@ -0,0 +1,138 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy
+
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+
+class ScriptParallelSpec extends Specification {
+
+    // small pieces so even short arrays are split over the pool
+    ScriptParallel parallel = new ScriptParallel(16)
+
+    double[] numbers = (1..1000).collect { it as double } as double[]
+
+    def "map applies the function to every number on the pool"() {
+        given:
+        Set<String> threads = ConcurrentHashMap.newKeySet()
+
+        when:
+        double[] squares = parallel.map(numbers) { x ->
+            threads << Thread.currentThread().name
+            x * x
+        }
+
+        then:
+        squares == numbers.collect { it * it } as double[]
+        threads.every { it.startsWith("Groovy parallel") }
+    }
+
+    def "mapToDouble turns texts into numbers"() {
+        expect:
+        parallel.mapToDouble(["1.5", "x", "3"] as String[]) { s ->
+            s.isNumber() ? s as double : Double.NaN
+        } == [1.5d, Double.NaN, 3d] as double[]
+    }
+
+    def "reduce combines all numbers"() {
+        expect:
+        parallel.reduce(numbers, Double.NEGATIVE_INFINITY) { a, b -> Math.max(a, b) } == 1000d
+        parallel.reduce(numbers, 0) { a, b -> a + b } == 500500d
+        parallel.reduce(new double[0], 42) { a, b -> a + b } == 42d
+    }
+
+    def "sum skips the cells holding text"() {
+        given:
+        numbers[10] = Double.NaN
+
+        expect:
+        parallel.sum(numbers) == 500500d - 11
+    }
+
+    def "groupBy combines the numbers of every key"() {
+        given:
+        String[] keys = numbers.collect { it % 3 == 0 ? "fizz" : "other" } as String[]
+
+        expect:
+        parallel.groupBy(keys, numbers, 0) { a, b -> Math.max(a, b) } == [fizz: 999d, other: 1000d]
+        parallel.groupBy(keys, numbers, 0) { a, b -> a + b } == [fizz: 166833d, other: 333667d]
+    }
+
+    def "sumBy and countBy aggregate by key"() {
+        given:
+        String[] keys = numbers.collect { it <= 100 ? "low" : "high" } as String[]
+        numbers[0] = Double.NaN
+
+        expect:
+        parallel.sumBy(keys, numbers) == [low: 5049d, high: 495450d]
+        parallel.countBy(keys) == [low: 100L, high: 900L]
+    }
+
+    def "the keys have to match the numbers"() {
+        when:
+        parallel.sumBy(["a"] as String[], numbers)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "onCaller runs a call on the thread that started the work"() {
+        given:
+        Set<Thread> callers = ConcurrentHashMap.newKeySet()
+
+        when:
+        parallel.map(numbers) { x ->
+            callers << parallel.onCaller { Thread.currentThread() }
+            x
+        }
+
+        then:
+        callers == [Thread.currentThread()] as Set
+    }
+
+    def "an exception of the function ends the work"() {
+        when:
+        parallel.map(numbers) { x ->
+            if (x == 500) {
+                throw new ArithmeticException("bad number")
+            }
+            x
+        }
+
+        then:
+        def e = thrown(ArithmeticException)
+        e.message == "bad number"
+    }
+
+    def "CALC cannot be used by a piece of the work"() {
+        given:
+        def calc = new CalcRanges(null)
+
+        when:
+        parallel.map(numbers) { x ->
+            calc.read(new FakeSheet(1, 1).range(0, 0, 0, 0))
+            x
+        }
+
+        then:
+        def e = thrown(IllegalStateException)
+        e.message.startsWith("CALC calls the office")
+    }
+}
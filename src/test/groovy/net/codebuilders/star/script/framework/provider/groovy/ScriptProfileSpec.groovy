@@ -0,0 +1,79 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy
+
+import spock.lang.Specification
+
+class ScriptProfileSpec extends Specification {
+
+    // 10 samples in 25 ms, line 2 got 6 of them and line 3 got 1
+    ScriptProfile profile = new ScriptProfile("Test.groovy",
+            [3: [1L, 2500000L] as long[], 2: [6L, 15000000L] as long[]], 10, 25000000)
+
+    List<String> written(String source) {
+        def out = new StringWriter()
+        profile.write(out, source)
+        out.toString().readLines()
+    }
+
+    def "the counts of a line are returned"() {
+        expect:
+        profile.getHits(2) == 6
+        profile.getHits(1) == 0
+        profile.getMillis(2) == 15.0d
+        profile.getMillis(1) == 0.0d
+        profile.maxHits == 6
+        profile.millis == 25
+    }
+
+    def "write puts one tab separated row per line in line order"() {
+        expect:
+        written("def x = 0\n  x = work()  \r\nreturn x\n") == [
+                "# Test.groovy: 10 samples in 25 ms",
+                "line\tsamples\tms\tpercent\tsource",
+                "2\t6\t15.0\t60.0\tx = work()",
+                "3\t1\t2.5\t10.0\treturn x"]
+    }
+
+    def "write leaves the source column empty without a source"() {
+        expect:
+        written(null)[2..3] == ["2\t6\t15.0\t60.0\t", "3\t1\t2.5\t10.0\t"]
+        written("only one line")[3] == "3\t1\t2.5\t10.0\t"
+    }
+
+    def "write does not divide by zero without samples"() {
+        given:
+        profile = new ScriptProfile("Empty.groovy", [1: [0L, 0L] as long[]], 0, 0)
+
+        expect:
+        written("x")[2] == "1\t0\t0.0\t0.0\tx"
+    }
+
+    def "write uses a dot as decimal separator in every locale"() {
+        given:
+        def locale = Locale.default
+        Locale.default = Locale.GERMANY
+
+        expect:
+        written(null)[3].startsWith("3\t1\t2.5\t10.0")
+
+        cleanup:
+        Locale.default = locale
+    }
+}
@@ -0,0 +1,139 @@
+/* ************************************************************************
+ *
+ * Copyright 2020 Code Builders, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *********************************************************************** */
+
+package net.codebuilders.star.script.framework.provider.groovy
+
+import spock.lang.Specification
+
+import static net.codebuilders.star.script.framework.provider.groovy.ScriptStateCache.MAX_ENTRIES_PROPERTY
+import static net.codebuilders.star.script.framework.provider.groovy.ScriptStateCache.TTL_PROPERTY
+
+class ScriptStateCacheSpec extends Specification {
+
+    def cleanup() {
+        System.clearProperty(MAX_ENTRIES_PROPERTY)
+        System.clearProperty(TTL_PROPERTY)
+    }
+
+    def "a value is computed once and then returned from the scope"() {
+        given:
+        def scope = new ScriptStateCache.Scope("test")
+        int computed = 0
+
+        when:
+        def first = scope.get("answer") { computed++; 42 }
+        def second = scope.get("answer") { computed++; 0 }
+
+        then:
+        first == 42
+        second == 42
+        computed == 1
+        scope.containsKey("answer")
+    }
+
+    def "a null value is stored as well"() {
+        given:
+        def scope = new ScriptStateCache.Scope("test")
+        int computed = 0
+
+        when:
+        2.times { scope.get("nothing") { computed++; null } }
+
+        then:
+        computed == 1
+        scope.containsKey("nothing")
+    }
+
+    def "a value expires after its time to live"() {
+        given:
+        def scope = new ScriptStateCache.Scope("test")
+        scope.put("short", 1, 50)
+        scope.put("forever", 2, 0)
+
+        when:
+        Thread.sleep(150)
+
+        then:
+        scope.get("short") == null
+        !scope.containsKey("short")
+        scope.get("forever") == 2
+        scope.get("short") { 3 } == 3
+    }
+
+    def "the default time to live comes from the system property"() {
+        given:
+        System.setProperty(TTL_PROPERTY, "50")
+        def scope = new ScriptStateCache.Scope("test")
+        scope.put("short", 1)
+        scope.put("forever", 2, 0)
+
+        when:
+        Thread.sleep(150)
+
+        then:
+        scope.get("short") == null
+        scope.get("forever") == 2
+    }
+
+    def "an expired value is not returned by remove"() {
+        given:
+        def scope = new ScriptStateCache.Scope("test")
+        scope.put("short", 1, 50)
+        Thread.sleep(150)
+
+        expect:
+        scope.remove("short") == null
+        scope.size() == 0
+    }
+
+    def "the least recently used value is dropped once the scope is full"() {
+        given:
+        System.setProperty(MAX_ENTRIES_PROPERTY, "2")
+        def scope = new ScriptStateCache.Scope("test")
+        scope.put("a", 1)
+        scope.put("b", 2)
+
+        when: "a is used, so b is the least recently used one"
+        scope.get("a")
+        scope.put("c", 3)
+
+        then:
+        scope.size() == 2
+        scope.get("a") == 1
+        scope.get("b") == null
+        scope.get("c") == 3
+    }
+
+    def "remove and clear drop values"() {
+        given:
+        def scope = new ScriptStateCache.Scope("test")
+        scope.put("a", 1)
+        scope.put("b", 2)
+
+        expect:
+        scope.remove("a") == 1
+        scope.remove("a") == null
+        scope.size() == 1
+
+        when:
+        scope.clear()
+
+        then:
+        scope.size() == 0
+    }
+}